@@ -0,0 +1,81 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.bench;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import l9g.app.keymaster.service.CacheRegistry;
+import l9g.app.keymaster.service.ClientService;
+import l9g.app.keymaster.service.KeycloakBuilderService;
+import l9g.app.keymaster.service.KeycloakRequestExecutor;
+import l9g.app.keymaster.service.RealmRoleService;
+import l9g.app.keymaster.service.UserService;
+import l9g.app.keymaster.stub.StubKeycloakServer;
+import org.springframework.core.env.StandardEnvironment;
+
+/**
+ * Stub server plus the services wired against it, without a Spring
+ * context.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class BenchmarkRealm implements AutoCloseable
+{
+  private final StubKeycloakServer server;
+
+  final CacheRegistry cacheRegistry;
+
+  final UserService userService;
+
+  final RealmRoleService realmRoleService;
+
+  final ClientService clientService;
+
+  public BenchmarkRealm(int numberOfUsers, int numberOfRoles,
+    int numberOfClients)
+    throws IOException
+  {
+    server = new StubKeycloakServer("bench", 0, numberOfUsers, numberOfRoles,
+      numberOfClients, Duration.ZERO, 0.0);
+
+    KeycloakBuilderService keycloakConnection = new KeycloakBuilderService(
+      server.getRealm(), "admin-cli", "secret", server.getBaseUrl(),
+      false, 32, 32, Duration.ofSeconds(5), Duration.ofSeconds(60),
+      Duration.ofSeconds(30), Duration.ofMinutes(5), false);
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    KeycloakRequestExecutor requestExecutor = new KeycloakRequestExecutor(
+      meterRegistry, 0, 10, 3, Duration.ofMillis(100), Duration.ofSeconds(2),
+      1, 32, 8, Duration.ofSeconds(1));
+
+    cacheRegistry = new CacheRegistry(new StandardEnvironment(), meterRegistry,
+      Duration.ofHours(1), 1_000_000);
+    userService = new UserService(keycloakConnection, cacheRegistry,
+      requestExecutor, 100, 8);
+    realmRoleService = new RealmRoleService(keycloakConnection, cacheRegistry,
+      requestExecutor);
+    clientService = new ClientService(keycloakConnection, cacheRegistry,
+      requestExecutor);
+  }
+
+  @Override
+  public void close()
+  {
+    server.close();
+  }
+
+}
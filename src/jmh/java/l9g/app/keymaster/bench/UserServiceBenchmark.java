@@ -0,0 +1,80 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end paging of all users over HTTP against the stub server.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UserServiceBenchmark
+{
+  @Param("10000")
+  int users;
+
+  private BenchmarkRealm realm;
+
+  @Setup
+  public void setup()
+    throws Exception
+  {
+    realm = new BenchmarkRealm(users, 100, 10);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    realm.close();
+  }
+
+  @Benchmark
+  public long streamUsers()
+  {
+    try(Stream<UserRepresentation> stream = realm.userService.stream())
+    {
+      return stream.count();
+    }
+  }
+
+  @Benchmark
+  public int loadUserStore()
+  {
+    return realm.userService.store(true).size();
+  }
+
+}
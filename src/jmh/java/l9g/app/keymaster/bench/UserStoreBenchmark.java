@@ -0,0 +1,89 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.bench;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import l9g.app.keymaster.service.UserFilter;
+import l9g.app.keymaster.service.UserRecord;
+import l9g.app.keymaster.service.UserRecordStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * In-memory lookups of the compact user store.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStoreBenchmark
+{
+  @Param("100000")
+  int users;
+
+  private UserRecordStore store;
+
+  private UserFilter filter;
+
+  @Setup
+  public void setup()
+  {
+    store = new UserRecordStore();
+    for(int i = 0; i < users; i++)
+    {
+      store.add(new UserRecord(new UUID(0x4b6579L, i).toString(), "user" + i,
+        "First" + (i % 500), "Last" + (i % 2000), "user" + i + "@example.org",
+        i % 50 != 0, null));
+    }
+    filter = new UserFilter("enabled=false, username~7$");
+  }
+
+  @Benchmark
+  public Object findById()
+  {
+    int i = ThreadLocalRandom.current().nextInt(users);
+    return store.findById(new UUID(0x4b6579L, i).toString());
+  }
+
+  @Benchmark
+  public Object findByUsername()
+  {
+    return store.findByUsername("user" + ThreadLocalRandom.current().nextInt(users));
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long filterAll()
+  {
+    return store.stream().filter(filter).count();
+  }
+
+}
@@ -1,5 +1,10 @@
 package l9g.app.keymaster;
 
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.util.Arrays;
+import l9g.app.keymaster.client.DaemonClient;
+import l9g.app.keymaster.service.RealmRegistry;
 import org.jline.utils.AttributedString;
 import org.jline.utils.AttributedStyle;
 import org.springframework.boot.SpringApplication;
@@ -14,14 +19,28 @@ public class L9gKeymasterApplication
 {
 
   @Bean
-  public PromptProvider createPromptProvider()
+  public PromptProvider createPromptProvider(RealmRegistry realmRegistry)
   {
-    return () -> new AttributedString("keymaster:>",
+    // shows the realm selected with use-realm
+    return () -> new AttributedString(
+      realmRegistry.current().realm().equals(realmRegistry.getDefaultRealm())
+        ? "keymaster:>" : "keymaster[" + realmRegistry.current().realm() + "]:>",
       AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
   }
   
+  @Bean
+  public PrometheusMeterRegistry createMeterRegistry()
+  {
+    return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+  }
+
   public static void main(String[] args)
   {
+    if(args.length > 0 && "client".equals(args[0]))
+    {
+      // thin client of the daemon, without a Spring context
+      System.exit(DaemonClient.run(Arrays.copyOfRange(args, 1, args.length)));
+    }
     SpringApplication.run(L9gKeymasterApplication.class, args);
   }
 
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thin client of the keymaster daemon, sends command lines over the Unix
+ * domain socket and prints the output. Only uses the JDK, no Spring
+ * context and no Keycloak connection is started.
+ *
+ * <pre>
+ * java -jar keymaster.jar client [--socket path] [command ...]
+ * </pre>
+ *
+ * Without a command the command lines are read from stdin. The exit
+ * status is 1 if a command failed and 2 if the daemon is not running.
+ *
+ * Protocol: one command line per line, the daemon answers with the
+ * output of the command followed by a status line
+ * <code>#keymaster ok &lt;millis&gt;ms</code> or
+ * <code>#keymaster error &lt;message&gt;</code>. Error output of the
+ * command is sent as <code>#keymaster stderr &lt;line&gt;</code>. The
+ * output is passed through unchanged, CSV keeps its CRLF line ends.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public final class DaemonClient
+{
+  public final static String STATUS_PREFIX = "#keymaster ";
+
+  public final static String STDERR = "stderr ";
+
+  private DaemonClient()
+  {
+  }
+
+  public static Path defaultSocket()
+  {
+    return Path.of(System.getProperty("user.home"), ".keymaster", "keymaster.sock");
+  }
+
+  public static void main(String[] args)
+  {
+    System.exit(run(args));
+  }
+
+  /**
+   * @return exit status
+   */
+  public static int run(String[] args)
+  {
+    Path socket = defaultSocket();
+    List<String> words = new ArrayList<>();
+    for(int i = 0; i < args.length; i++)
+    {
+      if(words.isEmpty() && "--socket".equals(args[i]) && i + 1 < args.length)
+      {
+        socket = Path.of(args[++i]);
+      }
+      else
+      {
+        words.add(quote(args[i]));
+      }
+    }
+
+    SocketChannel channel;
+    try
+    {
+      channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+    }
+    catch(IOException e)
+    {
+      System.err.println("keymaster daemon not running at " + socket + ": " + e.getMessage());
+      return 2;
+    }
+
+    String command = words.isEmpty() ? null : String.join(" ", words);
+    int errors = 0;
+
+    try(channel)
+    {
+      OutputStream request = Channels.newOutputStream(channel);
+
+      // requests are written by a second thread, a large input must not
+      // block while the daemon waits for its output to be read
+      Thread writer = Thread.ofPlatform().daemon().start(() ->
+      {
+        try
+        {
+          if(command != null)
+          {
+            request.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+          }
+          else
+          {
+            System.in.transferTo(request);
+          }
+          request.flush();
+          channel.shutdownOutput();
+        }
+        catch(IOException e)
+        {
+          System.err.println("sending commands failed: " + e.getMessage());
+        }
+      });
+
+      OutputStream out = new BufferedOutputStream(System.out);
+      InputStream response = new BufferedInputStream(Channels.newInputStream(channel));
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      while(readLine(response, line))
+      {
+        String text = line.toString(StandardCharsets.UTF_8);
+        if(text.startsWith(STATUS_PREFIX))
+        {
+          out.flush();
+          String status = text.substring(STATUS_PREFIX.length()).stripTrailing();
+          if(status.startsWith(STDERR))
+          {
+            System.err.println(status.substring(STDERR.length()));
+          }
+          else if(status.startsWith("error"))
+          {
+            errors++;
+            System.err.println(status);
+          }
+        }
+        else
+        {
+          line.writeTo(out);
+        }
+      }
+      out.flush();
+      writer.join();
+    }
+    catch(IOException e)
+    {
+      System.err.println("daemon connection failed: " + e.getMessage());
+      return 2;
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    return (errors > 0) ? 1 : 0;
+  }
+
+  /**
+   * Reads the next line including its line end.
+   *
+   * @return false at the end of the response
+   */
+  private static boolean readLine(InputStream in, ByteArrayOutputStream line)
+    throws IOException
+  {
+    line.reset();
+    int b;
+    while((b = in.read()) >= 0)
+    {
+      line.write(b);
+      if(b == '\n')
+      {
+        break;
+      }
+    }
+    return line.size() > 0;
+  }
+
+  /**
+   * Quotes a word of the client command line for the shell parser of the
+   * daemon.
+   */
+  private static String quote(String word)
+  {
+    if( ! word.isEmpty() && word.chars().noneMatch(c -> Character.isWhitespace(c)
+      || c == '"' || c == '\'' || c == '\\'))
+    {
+      return word;
+    }
+    return "\"" + word.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+}
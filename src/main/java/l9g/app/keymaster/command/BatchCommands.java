@@ -0,0 +1,161 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import l9g.app.keymaster.service.DaemonService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.shell.command.annotation.Command;
+import org.springframework.shell.command.annotation.Option;
+
+/**
+ * Runs many commands in one process: scripts and the daemon.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@RequiredArgsConstructor
+@Command(group = "Batch")
+@Slf4j
+public class BatchCommands
+{
+  private final CommandLineExecutor commandLineExecutor;
+
+  private final DaemonService daemonService;
+
+  @Command(description = "run the commands of a file or stdin (-), one per line, # starts a comment")
+  public void script(
+    @Option(description = "command file, - for stdin", required = true) String file,
+    @Option(description = "run the remaining commands after a failure",
+            defaultValue = "false") boolean continueOnError)
+    throws Throwable
+  {
+    log.debug("script {}", file);
+    long start = System.nanoTime();
+    int lineNumber = 0;
+    int executed = 0;
+    int failed = 0;
+
+    try(BufferedReader reader = "-".equals(file)
+      ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+      : Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        lineNumber++;
+        String command = line.strip();
+        if(command.isEmpty() || command.startsWith("#"))
+        {
+          continue;
+        }
+
+        executed++;
+        try
+        {
+          Object result = commandLineExecutor.execute(commandLineExecutor.parse(command));
+          if(result != null)
+          {
+            System.out.println(result);
+          }
+        }
+        catch(Exception e)
+        {
+          failed++;
+          String message = "line " + lineNumber + ": " + command + ": " + e.getMessage();
+          if( ! continueOnError)
+          {
+            throw new IllegalStateException(message, e);
+          }
+          System.err.println(message);
+        }
+      }
+    }
+    finally
+    {
+      System.out.flush();
+      log.info("script {}: {} commands, {} failed, {}ms", file, executed, failed,
+        (System.nanoTime() - start) / 1_000_000);
+    }
+
+    if(failed > 0)
+    {
+      // non zero exit status in non-interactive mode
+      throw new IllegalStateException(failed + " of " + executed + " commands failed");
+    }
+  }
+
+  @Command(description = "start the daemon on a Unix domain socket")
+  public String daemonStart(
+    @Option(description = "socket file, default keycloak.daemon.socket") String socket,
+    @Option(description = "wait until the daemon is stopped, for running keymaster as a service",
+            defaultValue = "false") boolean foreground)
+    throws Throwable
+  {
+    DaemonService.DaemonStatus status = daemonService.start(
+      (socket != null) ? Path.of(socket) : null, line ->
+    {
+      List<String> words = commandLineExecutor.parse(line);
+      if(words.isEmpty())
+      {
+        return null;
+      }
+      if("daemon-start".equals(words.get(0)))
+      {
+        throw new IllegalArgumentException("daemon already running");
+      }
+      return commandLineExecutor.execute(words);
+    });
+
+    if(foreground)
+    {
+      System.out.println("daemon listening on " + status.socket());
+      daemonService.awaitStop();
+      return "daemon stopped";
+    }
+    return "daemon listening on " + status.socket();
+  }
+
+  @Command(description = "show the daemon status")
+  public String daemonStatus()
+  {
+    DaemonService.DaemonStatus status = daemonService.status();
+    if(status == null)
+    {
+      return "daemon not running";
+    }
+    return String.format("""
+      Socket        : %s
+      Started       : %s
+      Connections   : %d
+      Commands      : %d
+      Failures      : %d
+      """, status.socket(), status.started(), status.connections(),
+      status.commands(), status.failures());
+  }
+
+  @Command(description = "stop the daemon")
+  public String daemonStop()
+  {
+    return daemonService.stop() ? "daemon stopped" : "daemon not running";
+  }
+
+}
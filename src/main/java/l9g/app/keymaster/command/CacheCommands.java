@@ -0,0 +1,64 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import l9g.app.keymaster.service.CacheRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.shell.command.annotation.Command;
+import org.springframework.shell.command.annotation.Option;
+
+/**
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@RequiredArgsConstructor
+@Command(group = "Cache")
+@Slf4j
+public class CacheCommands
+{
+  private final CacheRegistry cacheRegistry;
+
+  @Command(description = "show cache statistics")
+  public String cacheStats()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-16s %8s %8s %10s %10s %7s %10s %10s%n",
+      "cache", "size", "max", "hits", "misses", "ratio", "evictions", "ttl"));
+
+    cacheRegistry.caches().forEach(entry ->
+    {
+      CacheStats stats = entry.cache().stats();
+      sb.append(String.format("%-16s %8d %8d %10d %10d %6.1f%% %10d %10s%n",
+        entry.name(), entry.cache().estimatedSize(), entry.maxSize(),
+        stats.hitCount(), stats.missCount(), stats.hitRate() * 100.0,
+        stats.evictionCount(), entry.ttl()));
+    });
+
+    return sb.toString();
+  }
+
+  @Command(description = "clear one or all caches")
+  public String cacheClear(
+    @Option(description = "cache name, all caches if omitted") String name)
+  {
+    log.debug("cacheClear {}", name);
+    int cleared = cacheRegistry.clear(name);
+    return cleared + " cache(s) cleared";
+  }
+
+}
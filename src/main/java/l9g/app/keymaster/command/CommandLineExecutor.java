@@ -0,0 +1,114 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jline.reader.Parser;
+import org.jline.terminal.Terminal;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.shell.command.CommandCatalog;
+import org.springframework.shell.command.CommandExecution;
+import org.springframework.shell.command.CommandExecution.CommandExecutionHandlerMethodArgumentResolvers;
+import org.springframework.shell.config.ShellConversionServiceSupplier;
+import org.springframework.shell.context.ShellContext;
+import org.springframework.shell.jline.ExtendedDefaultParser;
+import org.springframework.stereotype.Component;
+
+/**
+ * Executes shell command lines outside of the interactive shell, used by
+ * background jobs, scripts and the daemon. The line is parsed like in
+ * the shell (quotes, escapes), the command runs on the calling thread.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CommandLineExecutor
+{
+  private final ObjectProvider<CommandCatalog> commandCatalog;
+
+  private final ObjectProvider<CommandExecutionHandlerMethodArgumentResolvers> argumentResolvers;
+
+  private final ObjectProvider<ShellConversionServiceSupplier> conversionService;
+
+  private final Terminal terminal;
+
+  private final ShellContext shellContext;
+
+  /**
+   * Splits a command line into words, empty for a blank line.
+   */
+  public List<String> parse(String line)
+  {
+    return new ExtendedDefaultParser()
+      .parse(line, line.length(), Parser.ParseContext.ACCEPT_LINE)
+      .words().stream().filter(word -> ! word.isEmpty()).toList();
+  }
+
+  /**
+   * Executes a parsed command line.
+   *
+   * @return result of the command, <code>null</code> for void commands
+   *
+   * @throws Exception thrown by the command, or IllegalArgumentException
+   *                   for an unknown command or invalid options
+   */
+  public Object execute(List<String> words)
+    throws Exception
+  {
+    log.debug("execute {}", words);
+    if(words.isEmpty())
+    {
+      throw new IllegalArgumentException("empty command");
+    }
+    // commands may consist of several words
+    Set<String> commands = commandCatalog.getObject().getRegistrations().keySet();
+    boolean known = false;
+    for(int i = 1; i <= words.size() &&  ! known; i++)
+    {
+      known = commands.contains(String.join(" ", words.subList(0, i)));
+    }
+    if( ! known)
+    {
+      throw new IllegalArgumentException("unknown command '" + words.get(0) + "'");
+    }
+
+    CommandExecution execution = CommandExecution.of(
+      argumentResolvers.getObject().getResolvers(), null, terminal, shellContext,
+      conversionService.getObject().get(), commandCatalog.getObject());
+
+    try
+    {
+      return execution.evaluate(words.toArray(String[] :: new));
+    }
+    catch(CommandExecution.CommandParserExceptionsException e)
+    {
+      throw new IllegalArgumentException(e.getParserExceptions().stream()
+        .map(Throwable :: getMessage).collect(Collectors.joining(", ")));
+    }
+    catch(CommandExecution.CommandExecutionException e)
+    {
+      // report the failure of the command itself
+      throw (e.getCause() instanceof Exception cause) ? cause : e;
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import java.util.List;
+import l9g.app.keymaster.service.JobService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.shell.command.annotation.Command;
+import org.springframework.shell.command.annotation.Option;
+
+/**
+ * Runs shell commands as background jobs.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@RequiredArgsConstructor
+@Command(group = "Jobs")
+@Slf4j
+public class JobCommands
+{
+  private final JobService jobService;
+
+  private final CommandLineExecutor commandLineExecutor;
+
+  @Command(description = "run a command as background job, e.g. --command \"delete-users --filter 'enabled=false' --dryRun false\"")
+  public String jobStart(
+    @Option(required = true, description = "command line") String command)
+  {
+    log.debug("jobStart {}", command);
+    List<String> words = commandLineExecutor.parse(command);
+
+    if(words.isEmpty())
+    {
+      return "empty command";
+    }
+    if(words.get(0).startsWith("job"))
+    {
+      return "job commands can not run as job";
+    }
+
+    JobService.JobStatus status = jobService.submit(command,
+      () -> commandLineExecutor.execute(words));
+    return "job " + status.id() + " started";
+  }
+
+  @Command(description = "list background jobs")
+  public String jobs()
+  {
+    List<JobService.JobStatus> jobs = jobService.jobs();
+    if(jobs.isEmpty())
+    {
+      return "no jobs";
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%4s %-9s %10s %10s %10s  %s%n",
+      "id", "state", "runtime", "items", "items/s", "command"));
+    jobs.forEach(job -> sb.append(String.format("%4d %-9s %10s %10d %10.1f  %s%n",
+      job.id(), job.state(), formatRuntime(job), job.items(), job.itemsPerSecond(),
+      job.name())));
+    return sb.toString();
+  }
+
+  @Command(description = "show status and progress of a background job")
+  public String jobStatus(
+    @Option(required = true, description = "job id") int id)
+  {
+    JobService.JobStatus job = jobService.status(id);
+    if(job == null)
+    {
+      return "unknown job " + id;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("job      : ").append(job.id()).append('\n');
+    sb.append("command  : ").append(job.name()).append('\n');
+    sb.append("state    : ").append(job.state()).append('\n');
+    sb.append("started  : ").append(job.started()).append('\n');
+    sb.append("runtime  : ").append(formatRuntime(job)).append('\n');
+    sb.append("phase    : ").append(job.phase()).append('\n');
+    sb.append("progress : ").append(job.items());
+    if(job.total() > 0)
+    {
+      sb.append(String.format(" / %d (%.1f%%)", job.total(),
+        Math.min(100.0, job.items() * 100.0 / job.total())));
+    }
+    sb.append(String.format(", %.1f items/s%n", job.itemsPerSecond()));
+    if(job.message() != null)
+    {
+      sb.append("message  : ").append(job.message()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Command(description = "cancel a running background job")
+  public String jobCancel(
+    @Option(required = true, description = "job id") int id)
+  {
+    return jobService.cancel(id)
+      ? "job " + id + " cancelled" : "job " + id + " is unknown or not running";
+  }
+
+  @Command(description = "show the output of a background job")
+  public String jobOutput(
+    @Option(required = true, description = "job id") int id,
+    @Option(description = "only the last lines", defaultValue = "0") int tail)
+  {
+    String output = jobService.output(id);
+    if(output == null)
+    {
+      return "unknown job " + id;
+    }
+    if(tail > 0)
+    {
+      String[] lines = output.split("\n", -1);
+      int end = (output.endsWith("\n")) ? lines.length - 1 : lines.length;
+      output = String.join("\n", List.of(lines).subList(Math.max(0, end - tail), end));
+    }
+    return output;
+  }
+
+  private static String formatRuntime(JobService.JobStatus job)
+  {
+    long millis = job.runtime().toMillis();
+    return String.format("%d:%02d.%01d", millis / 60000, (millis / 1000) % 60,
+      (millis / 100) % 10);
+  }
+
+}
@@ -15,7 +15,18 @@
  */
 package l9g.app.keymaster.command;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import l9g.app.keymaster.service.ExportService;
+import l9g.app.keymaster.service.KeycloakRequestExecutor;
 import l9g.app.keymaster.service.KeycloakService;
+import l9g.app.keymaster.service.OutputFormat;
+import l9g.app.keymaster.service.RealmDiffService;
+import l9g.app.keymaster.service.RealmRegistry;
+import l9g.app.keymaster.service.RealmSyncService;
+import l9g.app.keymaster.service.TokenService;
+import l9g.app.keymaster.service.UserImportService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.shell.command.annotation.Command;
@@ -33,56 +44,343 @@ public class KeycloakCommands
 
   private final KeycloakService keycloakService;
 
+  private final RealmSyncService realmSyncService;
+
+  private final UserImportService userImportService;
+
+  private final TokenService tokenService;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final ExportService exportService;
+
+  private final RealmDiffService realmDiffService;
+
+  private final RealmRegistry realmRegistry;
+
   @Command(description = "delete realm roles with null description")
-  public void deleteRealmRolesWithNullDescription()
+  public void deleteRealmRolesWithNullDescription(
+    @Option(description = "only list the matching roles", defaultValue = "false") boolean dryRun,
+    @Option(description = "concurrent deletions", defaultValue = "4") int parallelism,
+    @Option(description = "deletions per second, 0 = unlimited", defaultValue = "0") double rate)
+    throws Throwable
+  {
+    keycloakService.deleteRealmRolesWithNullDescription(dryRun, parallelism, rate);
+  }
+
+  @Command(description = "delete users matching a filter (dry run by default)")
+  public void deleteUsers(
+    @Option(description = "filter, e.g. \"enabled=false, username~^test-\"",
+            required = true) String filter,
+    @Option(description = "only list the matching users", defaultValue = "true") boolean dryRun,
+    @Option(description = "concurrent deletions", defaultValue = "4") int parallelism,
+    @Option(description = "deletions per second, 0 = unlimited", defaultValue = "0") double rate)
     throws Throwable
   {
-    keycloakService.deleteRealmRolesWithNullDescription();
+    keycloakService.deleteUsers(filter, dryRun, parallelism, rate);
+  }
+
+  @Command(description = "find users with a query, pushed down to the server where possible")
+  public void findUsers(
+    @Option(description = "query, e.g. \"enabled=false, attr.department=it, created<2024-01-01\"",
+            required = true) String query,
+    @Option(description = "maximum number of users, 0 = unlimited", defaultValue = "0") int limit,
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
+    throws Throwable
+  {
+    keycloakService.findUsers(query, limit, OutputFormat.of(format));
   }
 
   @Command(description = "users in selected realm")
-  public void listUsers()
+  public void listUsers(
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
     throws Throwable
   {
     log.debug("listUsers");
-    keycloakService.listUsers(true);
+    keycloakService.listUsers(OutputFormat.of(format));
+  }
+
+  @Command(description = "measure user page throughput for different concurrency levels")
+  public void benchUserPages(
+    @Option(description = "pages per run", defaultValue = "20") int pages,
+    @Option(description = "comma separated concurrency levels",
+            defaultValue = "1,2,4,8,16") String concurrency)
+    throws Throwable
+  {
+    keycloakService.benchUserPages(pages, Arrays.stream(concurrency.split(","))
+      .map(String :: trim).map(Integer :: valueOf).toList());
+  }
+
+  @Command(description = "export the realm to gzip compressed JSON lines or a columnar file")
+  public String export(
+    @Option(description = "export file, *.kmc is columnar, otherwise *.jsonl.gz",
+            required = true) Path file,
+    @Option(description = "jsonl or columnar, default from the file name") String format,
+    @Option(description = "comma separated: users, role-mappings, realm-roles, client-roles, clients, client-scopes",
+            defaultValue = "users,role-mappings,realm-roles,client-roles,clients,client-scopes") String entities)
+    throws Throwable
+  {
+    List<String> entityList = Arrays.stream(entities.split(","))
+      .map(String :: trim).filter(entity -> ! entity.isEmpty()).toList();
+    for(String entity : entityList)
+    {
+      if( ! ExportService.ENTITIES.contains(entity))
+      {
+        return "unknown entity '" + entity + "', expected one of " + ExportService.ENTITIES;
+      }
+    }
+
+    ExportService.ExportResult result = exportService.export(file,
+      (format != null) ? ExportService.Format.valueOf(format.toUpperCase())
+        : ExportService.Format.of(file), entityList);
+
+    StringBuilder sb = new StringBuilder();
+    result.counts().forEach((entity, count) ->
+      sb.append(String.format("%-14s: %d%n", entity, count)));
+    sb.append(String.format("""
+      Format        : %s
+      File          : %s
+      Bytes         : %d
+      Time          : %.3fs
+      Entities/s    : %.1f
+      """, result.format(), result.file(), result.bytes(),
+      result.millis() / 1000.0, result.entitiesPerSecond()));
+    return sb.toString();
+  }
+
+  @Command(description = "compare the selected realm with another realm or a snapshot file")
+  public String diffRealm(
+    @Option(description = "name of the other realm") String other,
+    @Option(description = "snapshot file, used instead of another realm") Path snapshot,
+    @Option(description = "write the changes as JSON lines to this file") Path file,
+    @Option(description = "print only the summary", defaultValue = "false") boolean summary)
+    throws Throwable
+  {
+    if(other == null && snapshot == null)
+    {
+      return "Either --other or --snapshot is required.";
+    }
+
+    RealmDiffService.DiffResult result = realmDiffService.diff(other, snapshot);
+    if(file != null)
+    {
+      realmDiffService.write(result, file);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("--- ").append(result.left()).append('\n');
+    sb.append("+++ ").append(result.right()).append('\n');
+    long added = 0;
+    long removed = 0;
+    long changed = 0;
+    for(RealmDiffService.Change change : result.changes())
+    {
+      switch(change.op())
+      {
+        case "+" -> added++;
+        case "-" -> removed++;
+        default -> changed++;
+      }
+      if( ! summary)
+      {
+        sb.append(change.op()).append(' ').append(change.type()).append(' ')
+          .append(change.key()).append('\n');
+        if("~".equals(change.op()))
+        {
+          change.fields().forEach((field, values) ->
+            sb.append("    ").append(field).append(": ").append(values.get(0))
+              .append(" -> ").append(values.get(1)).append('\n'));
+        }
+      }
+    }
+    sb.append(String.format("""
+      Compared      : %s
+      Entities      : %d / %d
+      Added         : %d
+      Removed       : %d
+      Changed       : %d
+      Load time     : %.3fs
+      Diff time     : %.3fs
+      """, String.join(", ", result.types()), result.leftEntities(),
+      result.rightEntities(), added, removed, changed,
+      result.loadMillis() / 1000.0, result.diffMillis() / 1000.0));
+    if(file != null)
+    {
+      sb.append("changes written to ").append(file).append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Command(description = "show request executor statistics (retries, throttling, concurrency)")
+  public String requestStats()
+  {
+    KeycloakRequestExecutor.RequestStats stats = requestExecutor.stats();
+    return String.format("""
+      Requests          : %d
+      Retries           : %d
+      Failures          : %d
+      Throttled         : %d
+      Concurrency limit : %d
+      In flight         : %d
+      """, stats.requests(), stats.retries(), stats.failures(),
+      stats.throttled(), stats.concurrencyLimit(), stats.inFlight());
+  }
+
+  @Command(description = "show access token refresh statistics")
+  public String tokenStats()
+  {
+    TokenService.TokenStats stats = tokenService.stats();
+    return String.format("""
+      Refreshes     : %d
+      Failures      : %d
+      Expires at    : %s
+      Last refresh  : %.1fms
+      Refresh p50   : %.1fms
+      Refresh p99   : %.1fms
+      """, stats.refreshes(), stats.failures(), stats.expiresAt(),
+      stats.lastMillis(), stats.p50Millis(), stats.p99Millis());
+  }
+
+  @Command(description = "show size and footprint of the compact user store")
+  public void userStoreStats(
+    @Option(description = "reload users", defaultValue = "false") boolean reload)
+    throws Throwable
+  {
+    keycloakService.userStoreStats(reload);
+  }
+
+  @Command(description = "apply admin events since the last sync to the caches")
+  public String syncRealm()
+    throws Throwable
+  {
+    realmRegistry.requireDefaultRealm("sync-realm");
+    RealmSyncService.SyncResult result = realmSyncService.sync();
+    return result.events() + " admin events, " + result.applied()
+      + " applied in " + result.millis() + "ms";
+  }
+
+  @Command(description = "import users from a CSV or JSONL file")
+  public String importUsers(
+    @Option(description = "CSV or JSONL file", required = true) Path file,
+    @Option(description = "result file (CSV), default <file>.result.csv") Path resultFile,
+    @Option(description = "users per request", defaultValue = "100") int batchSize,
+    @Option(description = "batches in flight", defaultValue = "4") int concurrency,
+    @Option(description = "use partialImport, otherwise one create per user",
+            defaultValue = "true") boolean partialImport,
+    @Option(description = "SKIP, OVERWRITE or FAIL existing users",
+            defaultValue = "SKIP") String ifExists)
+    throws Throwable
+  {
+    Path resultPath = (resultFile != null) ? resultFile : Path.of(file + ".result.csv");
+    UserImportService.ImportResult result = userImportService.importUsers(
+      file, resultPath, batchSize, concurrency, partialImport, ifExists);
+
+    return String.format(
+      "%d records: %d added, %d skipped, %d overwritten, %d failed%n"
+      + "%.1fs, %.1f users/s, latency p50 %.1fms, p99 %.1fms%n"
+      + "results written to %s",
+      result.records(), result.added(), result.skipped(), result.overwritten(),
+      result.failed(), result.millis() / 1000.0, result.usersPerSecond(),
+      result.p50Millis(), result.p99Millis(), resultPath);
   }
 
   @Command(description = "list realms")
-  public void listRealms()
+  public void listRealms(
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
     throws Throwable
   {
-    keycloakService.realms();
+    keycloakService.realms(OutputFormat.of(format));
+  }
+
+  @Command(description = "select the realm of the Keycloak commands")
+  public String useRealm(
+    @Option(description = "realm name, default keycloak.realm") String realm)
+  {
+    String name = (realm != null) ? realm : realmRegistry.getDefaultRealm();
+    try
+    {
+      realmRegistry.use(name);
+    }
+    catch(IllegalArgumentException e)
+    {
+      return e.getMessage();
+    }
+    return "using realm '" + name + "'";
+  }
+
+  @Command(description = "search users by username in the selected realm or in all realms")
+  public void searchUser(
+    @Option(description = "username or part of it", required = true) String userName,
+    @Option(description = "exact match", defaultValue = "false") boolean exact,
+    @Option(description = "search all realms in parallel", defaultValue = "false") boolean allRealms,
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
+    throws Throwable
+  {
+    keycloakService.searchUser(userName, exact, allRealms, OutputFormat.of(format));
   }
 
   @Command(description = "list client scopes")
-  public void listClientScopes()
+  public void listClientScopes(
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
     throws Throwable
   {
-    keycloakService.clientScopes();
+    keycloakService.clientScopes(OutputFormat.of(format));
   }
 
   @Command(description = "list realm roles")
-  public void listRealmRoles()
+  public void listRealmRoles(
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
     throws Throwable
   {
-    keycloakService.listRealmRoles();
+    keycloakService.listRealmRoles(OutputFormat.of(format));
+  }
+
+  @Command(description = "show all roles a role expands to through nested composites")
+  public void roleExpand(
+    @Option(description = "role name", required = true) String role,
+    @Option(description = "clientId of a client role") String client,
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
+    throws Throwable
+  {
+    keycloakService.roleExpand(role, client, OutputFormat.of(format));
+  }
+
+  @Command(description = "show all roles effectively granting a role")
+  public void roleGrantedBy(
+    @Option(description = "role name", required = true) String role,
+    @Option(description = "clientId of a client role") String client,
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
+    throws Throwable
+  {
+    keycloakService.roleGrantedBy(role, client, OutputFormat.of(format));
   }
 
   @Command(description = "list all clients")
-  public void listClients()
+  public void listClients(
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
     throws Throwable
   {
     log.debug("list all clients");
-    keycloakService.listClients();
+    keycloakService.listClients(OutputFormat.of(format));
   }
   
   @Command(description = "list client roles")
   public void listClientRoles(
-    @Option(description = "client name", required = true) String clientName)
+    @Option(description = "client name", required = true) String clientName,
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
     throws Throwable
   {
-    keycloakService.listClientRoles(clientName);
+    keycloakService.listClientRoles(clientName, OutputFormat.of(format));
   }
 
   @Command(description = "show user details by username")
@@ -98,7 +396,25 @@ public class KeycloakCommands
     @Option(description = "User ID (UID)", required = true) String userId)
     throws Throwable
   {
-    keycloakService.showUser(userId);
+    keycloakService.showUserById(userId);
+  }
+
+  @Command(description = "show the role mappings of a user, one tab separated line per role")
+  public void showUserAccess(
+    @Option(description = "username") String userName,
+    @Option(description = "user id, used instead of the username") String userId,
+    @Option(description = "include roles granted through composite roles",
+            defaultValue = "true") boolean effective,
+    @Option(description = "output format: text, table, json or csv",
+            defaultValue = "text") String format)
+    throws Throwable
+  {
+    if(userName == null && userId == null)
+    {
+      System.out.println("Either --userName or --userId is required.");
+      return;
+    }
+    keycloakService.showUserAccess(userName, userId, effective, OutputFormat.of(format));
   }
 
   @Command(description = "show client details")
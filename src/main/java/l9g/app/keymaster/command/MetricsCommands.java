@@ -0,0 +1,118 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.shell.command.annotation.Command;
+import org.springframework.shell.command.annotation.Option;
+
+/**
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@RequiredArgsConstructor
+@Command(group = "Metrics")
+@Slf4j
+public class MetricsCommands
+{
+  private final PrometheusMeterRegistry meterRegistry;
+
+  @Command(description = "show request latencies per endpoint and cache hit ratios")
+  public String metrics(
+    @Option(description = "print the Prometheus text format instead",
+            defaultValue = "false") boolean prometheus,
+    @Option(description = "write the Prometheus text format to this file") Path file)
+    throws Throwable
+  {
+    log.debug("metrics prometheus={}, file={}", prometheus, file);
+
+    if(file != null)
+    {
+      Files.writeString(file, meterRegistry.scrape(), StandardCharsets.UTF_8);
+      return "metrics written to " + file;
+    }
+
+    if(prometheus)
+    {
+      return meterRegistry.scrape();
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-26s %6s %8s %9s %9s %9s %9s%n",
+      "endpoint", "status", "count", "mean[ms]", "p50[ms]", "p95[ms]", "p99[ms]"));
+
+    meterRegistry.find("keycloak.requests").timers().stream()
+      .sorted(Comparator.comparing((Timer timer) -> timer.getId().getTag("endpoint"))
+        .thenComparing(timer -> timer.getId().getTag("status")))
+      .forEach(timer ->
+      {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        sb.append(String.format("%-26s %6s %8d %9.1f %9.1f %9.1f %9.1f%n",
+          timer.getId().getTag("endpoint"), timer.getId().getTag("status"),
+          snapshot.count(), snapshot.mean(TimeUnit.MILLISECONDS),
+          percentile(snapshot, 0.5), percentile(snapshot, 0.95),
+          percentile(snapshot, 0.99)));
+      });
+
+    sb.append(String.format("%n%-26s %10s %10s %7s%n",
+      "cache", "hits", "misses", "ratio"));
+
+    meterRegistry.find("cache.gets").tag("result", "hit").functionCounters().stream()
+      .map(counter -> counter.getId().getTag("cache"))
+      .sorted()
+      .forEach(cache ->
+      {
+        double hits = count(cache, "hit");
+        double misses = count(cache, "miss");
+        double total = hits + misses;
+        sb.append(String.format("%-26s %10.0f %10.0f %6.1f%%%n", cache, hits,
+          misses, (total > 0) ? hits * 100.0 / total : 0.0));
+      });
+
+    return sb.toString();
+  }
+
+  private double count(String cache, String result)
+  {
+    FunctionCounter counter = meterRegistry.find("cache.gets")
+      .tag("cache", cache).tag("result", result).functionCounter();
+    return (counter != null) ? counter.count() : 0;
+  }
+
+  private static double percentile(HistogramSnapshot snapshot, double percentile)
+  {
+    for(ValueAtPercentile value : snapshot.percentileValues())
+    {
+      if(value.percentile() == percentile)
+      {
+        return value.value(TimeUnit.MILLISECONDS);
+      }
+    }
+    return 0;
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import l9g.app.keymaster.service.RealmRegistry;
+import l9g.app.keymaster.service.RealmSnapshotService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.shell.command.annotation.Command;
+
+/**
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@RequiredArgsConstructor
+@Command(group = "Snapshot")
+@Slf4j
+public class SnapshotCommands
+{
+  private final RealmSnapshotService realmSnapshotService;
+
+  private final RealmRegistry realmRegistry;
+
+  @Command(description = "reload realm state and write the local snapshot")
+  public String snapshotSave()
+    throws Throwable
+  {
+    log.debug("snapshotSave");
+    realmRegistry.requireDefaultRealm("snapshot-save");
+    long start = System.currentTimeMillis();
+    Path file = realmSnapshotService.refresh();
+    return "snapshot " + file + " written (" + Files.size(file) + " bytes) in "
+      + ((System.currentTimeMillis() - start) / 1000.0) + "s";
+  }
+
+  @Command(description = "load the local snapshot into the caches")
+  public String snapshotLoad()
+    throws Throwable
+  {
+    log.debug("snapshotLoad");
+    realmRegistry.requireDefaultRealm("snapshot-load");
+    Instant created = realmSnapshotService.load();
+    return (created == null)
+      ? "no usable snapshot " + realmSnapshotService.snapshotFile()
+      : "snapshot from " + created + " loaded in "
+      + realmSnapshotService.getLoadMillis() + "ms";
+  }
+
+  @Command(description = "show local snapshot information")
+  public String snapshotInfo()
+    throws Throwable
+  {
+    realmRegistry.requireDefaultRealm("snapshot-info");
+    Path file = realmSnapshotService.snapshotFile();
+    StringBuilder sb = new StringBuilder();
+    sb.append("File     : ").append(file).append('\n');
+    if(Files.isRegularFile(file))
+    {
+      sb.append("Size     : ").append(Files.size(file)).append(" bytes\n");
+      sb.append("Modified : ").append(Files.getLastModifiedTime(file)).append('\n');
+    }
+    else
+    {
+      sb.append("Size     : - (not found)\n");
+    }
+    sb.append("Loaded   : ").append(realmSnapshotService.getLoadedSnapshotTime());
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.command;
+
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import l9g.app.keymaster.stub.StubKeycloakServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.shell.command.annotation.Command;
+import org.springframework.shell.command.annotation.Option;
+
+/**
+ * Starts and stops a local stub Keycloak admin server, another keymaster
+ * instance or a load test can be pointed at it with
+ * --keycloak.base-url and --keycloak.realm.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Command(group = "Stub")
+@Slf4j
+public class StubCommands
+{
+  private StubKeycloakServer server;
+
+  @Command(description = "start a local stub Keycloak admin server with a synthetic realm")
+  public synchronized String stubStart(
+    @Option(description = "realm name", defaultValue = "stub") String realm,
+    @Option(description = "TCP port, 0 for a random port", defaultValue = "8089") int port,
+    @Option(description = "number of users", defaultValue = "10000") int users,
+    @Option(description = "number of realm roles", defaultValue = "500") int roles,
+    @Option(description = "number of clients", defaultValue = "50") int clients,
+    @Option(description = "latency of each admin request, e.g. 20ms", defaultValue = "0ms") Duration latency,
+    @Option(description = "share of admin requests failing with 503 (0.0 - 1.0)", defaultValue = "0.0") double errorRate)
+    throws Throwable
+  {
+    log.debug("stubStart realm={}, port={}, users={}, roles={}, clients={}, latency={}, errorRate={}",
+      realm, port, users, roles, clients, latency, errorRate);
+
+    if(server != null)
+    {
+      return "stub server already running at " + server.getBaseUrl();
+    }
+
+    server = new StubKeycloakServer(realm, port, users, roles, clients,
+      latency, errorRate);
+    return "stub server running at " + server.getBaseUrl()
+      + ", use --keycloak.base-url=" + server.getBaseUrl()
+      + " --keycloak.realm=" + realm;
+  }
+
+  @Command(description = "show the state of the local stub Keycloak admin server")
+  public synchronized String stubStatus()
+  {
+    if(server == null)
+    {
+      return "stub server not running";
+    }
+    return String.format("%s realm=%s users=%d requests=%d injected errors=%d",
+      server.getBaseUrl(), server.getRealm(), server.getNumberOfUsers(),
+      server.getRequests(), server.getInjectedErrors());
+  }
+
+  @PreDestroy
+  @Command(description = "stop the local stub Keycloak admin server")
+  public synchronized String stubStop()
+  {
+    if(server == null)
+    {
+      return "stub server not running";
+    }
+    server.close();
+    server = null;
+    return "stub server stopped";
+  }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.Form;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.representations.AccessTokenResponse;
+
+/**
+ * Attaches the access token to every request of the admin client.
+ *
+ * The token is kept in a volatile field, parallel workers read it
+ * without a lock. New tokens are granted from the token endpoint with
+ * the client credentials, not through the token manager of the admin
+ * client, which holds its monitor during the token request. A worker
+ * only waits for a refresh if the token has expired; while it is still
+ * valid one worker refreshes and the others keep using it.
+ * {@link TokenService} refreshes the token in the background before that.
+ *
+ * The admin client is built with a fixed authorization, its bearer
+ * filter adds {@link #PLACEHOLDER}, which is replaced by this filter.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Slf4j
+public class AccessTokenFilter implements ClientRequestFilter, ClientResponseFilter
+{
+  public final static String PLACEHOLDER = "replaced-by-access-token-filter";
+
+  /**
+   * request property of the token request itself, no token is attached
+   */
+  private final static String TOKEN_REQUEST =
+    AccessTokenFilter.class.getName() + ".tokenRequest";
+
+  private final static String BEARER = "Bearer ";
+
+  /**
+   * a token valid for less than this is refreshed by the next worker
+   */
+  private final static long MIN_VALIDITY_MILLIS = 5000;
+
+  public record Token(String value, long expiresAtMillis)
+  {
+    boolean expiresWithin(long millis)
+    {
+      return expiresAtMillis - millis <= System.currentTimeMillis();
+    }
+
+  }
+
+  private final WebTarget tokenEndpoint;
+
+  private final String clientId;
+
+  private final String clientSecret;
+
+  private final ReentrantLock refreshLock = new ReentrantLock();
+
+  private final LatencyRecorder refreshLatencies = new LatencyRecorder();
+
+  private final AtomicLong refreshes = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private final AtomicLong totalRefreshNanos = new AtomicLong();
+
+  private volatile Token token;
+
+  private volatile long lastRefreshNanos;
+
+  AccessTokenFilter(WebTarget serverTarget, String realm, String clientId,
+    String clientSecret)
+  {
+    this.tokenEndpoint = serverTarget.path("realms").path(realm)
+      .path("protocol/openid-connect/token");
+    this.clientId = clientId;
+    this.clientSecret = clientSecret;
+  }
+
+  @Override
+  public void filter(ClientRequestContext request)
+  {
+    if(request.getProperty(TOKEN_REQUEST) == null)
+    {
+      request.getHeaders().putSingle(HttpHeaders.AUTHORIZATION,
+        BEARER + accessToken());
+    }
+  }
+
+  /**
+   * A rejected token is not used again, the next request grants a new
+   * one.
+   */
+  @Override
+  public void filter(ClientRequestContext request, ClientResponseContext response)
+  {
+    Token current = token;
+    if(response.getStatus() == Response.Status.UNAUTHORIZED.getStatusCode()
+      && request.getProperty(TOKEN_REQUEST) == null && current != null
+      && (BEARER + current.value()).equals(
+        request.getHeaderString(HttpHeaders.AUTHORIZATION)))
+    {
+      log.debug("access token rejected");
+      token = null;
+    }
+  }
+
+  /**
+   * The current access token, refreshed if it is about to expire.
+   */
+  public String accessToken()
+  {
+    Token current = token;
+    if(current != null && ! current.expiresWithin(MIN_VALIDITY_MILLIS))
+    {
+      return current.value();
+    }
+
+    if(current != null && ! current.expiresWithin(0))
+    {
+      if( ! refreshLock.tryLock())
+      {
+        // still valid, another worker is refreshing it
+        return current.value();
+      }
+    }
+    else
+    {
+      refreshLock.lock();
+    }
+
+    try
+    {
+      current = token;
+      if(current == null || current.expiresWithin(MIN_VALIDITY_MILLIS))
+      {
+        current = grant();
+      }
+      return current.value();
+    }
+    finally
+    {
+      refreshLock.unlock();
+    }
+  }
+
+  /**
+   * Grants a new token, the workers keep using the current one meanwhile.
+   */
+  public Token refresh()
+  {
+    refreshLock.lock();
+    try
+    {
+      return grant();
+    }
+    finally
+    {
+      refreshLock.unlock();
+    }
+  }
+
+  private Token grant()
+  {
+    long start = System.nanoTime();
+    long startMillis = System.currentTimeMillis();
+    try
+    {
+      Form form = new Form()
+        .param(OAuth2Constants.GRANT_TYPE, OAuth2Constants.CLIENT_CREDENTIALS)
+        .param(OAuth2Constants.CLIENT_ID, clientId)
+        .param(OAuth2Constants.CLIENT_SECRET, clientSecret);
+      AccessTokenResponse response = tokenEndpoint
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .property(TOKEN_REQUEST, Boolean.TRUE)
+        .post(Entity.form(form), AccessTokenResponse.class);
+      Token current = new Token(response.getToken(),
+        startMillis + response.getExpiresIn() * 1000L);
+      token = current;
+      refreshes.incrementAndGet();
+      return current;
+    }
+    catch(RuntimeException e)
+    {
+      failures.incrementAndGet();
+      throw e;
+    }
+    finally
+    {
+      lastRefreshNanos = System.nanoTime() - start;
+      totalRefreshNanos.addAndGet(lastRefreshNanos);
+      refreshLatencies.record(lastRefreshNanos);
+    }
+  }
+
+  public long refreshes()
+  {
+    return refreshes.get();
+  }
+
+  public long failures()
+  {
+    return failures.get();
+  }
+
+  /**
+   * Duration of all token requests, including the failed ones.
+   */
+  public double totalRefreshNanos()
+  {
+    return totalRefreshNanos.get();
+  }
+
+  public double lastRefreshMillis()
+  {
+    return lastRefreshNanos / 1_000_000.0;
+  }
+
+  public double refreshPercentileMillis(double percentile)
+  {
+    return refreshLatencies.percentileMillis(percentile);
+  }
+
+  /**
+   * @return null before the first token
+   */
+  public Instant expiresAt()
+  {
+    Token current = token;
+    return (current != null) ? Instant.ofEpochMilli(current.expiresAtMillis()) : null;
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * Deletes all items matching a filter predicate in parallel on virtual
+ * threads, with a degree of parallelism, an optional rate limit
+ * (deletions per second), a dry-run mode and a progress bar.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class BulkDeleteService
+{
+  public record BulkDeleteResult(List<String> deleted, List<String> failed,
+    boolean dryRun, long millis)
+  {
+  }
+
+  /**
+   * @param label       name of the items for output (e.g. "roles")
+   * @param items       candidates
+   * @param filter      selects the items to delete
+   * @param nameOf      display name of an item
+   * @param deleter     deletes one item, throws on failure
+   * @param dryRun      only list the matching items
+   * @param parallelism maximum number of concurrent deletions
+   * @param rate        maximum deletions per second, 0 for unlimited
+   */
+  public <T> BulkDeleteResult delete(String label, Stream<T> items,
+    Predicate<T> filter, Function<T, String> nameOf, Consumer<T> deleter,
+    boolean dryRun, int parallelism, double rate)
+    throws InterruptedException
+  {
+    long start = System.currentTimeMillis();
+    List<T> matched = items.filter(filter).toList();
+    log.info("{} {} matched (dryRun={}, parallelism={}, rate={})",
+      matched.size(), label, dryRun, parallelism, rate);
+
+    if(dryRun)
+    {
+      List<String> names = matched.stream().map(nameOf).toList();
+      names.forEach(name -> System.out.println("would delete " + name));
+      System.out.println(names.size() + " " + label + " would be deleted (dry run)");
+      return new BulkDeleteResult(names, List.of(), true,
+        System.currentTimeMillis() - start);
+    }
+
+    List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+    List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    Semaphore permits = new Semaphore(Math.max(1, parallelism));
+    RateLimiter rateLimiter = new RateLimiter(rate);
+    ProgressBar progressBar = new ProgressBar(System.out, "delete " + label, matched.size());
+
+    try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      for(T item : matched)
+      {
+        permits.acquire();
+        rateLimiter.acquire();
+        executor.submit(() ->
+        {
+          String name = nameOf.apply(item);
+          try
+          {
+            deleter.accept(item);
+            deleted.add(name);
+          }
+          catch(RuntimeException e)
+          {
+            log.error("delete {} failed: {}", name, e.getMessage());
+            failed.add(name + ": " + e.getMessage());
+          }
+          finally
+          {
+            progressBar.step();
+            permits.release();
+          }
+        });
+      }
+    }
+
+    progressBar.done();
+    failed.forEach(failure -> System.out.println("FAILED " + failure));
+    System.out.println(deleted.size() + " " + label + " deleted, "
+      + failed.size() + " failed");
+
+    return new BulkDeleteResult(List.copyOf(deleted), List.copyOf(failed), false,
+      System.currentTimeMillis() - start);
+  }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+/**
+ * Creates and keeps track of the named caches used by the services.
+ *
+ * Every cache has a time to live (expire after write), a maximum size
+ * (W-TinyLFU eviction) and records hit/miss statistics. Defaults are
+ * keycloak.cache.ttl and keycloak.cache.max-size, they can be
+ * overridden per cache with keycloak.cache.&lt;name&gt;.ttl and
+ * keycloak.cache.&lt;name&gt;.max-size. The statistics are published
+ * as cache.* meters tagged with the cache name.
+ *
+ * Caches of remote data are async caches, filled with {@link #load} and
+ * {@link #reload}: the value is loaded on the calling thread outside of
+ * the cache map, concurrent callers of the same key wait for that load.
+ * A request never holds a lock of the map, so other keys are not blocked
+ * and virtual threads are not pinned.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class CacheRegistry
+{
+  public record CacheEntry(String name, Duration ttl, long maxSize,
+    Cache<?, ?> cache)
+  {
+  }
+
+  private final static String PREFIX = "keycloak.cache.";
+
+  private final Environment environment;
+
+  private final MeterRegistry meterRegistry;
+
+  private final Duration defaultTtl;
+
+  private final long defaultMaxSize;
+
+  private final Map<String, CacheEntry> caches;
+
+  private final String suffix;
+
+  @Autowired
+  public CacheRegistry(Environment environment, MeterRegistry meterRegistry,
+    @Value("${keycloak.cache.ttl:10m}") Duration defaultTtl,
+    @Value("${keycloak.cache.max-size:10000}") long defaultMaxSize)
+  {
+    this.environment = environment;
+    this.meterRegistry = meterRegistry;
+    this.defaultTtl = defaultTtl;
+    this.defaultMaxSize = defaultMaxSize;
+    this.caches = new TreeMap<>();
+    this.suffix = "";
+  }
+
+  private CacheRegistry(CacheRegistry parent, String realm)
+  {
+    this.environment = parent.environment;
+    this.meterRegistry = parent.meterRegistry;
+    this.defaultTtl = parent.defaultTtl;
+    this.defaultMaxSize = parent.defaultMaxSize;
+    this.caches = parent.caches;
+    this.suffix = "@" + realm;
+  }
+
+  /**
+   * Registry for the services of another realm. Its caches are named
+   * &lt;name&gt;@&lt;realm&gt; and listed together with the caches of
+   * this registry, ttl and max-size are configured by &lt;name&gt;.
+   */
+  public CacheRegistry forRealm(String realm)
+  {
+    return new CacheRegistry(this, realm);
+  }
+
+  public <K, V> Cache<K, V> create(String name)
+  {
+    Cache<K, V> cache = builder(name).build();
+    register(name, cache);
+    return cache;
+  }
+
+  /**
+   * Cache for values loaded with {@link #load} and {@link #reload}.
+   */
+  public <K, V> AsyncCache<K, V> createAsync(String name)
+  {
+    AsyncCache<K, V> cache = builder(name).buildAsync();
+    register(name, cache.synchronous());
+    return cache;
+  }
+
+  /**
+   * Value of the key, loaded on the calling thread if it is missing.
+   * Concurrent callers of the key wait for the same load. Failed loads
+   * and <code>null</code> values are not cached.
+   */
+  public static <K, V> V load(AsyncCache<K, V> cache, K key, Function<K, V> loader)
+  {
+    CompletableFuture<V> created = new CompletableFuture<>();
+    CompletableFuture<V> future = cache.get(key, (k, executor) -> created);
+    return (future == created) ? complete(created, key, loader) : join(future);
+  }
+
+  /**
+   * Loads the value of the key again, callers arriving meanwhile wait for
+   * the new value.
+   */
+  public static <K, V> V reload(AsyncCache<K, V> cache, K key, Function<K, V> loader)
+  {
+    CompletableFuture<V> created = new CompletableFuture<>();
+    cache.put(key, created);
+    return complete(created, key, loader);
+  }
+
+  private static <K, V> V complete(CompletableFuture<V> future, K key,
+    Function<K, V> loader)
+  {
+    try
+    {
+      V value = loader.apply(key);
+      future.complete(value);
+      return value;
+    }
+    catch(RuntimeException | Error e)
+    {
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private static <V> V join(CompletableFuture<V> future)
+  {
+    try
+    {
+      return future.join();
+    }
+    catch(CompletionException e)
+    {
+      if(e.getCause() instanceof RuntimeException cause)
+      {
+        throw cause;
+      }
+      if(e.getCause() instanceof Error cause)
+      {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  private Caffeine<Object, Object> builder(String name)
+  {
+    Duration ttl = ttl(name);
+    long maxSize = maxSize(name);
+    log.debug("create cache {} ttl={} maxSize={}", name, ttl, maxSize);
+    return Caffeine.newBuilder()
+      .expireAfterWrite(ttl)
+      .maximumSize(maxSize)
+      .recordStats()
+      // maintenance runs on common pool workers, which may be created by a job
+      .executor(task -> ForkJoinPool.commonPool().execute(JobService.detached(task)));
+  }
+
+  private void register(String name, Cache<?, ?> cache)
+  {
+    synchronized(caches)
+    {
+      CaffeineCacheMetrics.monitor(meterRegistry, cache, name + suffix);
+      caches.put(name + suffix, new CacheEntry(name + suffix, ttl(name),
+        maxSize(name), cache));
+    }
+  }
+
+  private Duration ttl(String name)
+  {
+    return environment.getProperty(PREFIX + name + ".ttl", Duration.class, defaultTtl);
+  }
+
+  private long maxSize(String name)
+  {
+    return environment.getProperty(PREFIX + name + ".max-size", Long.class, defaultMaxSize);
+  }
+
+  public Collection<CacheEntry> caches()
+  {
+    synchronized(caches)
+    {
+      return List.copyOf(caches.values());
+    }
+  }
+
+  /**
+   * @param name cache name or <code>null</code> for all caches
+   * @return number of cleared caches
+   */
+  public int clear(String name)
+  {
+    int cleared = 0;
+    for(CacheEntry entry : caches())
+    {
+      if(name == null || name.equals(entry.name()))
+      {
+        entry.cache().invalidateAll();
+        entry.cache().cleanUp();
+        cleared++;
+      }
+    }
+    return cleared;
+  }
+
+}
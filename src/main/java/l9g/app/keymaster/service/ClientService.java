@@ -15,11 +15,9 @@
  */
 package l9g.app.keymaster.service;
 
-import java.util.ArrayList;
+import com.github.benmanes.caffeine.cache.AsyncCache;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.keycloak.admin.client.Keycloak;
 import org.keycloak.representations.idm.ClientRepresentation;
@@ -37,30 +35,33 @@ public class ClientService
 
   private final Keycloak keycloak;
 
-  private final Map<String, ClientRepresentation> clientRepresentationMap = new HashMap<>();
+  private final KeycloakRequestExecutor requestExecutor;
 
-  private boolean allCollected;
+  private final AsyncCache<String, ClientRepresentation> clientCache;
 
-  public ClientService(KeycloakBuilderService keycloakConnection)
+  private final AsyncCache<String, List<ClientRepresentation>> clientListCache;
+
+  public ClientService(KeycloakBuilderService keycloakConnection,
+    CacheRegistry cacheRegistry, KeycloakRequestExecutor requestExecutor)
   {
     realm = keycloakConnection.getRealm();
     keycloak = keycloakConnection.getKeycloak();
+    this.requestExecutor = requestExecutor;
+    clientCache = cacheRegistry.createAsync("clients");
+    clientListCache = cacheRegistry.createAsync("client-list");
   }
 
-  public synchronized Collection<ClientRepresentation> clients(boolean reload)
+  /**
+   * All clients of the realm. Concurrent callers share one request,
+   * cache hits never block.
+   */
+  public Collection<ClientRepresentation> clients(boolean reload)
   {
-    if(reload ||  ! allCollected)
-    {
-      clientRepresentationMap.clear();
-      keycloak.realm(realm).clients().findAll()
-        .forEach(client -> clientRepresentationMap.put(client.getId(), client));
-      if( ! clientRepresentationMap.isEmpty())
-      {
-        allCollected = true;
-      }
-    }
+    List<ClientRepresentation> clients = reload
+      ? CacheRegistry.reload(clientListCache, realm, key -> loadClients())
+      : CacheRegistry.load(clientListCache, realm, key -> loadClients());
 
-    return clientRepresentationMap.values();
+    return (clients != null) ? clients : List.of();
   }
 
   public Collection<ClientRepresentation> clients()
@@ -68,17 +69,38 @@ public class ClientService
     return clients(false);
   }
 
-  public synchronized ClientRepresentation clientById(String clientId)
+  public ClientRepresentation clientById(String clientId)
+  {
+    return CacheRegistry.load(clientCache, clientId,
+      key -> requestExecutor.execute("clients.get",
+        () -> keycloak.realm(realm).clients().get(key).toRepresentation()));
+  }
+
+  /**
+   * Drops a changed client and the client list from the caches.
+   */
+  public void invalidate(String clientId)
   {
-    ClientRepresentation clientRepresentation = clientRepresentationMap.get(clientId);
+    clientCache.synchronous().invalidate(clientId);
+    clientListCache.synchronous().invalidate(realm);
+  }
 
-    if(clientRepresentation == null)
-    {
-      clientRepresentation = keycloak.realm(realm).clients().get(clientId).toRepresentation();
-      clientRepresentationMap.put(clientId, clientRepresentation);
-    }
+  public void seed(List<ClientRepresentation> clients)
+  {
+    clients.forEach(client -> clientCache.synchronous().put(client.getId(), client));
+    clientListCache.synchronous().put(realm, clients);
+  }
 
-    return clientRepresentation;
+  /**
+   * @return the clients or <code>null</code> (not cached) if none found
+   */
+  private List<ClientRepresentation> loadClients()
+  {
+    log.debug("load clients");
+    List<ClientRepresentation> clients = requestExecutor.execute("clients.list",
+      () -> keycloak.realm(realm).clients().findAll());
+    clients.forEach(client -> clientCache.synchronous().put(client.getId(), client));
+    return clients.isEmpty() ? null : clients;
   }
 
 }
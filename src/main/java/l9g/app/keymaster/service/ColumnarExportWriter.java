@@ -0,0 +1,303 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Columnar export file with dictionary encoded row groups, similar to
+ * the layout of Parquet.
+ *
+ * <pre>
+ * file      := "KMC1" rowGroup* footer footerLength:int32 "KMC1"
+ * rowGroup  := column*                       (in schema order)
+ * column    := rawLength:varint length:varint deflate(chunk)
+ * chunk     := dictSize:varint (len:varint utf8)* code:varint*
+ * footer    := schemas:varint (entity:str columns:varint name:str*)*
+ *              groups:varint (schema:varint rows:varint offset:varint)*
+ * str       := len:varint utf8
+ * </pre>
+ *
+ * Every row group holds up to 8192 rows of one entity type and carries
+ * its own dictionary per column, so groups can be read independently.
+ * Codes are dictionary index + 1, 0 is <code>null</code>. Repeated role
+ * and client names cost one or two bytes per row before compression,
+ * every column chunk is deflate compressed on its own.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class ColumnarExportWriter implements ExportWriter
+{
+  final static byte[] MAGIC = "KMC1".getBytes(StandardCharsets.US_ASCII);
+
+  private final static int ROW_GROUP_SIZE = 8192;
+
+  private final static int BUFFER_SIZE = 1 << 16;
+
+  private record RowGroup(int schema, int rows, long offset)
+  {
+  }
+
+  private static class Schema
+  {
+    final int index;
+
+    final String[] columns;
+
+    final List<Object[]> rows = new ArrayList<>(ROW_GROUP_SIZE);
+
+    Schema(int index, List<String> columns)
+    {
+      this.index = index;
+      this.columns = columns.toArray(String[] :: new);
+    }
+
+  }
+
+  private final FileChannel channel;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private final Map<String, Schema> schemas = new LinkedHashMap<>();
+
+  private final List<RowGroup> rowGroups = new ArrayList<>();
+
+  private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(BUFFER_SIZE);
+
+  private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(BUFFER_SIZE);
+
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+  private long flushedBytes;
+
+  ColumnarExportWriter(Path file)
+    throws IOException
+  {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    put(MAGIC);
+  }
+
+  @Override
+  public void schema(String entity, List<String> columns)
+  {
+    schemas.putIfAbsent(entity, new Schema(schemas.size(), columns));
+  }
+
+  @Override
+  public void row(String entity, Object... values)
+    throws IOException
+  {
+    Schema schema = schemas.get(entity);
+    schema.rows.add(values);
+    if(schema.rows.size() == ROW_GROUP_SIZE)
+    {
+      writeRowGroup(schema);
+    }
+  }
+
+  private void writeRowGroup(Schema schema)
+    throws IOException
+  {
+    rowGroups.add(new RowGroup(schema.index, schema.rows.size(), position()));
+
+    for(int column = 0; column < schema.columns.length; column++)
+    {
+      Map<String, Integer> dictionary = new HashMap<>();
+      List<String> values = new ArrayList<>();
+      int[] codes = new int[schema.rows.size()];
+      for(int row = 0; row < codes.length; row++)
+      {
+        Object value = schema.rows.get(row)[column];
+        if(value != null)
+        {
+          String string = value.toString();
+          Integer code = dictionary.get(string);
+          if(code == null)
+          {
+            values.add(string);
+            code = values.size();
+            dictionary.put(string, code);
+          }
+          codes[row] = code;
+        }
+      }
+
+      chunk.reset();
+      writeVarint(chunk, values.size());
+      for(String value : values)
+      {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(chunk, bytes.length);
+        chunk.write(bytes);
+      }
+      for(int code : codes)
+      {
+        writeVarint(chunk, code);
+      }
+      writeChunk();
+    }
+
+    schema.rows.clear();
+  }
+
+  private void writeChunk()
+    throws IOException
+  {
+    deflater.reset();
+    deflater.setInput(chunk.toByteArray());
+    deflater.finish();
+    compressed.reset();
+    byte[] block = new byte[BUFFER_SIZE];
+    while( ! deflater.finished())
+    {
+      compressed.write(block, 0, deflater.deflate(block));
+    }
+
+    putVarint(chunk.size());
+    putVarint(compressed.size());
+    put(compressed.toByteArray());
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value)
+  {
+    while((value & ~0x7fL) != 0)
+    {
+      out.write((int)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int)value);
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    try(channel)
+    {
+      for(Schema schema : schemas.values())
+      {
+        if( ! schema.rows.isEmpty())
+        {
+          writeRowGroup(schema);
+        }
+      }
+
+      long footerStart = position();
+      putVarint(schemas.size());
+      for(Map.Entry<String, Schema> entry : schemas.entrySet())
+      {
+        putString(entry.getKey());
+        putVarint(entry.getValue().columns.length);
+        for(String column : entry.getValue().columns)
+        {
+          putString(column);
+        }
+      }
+      putVarint(rowGroups.size());
+      for(RowGroup rowGroup : rowGroups)
+      {
+        putVarint(rowGroup.schema());
+        putVarint(rowGroup.rows());
+        putVarint(rowGroup.offset());
+      }
+
+      ensure(4 + MAGIC.length);
+      buffer.putInt((int)(position() - footerStart));
+      put(MAGIC);
+      flush();
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+
+  private long position()
+  {
+    return flushedBytes + buffer.position();
+  }
+
+  private void putVarint(long value)
+    throws IOException
+  {
+    ensure(10);
+    while((value & ~0x7fL) != 0)
+    {
+      buffer.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte)value);
+  }
+
+  private void putString(String value)
+    throws IOException
+  {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    putVarint(bytes.length);
+    put(bytes);
+  }
+
+  private void put(byte[] bytes)
+    throws IOException
+  {
+    if(bytes.length > BUFFER_SIZE)
+    {
+      flush();
+      ByteBuffer large = ByteBuffer.wrap(bytes);
+      while(large.hasRemaining())
+      {
+        flushedBytes += channel.write(large);
+      }
+      return;
+    }
+    ensure(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private void ensure(int bytes)
+    throws IOException
+  {
+    if(buffer.remaining() < bytes)
+    {
+      flush();
+    }
+  }
+
+  private void flush()
+    throws IOException
+  {
+    buffer.flip();
+    while(buffer.hasRemaining())
+    {
+      flushedBytes += channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+}
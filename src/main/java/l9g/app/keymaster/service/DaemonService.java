@@ -0,0 +1,492 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import l9g.app.keymaster.client.DaemonClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Local daemon executing command lines sent over a Unix domain socket,
+ * so many short commands (cron jobs, scripts) share one warm process
+ * with its caches, connection pool and token.
+ *
+ * The socket is only accessible by the owner. Up to
+ * keycloak.daemon.max-clients connections are served in parallel, the
+ * commands of a connection run one after the other. The output of a
+ * command is sent to its connection, its error output as status lines,
+ * followed by a final status line, see {@link DaemonClient}. The selected realm (use-realm) is shared by all
+ * connections.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class DaemonService
+{
+  private final static int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Executes one command line, returns the result to print.
+   */
+  @FunctionalInterface
+  public interface CommandHandler
+  {
+    Object execute(String line)
+      throws Exception;
+  }
+
+  public record DaemonStatus(Path socket, Instant started, int connections,
+    long commands, long failures)
+  {
+  }
+
+  /**
+   * Remembers the last byte, the status line always starts on a new
+   * line. A lock instead of synchronized, a virtual thread blocked in a
+   * socket write must not pin its carrier.
+   */
+  private static class ResponseStream extends OutputStream
+  {
+    private final OutputStream out;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ByteArrayOutputStream errorLine = new ByteArrayOutputStream();
+
+    private int lastByte = '\n';
+
+    ResponseStream(OutputStream out)
+    {
+      this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      lock.lock();
+      try
+      {
+        out.write(b);
+        lastByte = b;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+      throws IOException
+    {
+      if(length == 0)
+      {
+        return;
+      }
+      lock.lock();
+      try
+      {
+        out.write(bytes, offset, length);
+        lastByte = bytes[offset + length - 1];
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Error output (System.err) of the commands, sent line by line as
+     * stderr status lines.
+     */
+    OutputStream errors()
+    {
+      return new OutputStream()
+      {
+        @Override
+        public void write(int b)
+          throws IOException
+        {
+          writeError(new byte[]
+          {
+            (byte)b
+          }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+          throws IOException
+        {
+          writeError(bytes, offset, length);
+        }
+
+      };
+    }
+
+    private void writeError(byte[] bytes, int offset, int length)
+      throws IOException
+    {
+      lock.lock();
+      try
+      {
+        for(int i = offset; i < offset + length; i++)
+        {
+          if(bytes[i] == '\n')
+          {
+            sendErrorLine();
+          }
+          else
+          {
+            errorLine.write(bytes[i]);
+          }
+        }
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    private void sendErrorLine()
+      throws IOException
+    {
+      String line = errorLine.toString(StandardCharsets.UTF_8);
+      errorLine.reset();
+      writeStatus(DaemonClient.STDERR + (line.endsWith("\r")
+        ? line.substring(0, line.length() - 1) : line));
+    }
+
+    /**
+     * Final status line of a command, a pending error line is sent first.
+     */
+    void status(String status)
+      throws IOException
+    {
+      lock.lock();
+      try
+      {
+        if(errorLine.size() > 0)
+        {
+          sendErrorLine();
+        }
+        writeStatus(status);
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    private void writeStatus(String status)
+      throws IOException
+    {
+      if(lastByte != '\n')
+      {
+        out.write('\n');
+      }
+      out.write((DaemonClient.STATUS_PREFIX + status + "\n")
+        .getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      lastByte = '\n';
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    {
+      lock.lock();
+      try
+      {
+        out.flush();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+  }
+
+  private final Path defaultSocket;
+
+  private final AtomicInteger connections = new AtomicInteger();
+
+  private final AtomicLong commands = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private ServerSocketChannel server;
+
+  private final Semaphore clientPermits;
+
+  private ExecutorService executor;
+
+  private Path socket;
+
+  private Instant started;
+
+  private volatile CountDownLatch stopped = new CountDownLatch(0);
+
+  public DaemonService(
+    @Value("${keycloak.daemon.socket:}") String socket,
+    @Value("${keycloak.daemon.max-clients:4}") int maxClients)
+  {
+    this.defaultSocket = socket.isBlank() ? DaemonClient.defaultSocket() : Path.of(socket);
+    this.clientPermits = new Semaphore(Math.max(1, maxClients));
+  }
+
+  /**
+   * Binds the socket and starts accepting connections.
+   *
+   * @param socket socket file, keycloak.daemon.socket if <code>null</code>
+   *
+   * @throws IllegalStateException if a daemon is already running
+   */
+  public synchronized DaemonStatus start(Path socket, CommandHandler handler)
+    throws IOException
+  {
+    if(server != null)
+    {
+      throw new IllegalStateException("daemon already running at " + this.socket);
+    }
+
+    Path path = (socket != null) ? socket : defaultSocket;
+    if(Files.exists(path))
+    {
+      try
+      {
+        SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+        throw new IllegalStateException("another daemon is running at " + path);
+      }
+      catch(IOException e)
+      {
+        // socket file of a previous run
+        Files.delete(path);
+      }
+    }
+
+    Path directory = path.toAbsolutePath().getParent();
+    if(directory != null && ! Files.isDirectory(directory))
+    {
+      // only accessible by the owner before the socket is bound
+      try
+      {
+        Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
+          PosixFilePermissions.fromString("rwx------")));
+      }
+      catch(UnsupportedOperationException e)
+      {
+        log.warn("can not restrict the permissions of {}", directory);
+        Files.createDirectories(directory);
+      }
+    }
+
+    server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(path));
+    try
+    {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+    }
+    catch(UnsupportedOperationException e)
+    {
+      log.warn("can not restrict the permissions of {}", path);
+    }
+
+    this.socket = path;
+    started = Instant.now();
+    stopped = new CountDownLatch(1);
+    executor = Executors.newVirtualThreadPerTaskExecutor();
+    ServerSocketChannel acceptChannel = server;
+    ExecutorService connectionExecutor = executor;
+    // daemon-start may run as a job, the connections must not write into it
+    Thread.ofPlatform().name("daemon-accept").daemon().start(JobService.detached(
+      () -> accept(acceptChannel, connectionExecutor, handler)));
+    log.info("daemon listening on {}", path);
+    return status();
+  }
+
+  /**
+   * @return false if the daemon is not running
+   */
+  public synchronized boolean stop()
+  {
+    if(server == null)
+    {
+      return false;
+    }
+
+    log.info("stop daemon on {}", socket);
+    try
+    {
+      server.close();
+      Files.deleteIfExists(socket);
+    }
+    catch(IOException e)
+    {
+      log.warn("closing daemon socket {} failed: {}", socket, e.getMessage());
+    }
+    // running commands are finished
+    executor.shutdown();
+    server = null;
+    stopped.countDown();
+    return true;
+  }
+
+  @PreDestroy
+  public void shutdown()
+  {
+    stop();
+  }
+
+  /**
+   * Waits until the daemon is stopped, returns at once if it is not
+   * running.
+   */
+  public void awaitStop()
+    throws InterruptedException
+  {
+    stopped.await();
+  }
+
+  /**
+   * @return status or <code>null</code> if the daemon is not running
+   */
+  public synchronized DaemonStatus status()
+  {
+    return (server == null) ? null : new DaemonStatus(socket, started,
+      connections.get(), commands.get(), failures.get());
+  }
+
+  private void accept(ServerSocketChannel channel, ExecutorService connectionExecutor,
+    CommandHandler handler)
+  {
+    try
+    {
+      while(true)
+      {
+        SocketChannel client = channel.accept();
+        connectionExecutor.execute(() -> serve(client, handler));
+      }
+    }
+    catch(ClosedChannelException e)
+    {
+      log.debug("daemon socket closed");
+    }
+    catch(IOException | RuntimeException e)
+    {
+      log.error("daemon accept failed", e);
+    }
+  }
+
+  private void serve(SocketChannel client, CommandHandler handler)
+  {
+    // up to max-clients connections are served, the others wait
+    clientPermits.acquireUninterruptibly();
+    try
+    {
+      serveConnection(client, handler);
+    }
+    finally
+    {
+      clientPermits.release();
+    }
+  }
+
+  private void serveConnection(SocketChannel client, CommandHandler handler)
+  {
+    connections.incrementAndGet();
+    log.debug("daemon connection opened");
+    try(client)
+    {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+        Channels.newInputStream(client), StandardCharsets.UTF_8));
+      ResponseStream response = new ResponseStream(Channels.newOutputStream(client));
+      String line;
+
+      while((line = reader.readLine()) != null)
+      {
+        String command = line.strip();
+        if(command.isEmpty() || command.startsWith("#"))
+        {
+          continue;
+        }
+
+        commands.incrementAndGet();
+        long start = System.nanoTime();
+        String status;
+        try
+        {
+          JobService.redirect(response, response.errors(), () ->
+          {
+            Object result = handler.execute(command);
+            if(result != null)
+            {
+              System.out.println(result);
+            }
+            return null;
+          });
+          status = String.format("ok %dms", (System.nanoTime() - start) / 1_000_000);
+        }
+        catch(Exception e)
+        {
+          failures.incrementAndGet();
+          log.debug("daemon command '{}' failed", command, e);
+          String message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+          status = "error " + message.lines().findFirst().orElse("");
+        }
+        response.status(status);
+      }
+    }
+    catch(IOException e)
+    {
+      log.debug("daemon connection failed: {}", e.getMessage());
+    }
+    finally
+    {
+      connections.decrementAndGet();
+      log.debug("daemon connection closed");
+    }
+  }
+
+}
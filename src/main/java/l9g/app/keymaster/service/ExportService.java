@@ -0,0 +1,315 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.ClientMappingsRepresentation;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.ClientScopeRepresentation;
+import org.keycloak.representations.idm.MappingsRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Streams the realm selected with use-realm into an export file.
+ *
+ * Users are written while the pages are loaded, the direct role
+ * mappings of up to keycloak.users.concurrency users are requested
+ * concurrently and written in user order. No list of all users or
+ * mappings is held in memory.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class ExportService
+{
+  public enum Format
+  {
+    JSONL, COLUMNAR;
+
+    /**
+     * Format from the file name, *.kmc is columnar, everything else
+     * gzip compressed JSON lines.
+     */
+    public static Format of(Path file)
+    {
+      return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".kmc")
+        ? COLUMNAR : JSONL;
+    }
+
+  }
+
+  public final static Set<String> ENTITIES = Set.of(
+    "users", "role-mappings", "realm-roles", "client-roles", "clients",
+    "client-scopes");
+
+  public record ExportResult(Path file, Format format, Map<String, Long> counts,
+    long entities, long bytes, long millis, double entitiesPerSecond)
+  {
+  }
+
+  private final Keycloak keycloak;
+
+  private final RealmRegistry realmRegistry;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final int concurrency;
+
+  public ExportService(KeycloakBuilderService keycloakConnection,
+    RealmRegistry realmRegistry, KeycloakRequestExecutor requestExecutor,
+    @Value("${keycloak.users.concurrency:8}") int concurrency)
+  {
+    keycloak = keycloakConnection.getKeycloak();
+    this.realmRegistry = realmRegistry;
+    this.requestExecutor = requestExecutor;
+    this.concurrency = Math.max(1, concurrency);
+  }
+
+  /**
+   * @param entities subset of {@link #ENTITIES}
+   */
+  public ExportResult export(Path file, Format format, Collection<String> entities)
+    throws IOException, InterruptedException
+  {
+    // the realm is kept, even if another realm is selected meanwhile
+    RealmRegistry.RealmServices services = realmRegistry.current();
+    log.debug("export {} of realm {} as {}: {}", file, services.realm(), format, entities);
+    long start = System.nanoTime();
+    Map<String, Long> counts = new LinkedHashMap<>();
+
+    if(file.getParent() != null)
+    {
+      Files.createDirectories(file.getParent());
+    }
+
+    try(ExportWriter writer = (format == Format.COLUMNAR)
+      ? new ColumnarExportWriter(file) : new JsonlExportWriter(file))
+    {
+      if(entities.contains("clients"))
+      {
+        exportClients(services, writer, counts);
+      }
+      if(entities.contains("client-scopes"))
+      {
+        exportClientScopes(services, writer, counts);
+      }
+      if(entities.contains("realm-roles"))
+      {
+        exportRealmRoles(services, writer, counts);
+      }
+      if(entities.contains("client-roles"))
+      {
+        exportClientRoles(services, writer, counts);
+      }
+      if(entities.contains("users") || entities.contains("role-mappings"))
+      {
+        exportUsers(services, writer, counts, entities.contains("users"),
+          entities.contains("role-mappings"));
+      }
+    }
+
+    long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+    long total = counts.values().stream().mapToLong(Long :: longValue).sum();
+    ExportResult result = new ExportResult(file, format, counts, total,
+      Files.size(file), millis, total * 1000.0 / millis);
+    log.info("export of realm {} to {}: {} entities, {} bytes in {}ms",
+      services.realm(), file, total, result.bytes(), millis);
+    return result;
+  }
+
+  private void exportClients(RealmRegistry.RealmServices services,
+    ExportWriter writer, Map<String, Long> counts)
+    throws IOException
+  {
+    writer.schema("client", List.of("id", "clientId", "name", "enabled",
+      "protocol", "publicClient", "rootUrl"));
+    for(ClientRepresentation client : services.clientService().clients())
+    {
+      writer.row("client", client.getId(), client.getClientId(), client.getName(),
+        client.isEnabled(), client.getProtocol(), client.isPublicClient(),
+        client.getRootUrl());
+      counts.merge("clients", 1L, Long :: sum);
+    }
+  }
+
+  private void exportClientScopes(RealmRegistry.RealmServices services,
+    ExportWriter writer, Map<String, Long> counts)
+    throws IOException
+  {
+    writer.schema("client-scope", List.of("id", "name", "protocol", "description"));
+    for(ClientScopeRepresentation scope : requestExecutor.execute("client-scopes.list",
+      () -> keycloak.realm(services.realm()).clientScopes().findAll()))
+    {
+      writer.row("client-scope", scope.getId(), scope.getName(),
+        scope.getProtocol(), scope.getDescription());
+      counts.merge("client-scopes", 1L, Long :: sum);
+    }
+  }
+
+  private void exportRealmRoles(RealmRegistry.RealmServices services,
+    ExportWriter writer, Map<String, Long> counts)
+    throws IOException
+  {
+    writer.schema("realm-role", List.of("id", "name", "description", "composite"));
+    for(RoleRepresentation role : services.realmRoleService().roles())
+    {
+      writer.row("realm-role", role.getId(), role.getName(),
+        role.getDescription(), role.isComposite());
+      counts.merge("realm-roles", 1L, Long :: sum);
+    }
+  }
+
+  private void exportClientRoles(RealmRegistry.RealmServices services,
+    ExportWriter writer, Map<String, Long> counts)
+    throws IOException
+  {
+    writer.schema("client-role", List.of("clientId", "id", "name",
+      "description", "composite"));
+    for(ClientRepresentation client : services.clientService().clients())
+    {
+      for(RoleRepresentation role : requestExecutor.execute("client-roles.list",
+        () -> keycloak.realm(services.realm()).clients().get(client.getId()).roles().list()))
+      {
+        writer.row("client-role", client.getClientId(), role.getId(),
+          role.getName(), role.getDescription(), role.isComposite());
+        counts.merge("client-roles", 1L, Long :: sum);
+      }
+    }
+  }
+
+  private void exportUsers(RealmRegistry.RealmServices services,
+    ExportWriter writer, Map<String, Long> counts, boolean users,
+    boolean roleMappings)
+    throws IOException, InterruptedException
+  {
+    if(users)
+    {
+      writer.schema("user", List.of("id", "username", "firstName", "lastName",
+        "email", "enabled", "federationLink"));
+    }
+    if(roleMappings)
+    {
+      writer.schema("role-mapping", List.of("userId", "username", "clientId", "role"));
+    }
+
+    Deque<Future<MappingsRepresentation>> pending = new ArrayDeque<>();
+    Deque<UserRepresentation> pendingUsers = new ArrayDeque<>();
+
+    try(Stream<UserRepresentation> userStream = services.userService().stream(true);
+      ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      try
+      {
+        for(Iterator<UserRepresentation> iterator = userStream.iterator(); iterator.hasNext();)
+        {
+          UserRepresentation user = iterator.next();
+          if(users)
+          {
+            writer.row("user", user.getId(), user.getUsername(), user.getFirstName(),
+              user.getLastName(), user.getEmail(), user.isEnabled(),
+              user.getFederationLink());
+            counts.merge("users", 1L, Long :: sum);
+          }
+
+          if(roleMappings)
+          {
+            pendingUsers.add(user);
+            pending.add(executor.submit(() -> requestExecutor.execute(
+              "users.role-mappings",
+              () -> keycloak.realm(services.realm()).users().get(user.getId()).roles().getAll())));
+            if(pending.size() >= concurrency)
+            {
+              writeMappings(writer, counts, pendingUsers.poll(), pending.poll());
+            }
+          }
+        }
+
+        while( ! pending.isEmpty())
+        {
+          writeMappings(writer, counts, pendingUsers.poll(), pending.poll());
+        }
+      }
+      catch(IOException | InterruptedException | RuntimeException e)
+      {
+        // before the executor is closed, close() waits for all requests
+        pending.forEach(future -> future.cancel(true));
+        throw e;
+      }
+    }
+  }
+
+  private void writeMappings(ExportWriter writer, Map<String, Long> counts,
+    UserRepresentation user, Future<MappingsRepresentation> future)
+    throws IOException, InterruptedException
+  {
+    MappingsRepresentation mappings;
+    try
+    {
+      mappings = future.get();
+    }
+    catch(ExecutionException e)
+    {
+      throw (e.getCause() instanceof RuntimeException cause)
+        ? cause : new IllegalStateException(e.getCause());
+    }
+
+    if(mappings.getRealmMappings() != null)
+    {
+      for(RoleRepresentation role : mappings.getRealmMappings())
+      {
+        writer.row("role-mapping", user.getId(), user.getUsername(), null,
+          role.getName());
+        counts.merge("role-mappings", 1L, Long :: sum);
+      }
+    }
+
+    if(mappings.getClientMappings() != null)
+    {
+      for(ClientMappingsRepresentation client : mappings.getClientMappings().values())
+      {
+        for(RoleRepresentation role : client.getMappings())
+        {
+          writer.row("role-mapping", user.getId(), user.getUsername(),
+            client.getClient(), role.getName());
+          counts.merge("role-mappings", 1L, Long :: sum);
+        }
+      }
+    }
+  }
+
+}
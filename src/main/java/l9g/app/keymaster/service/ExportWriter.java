@@ -0,0 +1,44 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Row oriented sink of an export. Every entity type has a fixed list of
+ * columns, rows of different entity types may be interleaved.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+interface ExportWriter extends Closeable
+{
+  /**
+   * Declares the columns of an entity type, must be called before the
+   * first row of that type.
+   */
+  void schema(String entity, List<String> columns)
+    throws IOException;
+
+  /**
+   * @param values one value per column, String, Boolean or
+   *               <code>null</code>
+   */
+  void row(String entity, Object... values)
+    throws IOException;
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Background jobs, each running on its own virtual thread.
+ *
+ * System.out and System.err are replaced by streams that route the
+ * output of a job thread, and of all threads it starts, into the output
+ * buffer of the job; the last keycloak.jobs.max-output bytes are kept.
+ * Cancelling a job interrupts its thread, blocking socket I/O of virtual
+ * threads is interruptible, so running requests are aborted.
+ *
+ * Long running code reports its progress with {@link #phase} and
+ * {@link #step}, which do nothing outside of a job.
+ *
+ * Outside of a job the output and error output can be redirected with
+ * {@link #redirect}, e.g. to a daemon connection.
+ *
+ * The job and the redirection are inherited by every thread started
+ * from a job or a redirected thread, including long-lived threads of a
+ * pool created on first use. Such threads run their tasks through
+ * {@link #detached}, which clears the routing, otherwise they would keep
+ * writing to a finished job or a closed connection.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class JobService
+{
+  public enum State
+  {
+    RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  public record JobStatus(int id, String name, State state, Instant started,
+    Duration runtime, String phase, long items, long total,
+    double itemsPerSecond, String message)
+  {
+  }
+
+  private final static InheritableThreadLocal<Job> CURRENT_JOB =
+    new InheritableThreadLocal<>();
+
+  private final static InheritableThreadLocal<Redirect> REDIRECT =
+    new InheritableThreadLocal<>();
+
+  private record Redirect(OutputStream out, OutputStream err)
+  {
+  }
+
+  private final static int MAX_FINISHED_JOBS = 100;
+
+  private static class Job
+  {
+    final int id;
+
+    final String name;
+
+    final Instant started = Instant.now();
+
+    final AtomicLong items = new AtomicLong();
+
+    final int maxOutput;
+
+    volatile Thread thread;
+
+    volatile State state = State.RUNNING;
+
+    volatile Instant finished;
+
+    volatile long finishedNanos;
+
+    volatile String message;
+
+    volatile String phase = "items";
+
+    volatile long total;
+
+    volatile long phaseStartNanos = System.nanoTime();
+
+    private byte[] output = new byte[1024];
+
+    private int outputLength;
+
+    private boolean truncated;
+
+    Job(int id, String name, int maxOutput)
+    {
+      this.id = id;
+      this.name = name;
+      this.maxOutput = maxOutput;
+    }
+
+    synchronized void write(byte[] bytes, int offset, int length)
+    {
+      if(outputLength + length > maxOutput)
+      {
+        // keep the newest half
+        int keep = Math.min(outputLength, maxOutput / 2);
+        System.arraycopy(output, outputLength - keep, output, 0, keep);
+        outputLength = keep;
+        truncated = true;
+        if(length > maxOutput - keep)
+        {
+          offset += length - (maxOutput - keep);
+          length = maxOutput - keep;
+        }
+      }
+      if(outputLength + length > output.length)
+      {
+        output = Arrays.copyOf(output, Math.min(maxOutput,
+          Math.max(output.length * 2, outputLength + length)));
+      }
+      System.arraycopy(bytes, offset, output, outputLength, length);
+      outputLength += length;
+    }
+
+    synchronized String output()
+    {
+      return (truncated ? "[...]\n" : "")
+        + new String(output, 0, outputLength, StandardCharsets.UTF_8);
+    }
+
+    JobStatus status()
+    {
+      Instant end = (finished != null) ? finished : Instant.now();
+      double seconds = (((finished != null) ? finishedNanos : System.nanoTime())
+        - phaseStartNanos) / 1_000_000_000.0;
+      return new JobStatus(id, name, state, started, Duration.between(started, end),
+        phase, items.get(), total, (seconds > 0) ? items.get() / seconds : 0.0,
+        message);
+    }
+
+  }
+
+  /**
+   * Routes System.out (or System.err) of job threads into the job output
+   * and of redirected threads to their target.
+   */
+  private static class JobOutputStream extends OutputStream
+  {
+    private final PrintStream console;
+
+    private final boolean error;
+
+    JobOutputStream(PrintStream console, boolean error)
+    {
+      this.console = console;
+      this.error = error;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      write(new byte[]
+      {
+        (byte)b
+      }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+      throws IOException
+    {
+      Job job = CURRENT_JOB.get();
+      Redirect redirect = REDIRECT.get();
+      if(job != null)
+      {
+        job.write(bytes, offset, length);
+      }
+      else if(redirect != null)
+      {
+        (error ? redirect.err() : redirect.out()).write(bytes, offset, length);
+      }
+      else
+      {
+        console.write(bytes, offset, length);
+      }
+    }
+
+    @Override
+    public void flush()
+    {
+      console.flush();
+    }
+
+  }
+
+  private final AtomicInteger nextId = new AtomicInteger(1);
+
+  private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+
+  private final int maxOutput;
+
+  private final PrintStream console;
+
+  private final PrintStream errorConsole;
+
+  public JobService(@Value("${keycloak.jobs.max-output:1048576}") int maxOutput)
+  {
+    this.maxOutput = Math.max(1024, maxOutput);
+    console = System.out;
+    errorConsole = System.err;
+    System.setOut(new PrintStream(new JobOutputStream(console, false), true,
+      StandardCharsets.UTF_8));
+    System.setErr(new PrintStream(new JobOutputStream(errorConsole, true), true,
+      StandardCharsets.UTF_8));
+  }
+
+  @PreDestroy
+  public void shutdown()
+  {
+    jobs.values().stream().filter(job -> job.state == State.RUNNING)
+      .forEach(job -> job.thread.interrupt());
+    System.setOut(console);
+    System.setErr(errorConsole);
+  }
+
+  /**
+   * Starts a job on a new virtual thread. The string value of a non
+   * <code>null</code> result is appended to the output.
+   */
+  public JobStatus submit(String name, Callable<?> task)
+  {
+    Job job = new Job(nextId.getAndIncrement(), name, maxOutput);
+    removeFinishedJobs();
+
+    job.thread = Thread.ofVirtual().name("job-" + job.id).unstarted(() ->
+    {
+      CURRENT_JOB.set(job);
+      try
+      {
+        Object result = task.call();
+        if(result != null)
+        {
+          System.out.println(result);
+        }
+        finish(job, State.DONE, null);
+      }
+      catch(Throwable t)
+      {
+        log.debug("job {} failed", job.id, t);
+        finish(job, Thread.currentThread().isInterrupted()
+          ? State.CANCELLED : State.FAILED, t.toString());
+      }
+    });
+    job.thread.start();
+    // published with its thread, cancel and shutdown interrupt it
+    jobs.put(job.id, job);
+    log.info("job {} started: {}", job.id, name);
+    return job.status();
+  }
+
+  public List<JobStatus> jobs()
+  {
+    return jobs.values().stream().map(Job :: status).toList();
+  }
+
+  /**
+   * @return status or <code>null</code> for an unknown job
+   */
+  public JobStatus status(int id)
+  {
+    Job job = jobs.get(id);
+    return (job != null) ? job.status() : null;
+  }
+
+  /**
+   * @return output or <code>null</code> for an unknown job
+   */
+  public String output(int id)
+  {
+    Job job = jobs.get(id);
+    return (job != null) ? job.output() : null;
+  }
+
+  /**
+   * Interrupts a running job.
+   *
+   * @return false if the job is unknown or not running
+   */
+  public boolean cancel(int id)
+  {
+    Job job = jobs.get(id);
+    if(job == null || job.state != State.RUNNING)
+    {
+      return false;
+    }
+    log.info("cancel job {}", id);
+    job.state = State.CANCELLED;
+    job.thread.interrupt();
+    return true;
+  }
+
+  /**
+   * Starts a new progress phase of the current job, e.g. the deletion
+   * after loading the users.
+   *
+   * @param total expected number of items, 0 if unknown
+   */
+  public static void phase(String label, long total)
+  {
+    Job job = CURRENT_JOB.get();
+    if(job != null)
+    {
+      job.phase = label;
+      job.total = total;
+      job.items.set(0);
+      job.phaseStartNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Counts processed items of the current job.
+   */
+  public static void step(long items)
+  {
+    Job job = CURRENT_JOB.get();
+    if(job != null)
+    {
+      job.items.addAndGet(items);
+    }
+  }
+
+  /**
+   * Runs a task with System.out and System.err of the current thread, and
+   * of all threads it starts, written to out and err.
+   */
+  public static <T> T redirect(OutputStream out, OutputStream err, Callable<T> task)
+    throws Exception
+  {
+    Redirect previous = REDIRECT.get();
+    REDIRECT.set(new Redirect(out, err));
+    try
+    {
+      return task.call();
+    }
+    finally
+    {
+      REDIRECT.set(previous);
+    }
+  }
+
+  /**
+   * Wraps a task of a long-lived thread, it runs without the job and the
+   * redirection inherited from the thread that created the thread.
+   */
+  public static Runnable detached(Runnable task)
+  {
+    return () ->
+    {
+      CURRENT_JOB.remove();
+      REDIRECT.remove();
+      task.run();
+    };
+  }
+
+  public static boolean inJob()
+  {
+    return CURRENT_JOB.get() != null;
+  }
+
+  private static void finish(Job job, State state, String message)
+  {
+    // a cancelled job stays cancelled
+    if(job.state == State.RUNNING)
+    {
+      job.state = state;
+    }
+    job.message = message;
+    job.finishedNanos = System.nanoTime();
+    job.finished = Instant.now();
+    log.info("job {} {}", job.id, job.state.name().toLowerCase());
+  }
+
+  private void removeFinishedJobs()
+  {
+    List<Integer> finished = jobs.values().stream()
+      .filter(job -> job.state != State.RUNNING).map(job -> job.id).toList();
+    for(int i = 0; i < finished.size() - MAX_FINISHED_JOBS; i++)
+    {
+      jobs.remove(finished.get(i));
+    }
+  }
+
+}
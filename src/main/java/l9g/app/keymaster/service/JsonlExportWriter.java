@@ -0,0 +1,93 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compressed JSON lines, one object per row with the entity type
+ * in the field "type". <code>null</code> values are omitted.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class JsonlExportWriter implements ExportWriter
+{
+  private final static int BUFFER_SIZE = 1 << 16;
+
+  private final Map<String, String[]> schemas = new HashMap<>();
+
+  private final GZIPOutputStream out;
+
+  private final JsonGenerator generator;
+
+  JsonlExportWriter(Path file)
+    throws IOException
+  {
+    out = new GZIPOutputStream(Channels.newOutputStream(FileChannel.open(file,
+      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.WRITE)), BUFFER_SIZE);
+    generator = new JsonFactory().createGenerator(out);
+    // lines are separated by the newline written after each row
+    generator.setRootValueSeparator(null);
+  }
+
+  @Override
+  public void schema(String entity, List<String> columns)
+  {
+    schemas.put(entity, columns.toArray(String[] :: new));
+  }
+
+  @Override
+  public void row(String entity, Object... values)
+    throws IOException
+  {
+    String[] columns = schemas.get(entity);
+    generator.writeStartObject();
+    generator.writeStringField("type", entity);
+    for(int i = 0; i < columns.length; i++)
+    {
+      if(values[i] instanceof Boolean value)
+      {
+        generator.writeBooleanField(columns[i], value);
+      }
+      else if(values[i] != null)
+      {
+        generator.writeStringField(columns[i], values[i].toString());
+      }
+    }
+    generator.writeEndObject();
+    generator.writeRaw('\n');
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    // closes the gzip stream and the channel
+    generator.close();
+  }
+
+}
@@ -15,15 +15,30 @@
  */
 package l9g.app.keymaster.service;
 
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.client.Client;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.internal.ResteasyClientBuilderImpl;
+import org.jboss.resteasy.plugins.interceptors.AcceptEncodingGZIPFilter;
+import org.jboss.resteasy.plugins.interceptors.GZIPDecodingInterceptor;
 import org.keycloak.OAuth2Constants;
 import org.keycloak.admin.client.Keycloak;
 import org.keycloak.admin.client.KeycloakBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
+ * Builds the Keycloak admin client on a pooled RESTEasy/Apache HTTP
+ * client. Pool size, per route limit, timeouts, keep-alive (connection
+ * TTL) and gzip are configured with the keycloak.http.* properties.
+ *
+ * The access token is attached by an {@link AccessTokenFilter}, not by
+ * the token manager of the admin client.
  *
  * @author Thorsten Ludewig (t.ludewig@gmail.com)
  */
@@ -32,27 +47,94 @@ import org.springframework.stereotype.Service;
 @Getter
 public class KeycloakBuilderService
 {
+  private final String baseUrl;
+
   private final String realm;
 
   private final Keycloak keycloak;
 
+  private final AccessTokenFilter accessTokenFilter;
+
+  @Autowired
   public KeycloakBuilderService( 
     @Value("${keycloak.realm}") String realm,
     @Value("${keycloak.client-id}") String clientId,
     @Value("${keycloak.client-secret}") String clientSecret,
-    @Value("${keycloak.base-url}") String baseUrl
+    @Value("${keycloak.base-url}") String baseUrl,
+    @Value("${keycloak.trust-all-certificates:false}") boolean trustAllCertificates,
+    @Value("${keycloak.http.pool-size:32}") int poolSize,
+    @Value("${keycloak.http.max-per-route:32}") int maxPerRoute,
+    @Value("${keycloak.http.connect-timeout:5s}") Duration connectTimeout,
+    @Value("${keycloak.http.read-timeout:60s}") Duration readTimeout,
+    @Value("${keycloak.http.checkout-timeout:30s}") Duration checkoutTimeout,
+    @Value("${keycloak.http.keep-alive:5m}") Duration keepAlive,
+    @Value("${keycloak.http.gzip:true}") boolean gzip
   )
   {
     log.debug("initialize");
+    this.baseUrl = baseUrl;
     this.realm = realm;
-    
+
+    log.debug("http pool-size={}, max-per-route={}, connect-timeout={}, "
+      + "read-timeout={}, keep-alive={}, gzip={}", poolSize, maxPerRoute,
+      connectTimeout, readTimeout, keepAlive, gzip);
+
+    // not ClientBuilder.newBuilder(), another JAX-RS implementation may
+    // be on the classpath
+    ResteasyClientBuilder clientBuilder = new ResteasyClientBuilderImpl()
+      .connectionPoolSize(poolSize)
+      .maxPooledPerRoute(maxPerRoute)
+      .connectionCheckoutTimeout(checkoutTimeout.toMillis(), TimeUnit.MILLISECONDS)
+      .connectionTTL(keepAlive.toMillis(), TimeUnit.MILLISECONDS);
+    clientBuilder.connectTimeout(connectTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    clientBuilder.readTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+
+    if(trustAllCertificates)
+    {
+      log.warn("keycloak.trust-all-certificates is enabled, the certificate "
+        + "and host name of {} are not verified", baseUrl);
+      clientBuilder.disableTrustManager();
+    }
+
+    if(gzip)
+    {
+      clientBuilder.register(AcceptEncodingGZIPFilter.class);
+      clientBuilder.register(GZIPDecodingInterceptor.class);
+    }
+
+    Client client = clientBuilder.build();
+
+    // after the bearer filter of the admin client (default priority
+    // USER), which only adds the placeholder
+    this.accessTokenFilter = new AccessTokenFilter(client.target(baseUrl),
+      realm, clientId, clientSecret);
+    client.register(accessTokenFilter, Priorities.USER + 1);
+
     this.keycloak = KeycloakBuilder.builder()
       .serverUrl(baseUrl)
       .realm(realm)
       .clientId(clientId)
       .grantType(OAuth2Constants.CLIENT_CREDENTIALS)
-      .clientSecret(clientSecret)
+      .authorization(AccessTokenFilter.PLACEHOLDER)
+      .resteasyClient(client)
       .build();
   }
-  
+
+  private KeycloakBuilderService(KeycloakBuilderService parent, String realm)
+  {
+    this.baseUrl = parent.baseUrl;
+    this.realm = realm;
+    this.keycloak = parent.keycloak;
+    this.accessTokenFilter = parent.accessTokenFilter;
+  }
+
+  /**
+   * Connection for another realm on the same server, the admin client
+   * (connection pool, token) is shared.
+   */
+  public KeycloakBuilderService forRealm(String realm)
+  {
+    return realm.equals(this.realm) ? this : new KeycloakBuilderService(this, realm);
+  }
+
 }
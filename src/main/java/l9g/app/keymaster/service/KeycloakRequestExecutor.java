@@ -0,0 +1,367 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Central executor for all Keycloak REST calls.
+ *
+ * <ul>
+ * <li>token bucket rate limit (keycloak.requests.rate, 0 = unlimited)</li>
+ * <li>retries with exponential backoff and jitter on 429, 502, 503,
+ * 504 and I/O errors, a Retry-After header is honoured</li>
+ * <li>adaptive concurrency limit (AIMD): the limit grows by one per
+ * limit successful requests below the target latency and is reduced
+ * multiplicatively on throttling, server errors or slow responses</li>
+ * </ul>
+ *
+ * Calls returning a {@link Response} (create, delete, partial import)
+ * are retried on a retryable status as well, the response is closed
+ * before the retry.
+ *
+ * Requests which are not idempotent (POST: create, partial import) are
+ * run with {@link #executeOnce(String, Supplier)}. They are only retried
+ * on 429 and 503, where the server did not process the request. A
+ * repeated create whose first response was lost would answer 409.
+ *
+ * Every attempt is recorded in the timer keycloak.requests tagged with
+ * endpoint and status (HTTP status, "ok", "io" or "error").
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class KeycloakRequestExecutor
+{
+  public record RequestStats(long requests, long retries, long failures,
+    long throttled, int concurrencyLimit, int inFlight)
+  {
+  }
+
+  private final static double DECREASE_FACTOR = 0.7;
+
+  private final static String TIMER_NAME = "keycloak.requests";
+
+  private final RateLimiter rateLimiter;
+
+  private final int maxRetries;
+
+  private final Duration baseDelay;
+
+  private final Duration maxDelay;
+
+  private final int minConcurrency;
+
+  private final int maxConcurrency;
+
+  private final Duration targetLatency;
+
+  private final MeterRegistry meterRegistry;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition permitAvailable = lock.newCondition();
+
+  private double concurrencyLimit;
+
+  private int inFlight;
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicLong retries = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private final AtomicLong throttled = new AtomicLong();
+
+  public KeycloakRequestExecutor(MeterRegistry meterRegistry,
+    @Value("${keycloak.requests.rate:0}") double rate,
+    @Value("${keycloak.requests.burst:10}") double burst,
+    @Value("${keycloak.requests.max-retries:5}") int maxRetries,
+    @Value("${keycloak.requests.base-delay:200ms}") Duration baseDelay,
+    @Value("${keycloak.requests.max-delay:10s}") Duration maxDelay,
+    @Value("${keycloak.requests.min-concurrency:1}") int minConcurrency,
+    @Value("${keycloak.requests.max-concurrency:32}") int maxConcurrency,
+    @Value("${keycloak.requests.initial-concurrency:8}") int initialConcurrency,
+    @Value("${keycloak.requests.target-latency:1s}") Duration targetLatency)
+  {
+    this.meterRegistry = meterRegistry;
+    this.rateLimiter = new RateLimiter(rate, burst);
+    this.maxRetries = maxRetries;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.minConcurrency = Math.max(1, minConcurrency);
+    this.maxConcurrency = Math.max(this.minConcurrency, maxConcurrency);
+    this.targetLatency = targetLatency;
+    this.concurrencyLimit = Math.min(this.maxConcurrency,
+      Math.max(this.minConcurrency, initialConcurrency));
+  }
+
+  @PostConstruct
+  public void registerGauges()
+  {
+    Gauge.builder("keycloak.requests.concurrency.limit", this,
+      executor -> executor.stats().concurrencyLimit()).register(meterRegistry);
+    Gauge.builder("keycloak.requests.in.flight", this,
+      executor -> executor.stats().inFlight()).register(meterRegistry);
+  }
+
+  /**
+   * Executes a Keycloak request with rate limit, concurrency limit and
+   * retries.
+   *
+   * @param endpoint name of the endpoint for logging, e.g. "users.search"
+   * @param call     the request
+   * @throws IllegalStateException if the calling thread is interrupted
+   */
+  public <T> T execute(String endpoint, Supplier<T> call)
+  {
+    return execute(endpoint, call, true);
+  }
+
+  /**
+   * Executes a request which is not idempotent, it is only retried if the
+   * server rejected it (429, 503), never after an I/O error, 502 or 504.
+   *
+   * @see #execute(String, Supplier)
+   */
+  public <T> T executeOnce(String endpoint, Supplier<T> call)
+  {
+    return execute(endpoint, call, false);
+  }
+
+  private <T> T execute(String endpoint, Supplier<T> call, boolean idempotent)
+  {
+    int attempt = 0;
+    while(true)
+    {
+      Duration retryAfter;
+      acquire();
+      long start = System.nanoTime();
+      boolean overloaded = false;
+      String status = "ok";
+      try
+      {
+        requests.incrementAndGet();
+        T result = call.get();
+        if(result instanceof Response response)
+        {
+          status = Integer.toString(response.getStatus());
+        }
+        if(result instanceof Response response
+          && isRetryable(response.getStatus(), idempotent) && attempt < maxRetries)
+        {
+          overloaded = true;
+          retryAfter = retryAfter(response);
+          log.debug("{} answered {}", endpoint, response.getStatus());
+          response.close();
+        }
+        else
+        {
+          overloaded = System.nanoTime() - start > targetLatency.toNanos() * 2;
+          return result;
+        }
+      }
+      catch(WebApplicationException e)
+      {
+        status = Integer.toString(e.getResponse().getStatus());
+        if( ! isRetryable(e.getResponse().getStatus(), idempotent) || attempt >= maxRetries)
+        {
+          failures.incrementAndGet();
+          throw e;
+        }
+        overloaded = true;
+        retryAfter = retryAfter(e.getResponse());
+        log.debug("{} answered {}", endpoint, status);
+      }
+      catch(ProcessingException e)
+      {
+        status = "io";
+        // an interrupted (cancelled) request is not retried, a request
+        // which is not idempotent may have reached the server
+        if( ! idempotent || attempt >= maxRetries
+          || Thread.currentThread().isInterrupted())
+        {
+          failures.incrementAndGet();
+          throw e;
+        }
+        overloaded = true;
+        retryAfter = null;
+        log.debug("{} failed: {}", endpoint, e.getMessage());
+      }
+      catch(RuntimeException e)
+      {
+        status = "error";
+        failures.incrementAndGet();
+        throw e;
+      }
+      finally
+      {
+        release(overloaded);
+        Timer.builder(TIMER_NAME)
+          .tag("endpoint", endpoint)
+          .tag("status", status)
+          .publishPercentiles(0.5, 0.95, 0.99)
+          .register(meterRegistry)
+          .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+
+      attempt++;
+      retries.incrementAndGet();
+      meterRegistry.counter("keycloak.requests.retries", "endpoint", endpoint).increment();
+      Duration delay = (retryAfter != null) ? retryAfter : backoff(attempt);
+      log.warn("{} retry {}/{} in {}ms", endpoint, attempt, maxRetries, delay.toMillis());
+      sleep(delay);
+    }
+  }
+
+  public void run(String endpoint, Runnable call)
+  {
+    execute(endpoint, () ->
+    {
+      call.run();
+      return null;
+    });
+  }
+
+  public RequestStats stats()
+  {
+    lock.lock();
+    try
+    {
+      return new RequestStats(requests.get(), retries.get(), failures.get(),
+        throttled.get(), (int)concurrencyLimit, inFlight);
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void acquire()
+  {
+    try
+    {
+      rateLimiter.acquire();
+      lock.lockInterruptibly();
+      try
+      {
+        while(inFlight >= (int)concurrencyLimit)
+        {
+          permitAvailable.await();
+        }
+        inFlight++;
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted", e);
+    }
+  }
+
+  private void release(boolean overloaded)
+  {
+    lock.lock();
+    try
+    {
+      inFlight--;
+      if(overloaded)
+      {
+        throttled.incrementAndGet();
+        concurrencyLimit = Math.max(minConcurrency, concurrencyLimit * DECREASE_FACTOR);
+      }
+      else
+      {
+        concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1.0 / concurrencyLimit);
+      }
+      permitAvailable.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * exponential backoff with jitter (half of the delay is random)
+   */
+  private Duration backoff(int attempt)
+  {
+    long ceiling = Math.min(maxDelay.toMillis(),
+      baseDelay.toMillis() << Math.min(attempt - 1, 20));
+    return Duration.ofMillis(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+  }
+
+  private Duration retryAfter(Response response)
+  {
+    String value = response.getHeaderString("Retry-After");
+    if(value != null)
+    {
+      try
+      {
+        Duration retryAfter = Duration.ofSeconds(Long.parseLong(value.trim()));
+        return (retryAfter.compareTo(maxDelay) > 0) ? maxDelay : retryAfter;
+      }
+      catch(NumberFormatException e)
+      {
+        log.debug("ignoring Retry-After '{}'", value);
+      }
+    }
+    return null;
+  }
+
+  private static boolean isRetryable(int status, boolean idempotent)
+  {
+    return status == 429 || status == 503
+      || (idempotent && (status == 502 || status == 504));
+  }
+
+  private static void sleep(Duration delay)
+  {
+    try
+    {
+      Thread.sleep(delay);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted", e);
+    }
+  }
+
+}
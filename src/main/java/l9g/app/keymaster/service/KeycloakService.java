@@ -17,16 +17,17 @@ package l9g.app.keymaster.service;
 
 import l9g.app.keymaster.command.SystemCommands;
 import jakarta.ws.rs.core.Response;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
 import org.keycloak.admin.client.Keycloak;
-import org.keycloak.admin.client.resource.RoleResource;
 import org.keycloak.representations.idm.ClientRepresentation;
 import org.keycloak.representations.idm.ClientScopeRepresentation;
 import org.keycloak.representations.idm.RealmRepresentation;
@@ -42,38 +43,72 @@ import org.springframework.stereotype.Service;
 @Slf4j
 public class KeycloakService
 {
-  private final String realm;
-
   private final Keycloak keycloak;
 
-  private final ClientService clientService;
+  private final RealmRegistry realmRegistry;
 
-  private final RealmRoleService realmRoleService;
+  private final BulkDeleteService bulkDeleteService;
 
-  private final UserService userService;
+  private final KeycloakRequestExecutor requestExecutor;
 
   public KeycloakService(
     KeycloakBuilderService keycloakBuilderService,
-    ClientService clientService,
-    RealmRoleService realmRoleService,
-    UserService userService
+    RealmRegistry realmRegistry,
+    BulkDeleteService bulkDeleteService,
+    KeycloakRequestExecutor requestExecutor
   )
   {
     System.out.println("\n" + SystemCommands.GREETING + "\n");
-    this.realm = keycloakBuilderService.getRealm();
     this.keycloak = keycloakBuilderService.getKeycloak();
-    this.clientService = clientService;
-    this.realmRoleService = realmRoleService;
-    this.userService = userService;
+    this.realmRegistry = realmRegistry;
+    this.bulkDeleteService = bulkDeleteService;
+    this.requestExecutor = requestExecutor;
+  }
+
+  /**
+   * Realm selected with use-realm, keycloak.realm by default.
+   */
+  private String realm()
+  {
+    return realmRegistry.current().realm();
+  }
+
+  private ClientService clientService()
+  {
+    return realmRegistry.current().clientService();
+  }
+
+  private RealmRoleService realmRoleService()
+  {
+    return realmRegistry.current().realmRoleService();
+  }
+
+  private UserService userService()
+  {
+    return realmRegistry.current().userService();
+  }
+
+  private RoleMembershipIndex roleMembershipIndex()
+  {
+    return realmRegistry.current().roleMembershipIndex();
+  }
+
+  private UserAccessService userAccessService()
+  {
+    return realmRegistry.current().userAccessService();
+  }
+
+  private RoleGraphService roleGraphService()
+  {
+    return realmRegistry.current().roleGraphService();
   }
 
   public List<UserRepresentation> searchByUsername(String username,
     boolean exact)
   {
     log.info("Searching by username: {} (exact {})", username, exact);
-    List<UserRepresentation> users = keycloak.realm(realm)
-      .users()
-      .searchByUsername(username, exact);
+    List<UserRepresentation> users = requestExecutor.execute("users.search",
+      () -> keycloak.realm(realm()).users().searchByUsername(username, exact));
 
     log.info("Users found by username {}", users.stream()
       .map(user -> user.getUsername())
@@ -86,10 +121,8 @@ public class KeycloakService
   {
     log.info("Searching by role: {}", roleName);
 
-    List<UserRepresentation> users = keycloak.realm(realm)
-      .roles()
-      .get(roleName)
-      .getUserMembers();
+    List<UserRepresentation> users = requestExecutor.execute("roles.users",
+      () -> keycloak.realm(realm()).roles().get(roleName).getUserMembers());
 
     log.info("Users found by role {}", users.stream()
       .map(user -> user.getUsername())
@@ -97,178 +130,396 @@ public class KeycloakService
     return users;
   }
 
-  public List<RealmRepresentation> realms()
+  /**
+   * Searches users by username in the selected realm or in all realms in
+   * parallel, one row per user: realm, username, id, email.
+   */
+  public List<RealmRegistry.RealmResult<List<UserRepresentation>>> searchUser(
+    String username, boolean exact, boolean allRealms, OutputFormat format)
+    throws InterruptedException
+  {
+    long start = System.nanoTime();
+    List<RealmRegistry.RealmResult<List<UserRepresentation>>> results;
+    Function<RealmRegistry.RealmServices, List<UserRepresentation>> search =
+      services -> requestExecutor.execute("users.search",
+        () -> keycloak.realm(services.realm()).users().searchByUsername(username, exact));
+
+    if(allRealms)
+    {
+      results = realmRegistry.forAllRealms(search);
+    }
+    else
+    {
+      results = List.of(new RealmRegistry.RealmResult<>(realm(),
+        search.apply(realmRegistry.current()), null));
+    }
+
+    try(OutputWriter out = OutputWriter.open(format, "realm", "username", "id", "email"))
+    {
+      for(RealmRegistry.RealmResult<List<UserRepresentation>> result : results)
+      {
+        if(result.failure() != null)
+        {
+          out.message(result.realm() + "\t! " + result.failure().getMessage());
+          continue;
+        }
+        for(UserRepresentation user : result.result())
+        {
+          out.row(result.realm(), user.getUsername(), user.getId(), user.getEmail());
+        }
+      }
+      out.message(String.format("%d users in %d realms, %.1fms", out.getRows(),
+        results.size(), (System.nanoTime() - start) / 1_000_000.0));
+    }
+    return results;
+  }
+
+  public List<RealmRepresentation> realms(OutputFormat format)
   {
-    List<RealmRepresentation> realmsList = keycloak.realms().findAll();
+    List<RealmRepresentation> realmsList = requestExecutor.execute("realms.list",
+      () -> keycloak.realms().findAll());
     log.debug("{} realms", realmsList.size());
-    realmsList.forEach(realm ->
+    try(OutputWriter out = OutputWriter.open(format, "id", "realm", "displayName", "selected"))
     {
-      System.out.println(realm.getId() + " " + realm.getRealm() + ", " + realm.getDisplayName());
-    });
+      realmsList.forEach(realm ->
+      {
+        boolean selected = realm.getRealm().equals(realm());
+        if(out.isText())
+        {
+          out.println((selected ? "* " : "  ")
+            + realm.getId() + " " + realm.getRealm() + ", " + realm.getDisplayName());
+        }
+        else
+        {
+          out.row(realm.getId(), realm.getRealm(), realm.getDisplayName(), selected);
+        }
+      });
+    }
     return realmsList;
   }
 
-  public List<ClientScopeRepresentation> clientScopes()
+  public List<ClientScopeRepresentation> clientScopes(OutputFormat format)
   {
-    log.debug("realm={}", realm);
+    log.debug("realm={}", realm());
 
-    List<ClientScopeRepresentation> scopesList = keycloak.realm(realm).clientScopes().findAll();
+    List<ClientScopeRepresentation> scopesList = requestExecutor.execute("client-scopes.list",
+      () -> keycloak.realm(realm()).clientScopes().findAll());
     log.debug("{} scopes", scopesList.size());
-    scopesList.forEach(scope ->
+    try(OutputWriter out = OutputWriter.open(format, "id", "name", "protocol",
+      "attributes", "protocolMappers"))
     {
-      System.out.println("\n" + scope.getId() + " " + scope.getName() + ", " + scope.getProtocol());
-      scope.getAttributes().forEach((key, value) ->
+      scopesList.forEach(scope ->
       {
-        System.out.println("  - " + key + " = " + value);
-      });
+        if( ! out.isText())
+        {
+          out.row(scope.getId(), scope.getName(), scope.getProtocol(),
+            scope.getAttributes(), (scope.getProtocolMappers() != null)
+            ? scope.getProtocolMappers().stream()
+              .map(mapper -> mapper.getName() + " (" + mapper.getProtocolMapper() + ")")
+              .toList() : List.of());
+          return;
+        }
 
-      if(scope.getProtocolMappers() != null)
-      {
-        scope.getProtocolMappers().listIterator().forEachRemaining(mapper ->
+        out.println("\n" + scope.getId() + " " + scope.getName() + ", " + scope.getProtocol());
+        scope.getAttributes().forEach((key, value) ->
         {
-          System.out.println("    > " + mapper.getName() + ", " + mapper.getProtocolMapper());
-          mapper.getConfig().forEach((key, value) ->
+          out.println("  - " + key + " = " + value);
+        });
+
+        if(scope.getProtocolMappers() != null)
+        {
+          scope.getProtocolMappers().listIterator().forEachRemaining(mapper ->
           {
-            System.out.println("      * " + key + " = " + value);
+            out.println("    > " + mapper.getName() + ", " + mapper.getProtocolMapper());
+            mapper.getConfig().forEach((key, value) ->
+            {
+              out.println("      * " + key + " = " + value);
+            });
           });
-        });
-      }
-      else
-      {
-        System.out.println("    > none");
-      }
-    });
+        }
+        else
+        {
+          out.println("    > none");
+        }
+      });
+    }
 
     return scopesList;
   }
 
-  public List<UserRepresentation> listUsers(boolean debug)
-    throws IOException
+  public long listUsers(OutputFormat format)
   {
     log.debug("listUsers");
-    double start = System.currentTimeMillis();
+    long numberOfUsers = 0;
 
-    List<UserRepresentation> allUsers = userService.users();
-
-    if(debug)
+    try(Stream<UserRepresentation> users = userService().stream();
+      OutputWriter out = OutputWriter.open(format, "id", "username",
+        "federationLink", "firstName", "lastName"))
     {
-      allUsers.forEach(entry ->
+      for(Iterator<UserRepresentation> iterator = users.iterator(); iterator.hasNext();)
       {
-        log.debug(entry.getId() + " " + entry.getUsername() + ", " + entry.
-          getFederationLink() + ", " + entry.getFirstName() + ", " + entry.
-          getLastName());
-      });
+        UserRepresentation user = iterator.next();
+        if(out.isText())
+        {
+          out.println(user.getId() + " " + user.getUsername() + ", "
+            + user.getFederationLink() + ", " + user.getFirstName() + ", "
+            + user.getLastName());
+        }
+        else
+        {
+          out.row(user.getId(), user.getUsername(), user.getFederationLink(),
+            user.getFirstName(), user.getLastName());
+        }
+        numberOfUsers++;
+      }
     }
 
-    return allUsers;
+    log.debug("{} users listed", numberOfUsers);
+    return numberOfUsers;
+  }
+
+  public UserRecordStore userStoreStats(boolean reload)
+  {
+    log.debug("userStoreStats");
+    UserRecordStore store = userService().store(reload);
+    long bytes = store.estimatedBytes();
+
+    System.out.println("\nUser store for realm '" + realm() + "':");
+    System.out.println("  Users             : " + store.size());
+    System.out.println("  Dictionary entries: " + store.dictionarySize());
+    System.out.println("  Estimated heap    : " + (bytes / 1024) + " KiB");
+    System.out.println("  Bytes per user    : "
+      + ((store.size() > 0) ? bytes / store.size() : 0));
+    System.out.println("  Load time         : "
+      + (userService().getStoreBuildMillis() / 1000.0) + "s");
+    return store;
   }
 
-  public List<RoleRepresentation> listRealmRoles()
+  public List<UserService.PageBenchmark> benchUserPages(int pages,
+    List<Integer> concurrencyLevels)
+    throws InterruptedException
   {
-    log.debug("realm={}", realm);
+    log.debug("benchUserPages pages={}, concurrency={}", pages, concurrencyLevels);
+    List<UserService.PageBenchmark> results = new ArrayList<>();
 
-    List<RoleRepresentation> rolesList = realmRoleService.roles();
-    log.debug("{} realm roles", rolesList.size());
+    // warm up connection pool and token
+    userService().benchmarkPages(1, 1);
 
-    rolesList.stream()
-      .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
-      .forEach(role ->
-      {
-        System.out.println("'" + role.getName() + "', "
-          + role.getDescription() + " (" + role.getId() + ")");
+    System.out.println("\nUser page throughput for realm '" + realm() + "':");
+    System.out.println(String.format("%11s %6s %6s %8s %9s %10s %10s",
+      "concurrency", "pages", "errors", "users", "time[ms]", "pages/s", "users/s"));
+    for(int concurrency : concurrencyLevels)
+    {
+      UserService.PageBenchmark result = userService().benchmarkPages(pages, concurrency);
+      results.add(result);
+      System.out.println(String.format("%11d %6d %6d %8d %9d %10.1f %10.1f",
+        result.concurrency(), result.pages(), result.errors(), result.users(),
+        result.millis(), result.pagesPerSecond(), result.usersPerSecond()));
+    }
+    return results;
+  }
+
+  public List<RoleRepresentation> listRealmRoles(OutputFormat format)
+  {
+    log.debug("realm={}", realm());
 
-        Set<RoleRepresentation> composites = realmRoleService.compositesByName(role.getName());
+    List<RoleRepresentation> rolesList = realmRoleService().roles();
+    log.debug("{} realm roles", rolesList.size());
+    RoleGraph graph = roleGraphService().graph();
 
-        if(composites != null &&  ! composites.isEmpty())
+    try(OutputWriter out = OutputWriter.open(format, "name", "description", "id",
+      "composites", "inherited"))
+    {
+      rolesList.stream()
+        .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
+        .forEach(role ->
         {
-          System.out.println("    Associated Roles:");
-          composites.stream()
-            .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
-            .forEach(composite ->
-            {
-              if(composite.getClientRole())
+          Set<RoleRepresentation> composites = realmRoleService().compositesByName(role.getName());
+          List<String> associated = List.of();
+          List<String> inherited = List.of();
+
+          if(composites != null &&  ! composites.isEmpty())
+          {
+            associated = composites.stream()
+              .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
+              .map(composite ->
               {
+                if(composite.getClientRole())
+                {
+                  String containerId = composite.getContainerId();
+                  ClientRepresentation result = clientService().clientById(containerId);
 
-                String containerId = composite.getContainerId();
-                ClientRepresentation result = clientService.clientById(containerId);
+                  if(result != null)
+                  {
+                    containerId = result.getClientId();
+                  }
 
-                if(result != null)
-                {
-                  containerId = result.getClientId();
+                  return "[" + containerId + "] " + composite.getName();
                 }
+                return composite.getName();
+              }).toList();
+
+            RoleGraph.Node node = graph.findById(role.getId());
+            inherited = (node == null) ? List.of() : graph.expand(node)
+              .filter(expanded -> composites.stream()
+              .noneMatch(composite -> composite.getId().equals(expanded.id())))
+              .map(RoleGraph.Node :: label)
+              .sorted(String :: compareToIgnoreCase).toList();
+          }
 
-                System.out.println("      - [" + containerId + "] " + composite.getName());
-              }
-              else
-              {
-                System.out.println("      - " + composite.getName());
-              }
-            });
-        }
+          if( ! out.isText())
+          {
+            out.row(role.getName(), role.getDescription(), role.getId(),
+              associated, inherited);
+            return;
+          }
 
-      });
+          out.println("'" + role.getName() + "', "
+            + role.getDescription() + " (" + role.getId() + ")");
+          if( ! associated.isEmpty())
+          {
+            out.println("    Associated Roles:");
+            associated.forEach(label -> out.println("      - " + label));
+          }
+          if( ! inherited.isEmpty())
+          {
+            out.println("    Inherited Roles:");
+            inherited.forEach(label -> out.println("      + " + label));
+          }
+        });
+    }
     return rolesList;
   }
 
-  public List<RoleRepresentation> listClientRoles(String clientName)
-    throws IOException
+  /**
+   * Prints all roles a role expands to through nested composites.
+   */
+  public List<RoleGraph.Node> roleExpand(String roleName, String clientId,
+    OutputFormat format)
   {
-    log.info("Listing client roles for client: {}", clientName);
-    List<ClientRepresentation> clients = keycloak.realm(realm).clients().findByClientId(clientName);
-
-    if(clients.isEmpty())
-    {
-      System.out.println("Client with name '" + clientName + "' not found.");
-      return new ArrayList<>();
-    }
+    log.debug("roleExpand role={}, client={}", roleName, clientId);
+    return roleQuery(roleName, clientId, true, format);
+  }
 
-    // Assuming the first client found is the correct one, or client IDs are unique
-    ClientRepresentation client = clients.get(0);
-    String clientId = client.getId();
+  /**
+   * Prints all roles effectively granting a role.
+   */
+  public List<RoleGraph.Node> roleGrantedBy(String roleName, String clientId,
+    OutputFormat format)
+  {
+    log.debug("roleGrantedBy role={}, client={}", roleName, clientId);
+    return roleQuery(roleName, clientId, false, format);
+  }
 
-    List<RoleRepresentation> clientRoles = keycloak.realm(realm).clients().get(clientId).roles().list();
+  private List<RoleGraph.Node> roleQuery(String roleName, String clientId,
+    boolean expand, OutputFormat format)
+  {
+    RoleGraph graph = roleGraphService().graph();
+    RoleGraph.Node role = graph.find(roleName, clientId);
 
-    if(clientRoles.isEmpty())
-    {
-      System.out.println("No client roles found for client '" + clientName + "'.");
-    }
-    else
+    try(OutputWriter out = OutputWriter.open(format, "role", "client"))
     {
-      System.out.println("Client roles for '" + clientName + "':");
-      clientRoles.stream()
-        .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
-        .forEach(role ->
-        {
-          System.out.println("  - " + role.getName() + " (ID: " + role.getId() + ")");
+      if(role == null)
+      {
+        out.message("Role '" + new RoleGraph.Node(0, null, roleName, clientId).label()
+          + "' is not part of the role graph of realm '" + realm() + "'.");
+        return List.of();
+      }
+
+      long start = System.nanoTime();
+      List<RoleGraph.Node> result = (expand ? graph.expand(role) : graph.grantedBy(role))
+        .toList();
+      long nanos = System.nanoTime() - start;
 
-          List<String> realmRoleUsage = findClientRoleUsageInRealmRoles(role.getName(), clientId);
-          if( ! realmRoleUsage.isEmpty())
+      out.println("'" + role.label() + (expand ? "' expands to " : "' is granted by ")
+        + result.size() + " roles:");
+      result.stream()
+        .sorted((n1, n2) -> n1.label().compareToIgnoreCase(n2.label()))
+        .forEach(node ->
+        {
+          if(out.isText())
+          {
+            out.println("  - " + node.label());
+          }
+          else
           {
-            System.out.println("    Used as composite in realm roles: " + String.join(", ", realmRoleUsage));
+            out.row(node.name(), node.clientId());
           }
+        });
+      out.message(String.format("query %.1fus, graph %d roles, %d closure edges, %d KiB, built in %.3fs",
+        nanos / 1000.0, graph.size(), graph.numberOfClosureEdges(),
+        graph.estimatedBytes() / 1024, roleGraphService().getBuildMillis() / 1000.0));
+      return result;
+    }
+  }
+
+  public List<RoleRepresentation> listClientRoles(String clientName,
+    OutputFormat format)
+  {
+    log.info("Listing client roles for client: {}", clientName);
+    List<ClientRepresentation> clients = requestExecutor.execute("clients.search",
+      () -> keycloak.realm(realm()).clients().findByClientId(clientName));
+
+    try(OutputWriter out = OutputWriter.open(format, "name", "id",
+      "realmRoles", "users"))
+    {
+      if(clients.isEmpty())
+      {
+        out.message("Client with name '" + clientName + "' not found.");
+        return new ArrayList<>();
+      }
+
+      // Assuming the first client found is the correct one, or client IDs are unique
+      ClientRepresentation client = clients.get(0);
+      String clientId = client.getId();
+
+      List<RoleRepresentation> clientRoles = requestExecutor.execute("client-roles.list",
+        () -> keycloak.realm(realm()).clients().get(clientId).roles().list());
+
+      if(clientRoles.isEmpty())
+      {
+        out.message("No client roles found for client '" + clientName + "'.");
+      }
+      else
+      {
+        roleMembershipIndex().clientRoleMembers(clientId, false);
+        out.message("Role membership index: " + roleMembershipIndex().getNumberOfEntries()
+          + " entries, built in " + (roleMembershipIndex().getBuildMillis() / 1000.0) + "s");
 
-          try
+        out.println("Client roles for '" + clientName + "':");
+        clientRoles.stream()
+          .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
+          .forEach(role ->
           {
+            List<String> realmRoleUsage = findClientRoleUsageInRealmRoles(role.getName(), clientId);
             List<String> userUsage = findClientRoleUsageInUsers(role.getName(), clientId);
-            if( ! userUsage.isEmpty())
+
+            if( ! out.isText())
             {
-              System.out.println("    Assigned to users: " + String.join(", ", userUsage));
+              out.row(role.getName(), role.getId(), realmRoleUsage, userUsage);
+              return;
             }
-          }
-          catch(IOException ex)
-          {
-            System.getLogger(KeycloakService.class.getName()).log(System.Logger.Level.ERROR, (String)null, ex);
-          }
-        });
 
+            out.println("  - " + role.getName() + " (ID: " + role.getId() + ")");
+            if( ! realmRoleUsage.isEmpty())
+            {
+              out.println("    Used as composite in realm roles: " + String.join(", ", realmRoleUsage));
+            }
+            if( ! userUsage.isEmpty())
+            {
+              out.println("    Assigned to users: " + String.join(", ", userUsage));
+            }
+          });
+      }
+      return clientRoles;
     }
-    return clientRoles;
   }
 
   public UserRepresentation usersCreate(UserRepresentation user)
   {
     log.info("Creating user: {}", user.getUsername());
-    try(Response response = keycloak.realm(realm).users().create(user))
+    try(Response response = requestExecutor.executeOnce("users.create",
+      () -> keycloak.realm(realm()).users().create(user)))
     {
       if(response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL)
       {
@@ -299,7 +550,8 @@ public class KeycloakService
     log.info("Updating user with ID: {}", id);
     try
     {
-      keycloak.realm(realm).users().get(id).update(user);
+      requestExecutor.run("users.update",
+        () -> keycloak.realm(realm()).users().get(id).update(user));
       System.out.println("User with ID '" + id + "' updated successfully.");
       return user;
     }
@@ -315,139 +567,166 @@ public class KeycloakService
   {
     log.debug("delete user {}", id);
 
-    try
+    try(Response response = requestExecutor.execute("users.delete",
+      () -> keycloak.realm(realm()).users().delete(id)))
     {
-      System.out.
-        println(keycloak.tokenManager().getAccessToken().getExpiresIn());
-      Response response = keycloak.realm(realm).users().delete(id);
-      log.debug("---", id);
-
-      System.out.println(response.getStatus());
+      log.debug("delete user {} status {}", id, response.getStatus());
+      if(response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL)
+      {
+        userService().applyUserChange(id, true);
+        return true;
+      }
+      log.error("delete user {} failed: HTTP {}", id, response.getStatus());
     }
-    catch(Throwable t)
+    catch(Exception e)
     {
-      log.error("*** delete failed", t);
+      log.error("*** delete failed", e);
     }
 
-    log.debug("---", id);
-
     return false;
   }
 
-  public List<String> deleteRealmRolesWithNullDescription()
+  /**
+   * Prints the users matching a query, one row per user: username, id,
+   * email, enabled.
+   */
+  public UserService.FindResult findUsers(String expression, int limit,
+    OutputFormat format)
   {
-    log.info("Deleting realm roles with null description in realm: {}", realm);
-    List<String> deletedRoleNames = new ArrayList<>();
-
-    List<RoleRepresentation> roles = keycloak.realm(realm).roles().list();
+    UserQuery query = new UserQuery(expression);
+    log.debug("find users '{}' in realm {}: {}", expression, realm(), query.pushdown());
 
-    for(RoleRepresentation role : roles)
+    try(OutputWriter out = OutputWriter.open(format, "username", "id", "email", "enabled"))
     {
-      if(role.getDescription() == null) // && role.getName().charAt(0) == role.getName().toLowerCase().charAt(0))
+      UserService.FindResult result = userService().find(query, limit, user ->
+        out.row(user.getUsername(), user.getId(), user.getEmail(),
+          Boolean.TRUE.equals(user.isEnabled())));
+
+      out.message(String.format(
+        "%d users matched, %d fetched in %d pages (server count %d), %.3fs",
+        result.matched(), result.fetched(), result.pages(), result.serverCount(),
+        result.millis() / 1000.0));
+      if( ! query.remainderConditions().isEmpty())
       {
-        try
-        {
-          log.info("Deleting role: {} (ID: {}) with null description", role.getName(), role.getId());
-          keycloak.realm(realm).roles().get(role.getName()).remove();
-          deletedRoleNames.add(role.getName());
-          System.out.println("Deleted role: " + role.getName());
-        }
-        catch(Exception e)
-        {
-          log.error("Failed to delete role {} (ID: {}): {}", role.getName(), role.getId(), e.getMessage());
-        }
+        out.message("evaluated locally: "
+          + String.join(", ", query.remainderConditions()));
       }
+      return result;
     }
+  }
+
+  public BulkDeleteService.BulkDeleteResult deleteUsers(String filter,
+    boolean dryRun, int parallelism, double rate)
+    throws InterruptedException
+  {
+    log.info("Deleting users matching '{}' in realm: {}", filter, realm());
+    UserFilter userFilter = new UserFilter(filter);
 
-    if(deletedRoleNames.isEmpty())
+    return bulkDeleteService.delete("users", userService().store().stream(),
+      userFilter, user -> user.username() + " (" + user.id() + ")",
+      user ->
     {
-      System.out.println("No realm roles with null description found.");
+      if( ! usersDelete(user.id()))
+      {
+        throw new IllegalStateException("delete user " + user.username() + " failed");
+      }
+    }, dryRun, parallelism, rate);
+  }
+
+  public BulkDeleteService.BulkDeleteResult deleteRealmRolesWithNullDescription(
+    boolean dryRun, int parallelism, double rate)
+    throws InterruptedException
+  {
+    log.info("Deleting realm roles with null description in realm: {}", realm());
+
+    BulkDeleteService.BulkDeleteResult result = bulkDeleteService.delete("roles",
+      realmRoleService().roles(true).stream(),
+      role -> role.getDescription() == null, // && role.getName().charAt(0) == role.getName().toLowerCase().charAt(0))
+      RoleRepresentation :: getName,
+      role ->
+    {
+      log.info("Deleting role: {} (ID: {}) with null description", role.getName(), role.getId());
+      requestExecutor.run("roles.delete",
+        () -> keycloak.realm(realm()).roles().get(role.getName()).remove());
+    }, dryRun, parallelism, rate);
+
+    if( ! dryRun)
+    {
+      result.deleted().forEach(realmRoleService() :: invalidate);
     }
-    else
+
+    if(result.deleted().isEmpty() && result.failed().isEmpty())
     {
-      System.out.println("Successfully deleted roles: " + String.join(", ", deletedRoleNames));
+      System.out.println("No realm roles with null description found.");
     }
-    return deletedRoleNames;
+    return result;
   }
 
-  public void listClients()
+  public void listClients(OutputFormat format)
   {
-    log.debug("Listing all clients in realm: {}", realm);
-    Collection<ClientRepresentation> clients = clientService.clients();
+    log.debug("Listing all clients in realm: {}", realm());
+    Collection<ClientRepresentation> clients = clientService().clients();
 
-    if(clients.isEmpty())
+    try(OutputWriter out = OutputWriter.open(format, "clientId", "id", "enabled"))
     {
-      System.out.println("No clients found in realm '" + realm + "'.");
-    }
-    else
-    {
-      System.out.println("\nClients in realm '" + realm + "':");
-      clients.stream()
-        .sorted((c1, c2) -> c1.getClientId().compareToIgnoreCase(c2.getClientId()))
-        .forEach(client ->
-        {
-          System.out.println("  - " + client.getClientId() + " (ID: " + client.getId() + ", Enabled: " + client.isEnabled() + ")");
-        });
+      if(clients.isEmpty())
+      {
+        out.message("No clients found in realm '" + realm() + "'.");
+      }
+      else
+      {
+        out.println("\nClients in realm '" + realm() + "':");
+        clients.stream()
+          .sorted((c1, c2) -> c1.getClientId().compareToIgnoreCase(c2.getClientId()))
+          .forEach(client ->
+          {
+            if(out.isText())
+            {
+              out.println("  - " + client.getClientId() + " (ID: " + client.getId() + ", Enabled: " + client.isEnabled() + ")");
+            }
+            else
+            {
+              out.row(client.getClientId(), client.getId(), client.isEnabled());
+            }
+          });
+      }
     }
   }
 
+  /**
+   * Realm roles granting a client role, directly or through nested
+   * composites.
+   */
   private List<String> findClientRoleUsageInRealmRoles(String clientRoleName, String clientId)
   {
     log.debug("findClientRoleUsageInRealmRoles");
-    List<String> usageList = new ArrayList<>();
-    List<RoleRepresentation> realmRoles = realmRoleService.roles();
-    for(RoleRepresentation realmRole : realmRoles)
+    RoleGraph graph = roleGraphService().graph();
+    RoleGraph.Node clientRole = graph.find(clientRoleName, clientIdOf(clientId));
+    if(clientRole == null)
     {
-      // Get the RoleResource for the realm role
-      RoleResource roleResource = realmRoleService.resourceByName(realmRole.getName());
-
-      Set<RoleRepresentation> compositeRoles = new HashSet<>();
-      compositeRoles.addAll(roleResource.getRealmRoleComposites());
-      compositeRoles.addAll(roleResource.getClientRoleComposites(clientId));
-
-      for(RoleRepresentation compositeRole : compositeRoles)
-      {
-        if(compositeRole.getName().equals(clientRoleName) && compositeRole.getClientRole() && compositeRole.getContainerId().equals(clientId))
-        {
-          usageList.add(realmRole.getName());
-          break;
-        }
-      }
+      return List.of();
     }
-    return usageList;
+    return graph.realmRolesGranting(clientRole).map(RoleGraph.Node :: name)
+      .sorted(String :: compareToIgnoreCase).toList();
+  }
+
+  private String clientIdOf(String id)
+  {
+    ClientRepresentation client = clientService().clientById(id);
+    return (client != null) ? client.getClientId() : id;
   }
 
   private List<String> findClientRoleUsageInUsers(String clientRoleName, String clientId)
-    throws IOException
   {
     log.debug("findClientRoleUsageInUsers");
-    List<String> usageList = new ArrayList<>();
-    
-    List<UserRepresentation> users = listUsers(log.isDebugEnabled());
-    log.debug("{} users found", users.size());
-    double start = System.currentTimeMillis();
-    for(UserRepresentation user : users)
-    {
-      List<RoleRepresentation> userClientRoles = keycloak.realm(realm).users().get(user.getId()).roles().clientLevel(clientId).listAll();
- 
-      for(RoleRepresentation userClientRole : userClientRoles)
-      {
-        if(userClientRole.getName().equals(clientRoleName))
-        {
-          usageList.add(user.getUsername());
-        }
-      }
-    }
-    double end = System.currentTimeMillis();
-    log.debug("role check in {}s", ((end - start) / 1000.0));
-
-    return usageList;
+    return roleMembershipIndex().clientRoleMembers(clientId, clientRoleName);
   }
 
   public void showUser(String userName)
   {
     log.info("Showing details for user name: {}", userName);
-    List<UserRepresentation> result = keycloak.realm(realm).users().searchByUsername(userName, Boolean.TRUE);
+    List<UserRepresentation> result = requestExecutor.execute("users.search",
+      () -> keycloak.realm(realm()).users().searchByUsername(userName, Boolean.TRUE));
     if(result.isEmpty())
     {
       System.out.println("No user found");
@@ -464,7 +743,7 @@ public class KeycloakService
     try
     {
 
-      UserRepresentation user = keycloak.realm(realm).users().get(userId).toRepresentation();
+      UserRepresentation user = userService().userById(userId);
       if(user == null)
       {
         System.out.println("User with ID '" + userId + "' not found.");
@@ -487,34 +766,24 @@ public class KeycloakService
         user.getAttributes().forEach((key, value) -> System.out.println("  - '" + key + "' = " + value));
       }
 
+      UserAccessService.UserAccess access = userAccessService().access(userId);
+
       // Realm Roles
-      List<RoleRepresentation> realmRoles = keycloak.realm(realm).users().get(userId).roles().realmLevel().listAll();
-      if( ! realmRoles.isEmpty())
+      if( ! access.realmRoles().isEmpty())
       {
         System.out.println("\nRealm Roles:");
-        realmRoles.stream()
-          .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
-          .forEach(role -> System.out.println("  - '" + role.getName() + "'"));
+        access.realmRoles().forEach(role -> System.out.println("  - '" + role + "'"));
       }
 
       // Client Roles
-      List<ClientRepresentation> clients = keycloak.realm(realm).clients().findAll();
-      if(clients != null &&  ! clients.isEmpty())
+      if( ! access.clientRoles().isEmpty())
       {
         System.out.println("\nClient Roles:");
-        clients.stream()
-          .sorted((c1, c2) -> c1.getClientId().compareToIgnoreCase(c2.getClientId()))
-          .forEach(client ->
-          {
-            List<RoleRepresentation> clientRoles = keycloak.realm(realm).users().get(userId).roles().clientLevel(client.getId()).listAll();
-            if( ! clientRoles.isEmpty())
-            {
-              System.out.println("  Client: " + client.getClientId());
-              clientRoles.stream()
-                .sorted((r1, r2) -> r1.getName().compareToIgnoreCase(r2.getName()))
-                .forEach(role -> System.out.println("    - '" + role.getName() + "'"));
-            }
-          });
+        access.clientRoles().forEach((clientId, roles) ->
+        {
+          System.out.println("  Client: " + clientId);
+          roles.forEach(role -> System.out.println("    - '" + role + "'"));
+        });
       }
 
       System.out.println();
@@ -526,10 +795,62 @@ public class KeycloakService
     }
   }
 
+  /**
+   * Prints the role mappings of a user, one row per role: type (realm or
+   * client), clientId (empty for realm roles) and role. In the TEXT
+   * format a line is <code>realm&lt;TAB&gt;&lt;TAB&gt;role</code> or
+   * <code>client&lt;TAB&gt;clientId&lt;TAB&gt;role</code>.
+   */
+  public UserAccessService.UserAccess showUserAccess(String userName,
+    String userId, boolean effective, OutputFormat format)
+  {
+    if(userId == null)
+    {
+      // never load the whole user store just for one lookup
+      UserRecordStore store = userService().cachedStore();
+      UserRecord user = (store != null)
+        ? store.findByUsername(userName).orElse(null) : null;
+      if(user == null)
+      {
+        List<UserRepresentation> result = requestExecutor.execute("users.search",
+          () -> keycloak.realm(realm()).users().searchByUsername(userName, Boolean.TRUE));
+        if(result.isEmpty())
+        {
+          try(OutputWriter out = OutputWriter.open(format, "type", "client", "role"))
+          {
+            out.message("No user found");
+          }
+          return null;
+        }
+        userId = result.get(0).getId();
+      }
+      else
+      {
+        userId = user.id();
+      }
+    }
+
+    UserAccessService.UserAccess access = userAccessService().access(userId);
+    Set<String> realmRoles = effective
+      ? access.effectiveRealmRoles() : access.realmRoles();
+    Map<String, Set<String>> clientRoles = effective
+      ? access.effectiveClientRoles() : access.clientRoles();
+
+    try(OutputWriter out = OutputWriter.open(format, "type", "client", "role"))
+    {
+      realmRoles.forEach(role -> out.row("realm", "", role));
+      clientRoles.forEach((clientId, roles) ->
+        roles.forEach(role -> out.row("client", clientId, role)));
+    }
+    log.debug("access of user {} shown in {}ms", userId, access.millis());
+    return access;
+  }
+
   public void showClient(String clientName)
   {
     log.info("Showing details for client: {}", clientName);
-    List<ClientRepresentation> clients = keycloak.realm(realm).clients().findByClientId(clientName);
+    List<ClientRepresentation> clients = requestExecutor.execute("clients.search",
+      () -> keycloak.realm(realm()).clients().findByClientId(clientName));
 
     if(clients.isEmpty())
     {
@@ -552,19 +873,22 @@ public class KeycloakService
 
     // Scopes
     System.out.println("\nDefault Client Scopes:");
-    keycloak.realm(realm).clients().get(id).getDefaultClientScopes().forEach(scope ->
+    requestExecutor.execute("clients.default-scopes",
+      () -> keycloak.realm(realm()).clients().get(id).getDefaultClientScopes()).forEach(scope ->
     {
       System.out.println("  - " + scope.getName());
     });
 
     System.out.println("\nOptional Client Scopes:");
-    keycloak.realm(realm).clients().get(id).getOptionalClientScopes().forEach(scope ->
+    requestExecutor.execute("clients.optional-scopes",
+      () -> keycloak.realm(realm()).clients().get(id).getOptionalClientScopes()).forEach(scope ->
     {
       System.out.println("  - " + scope.getName());
     });
 
     // Roles
-    List<RoleRepresentation> clientRoles = keycloak.realm(realm).clients().get(id).roles().list();
+    List<RoleRepresentation> clientRoles = requestExecutor.execute("client-roles.list",
+      () -> keycloak.realm(realm()).clients().get(id).roles().list());
     if( ! clientRoles.isEmpty())
     {
       System.out.println("\nClient Roles:");
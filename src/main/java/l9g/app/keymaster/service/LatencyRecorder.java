@@ -0,0 +1,61 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies of a bulk operation for percentile reporting.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class LatencyRecorder
+{
+  private long[] latencies = new long[1024];
+
+  private int count;
+
+  public synchronized void record(long nanos)
+  {
+    if(count == latencies.length)
+    {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+    latencies[count++] = nanos;
+  }
+
+  public synchronized int count()
+  {
+    return count;
+  }
+
+  /**
+   * @param percentile 0.0 - 1.0
+   * @return latency in milliseconds, 0 if nothing has been recorded
+   */
+  public synchronized double percentileMillis(double percentile)
+  {
+    if(count == 0)
+    {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(latencies, count);
+    Arrays.sort(sorted);
+    int index = (int)Math.ceil(percentile * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))] / 1_000_000.0;
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+/**
+ * Output format of the listing commands (--format).
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public enum OutputFormat
+{
+  /**
+   * Human readable layout of the command.
+   */
+  TEXT,
+  /**
+   * Aligned columns with a header.
+   */
+  TABLE,
+  /**
+   * JSON array, one object per line.
+   */
+  JSON,
+  /**
+   * RFC 4180 CSV with a header line.
+   */
+  CSV;
+
+  /**
+   * @throws IllegalArgumentException for an unknown format
+   */
+  public static OutputFormat of(String name)
+  {
+    for(OutputFormat format : values())
+    {
+      if(format.name().equalsIgnoreCase(name.trim()))
+      {
+        return format;
+      }
+    }
+    throw new IllegalArgumentException("unknown output format '" + name
+      + "', expected text, table, json or csv");
+  }
+
+}
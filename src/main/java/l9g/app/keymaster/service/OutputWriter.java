@@ -0,0 +1,409 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Buffered console output of the listing commands.
+ *
+ * Everything is written through a 64 KiB buffer to System.out and
+ * flushed on {@link #close()}, instead of one console write per line. A
+ * listing writes rows with {@link #row(Object...)}; in the TEXT format
+ * a command keeps its own layout with {@link #println(String)}, rows are
+ * written tab separated then. Messages (not found, summaries) go to the
+ * output in the TEXT format and to System.err otherwise, so JSON and CSV
+ * stay parseable.
+ *
+ * Values are written as they are in JSON (collections as arrays, maps
+ * as objects), in a table or CSV collections are joined with ", " and
+ * maps written as key=value. Rows are streamed, a table is aligned per
+ * page of {@value #TABLE_PAGE_ROWS} rows.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public abstract class OutputWriter implements AutoCloseable
+{
+  private final static int BUFFER_SIZE = 1 << 16;
+
+  final static int TABLE_PAGE_ROWS = 1000;
+
+  protected final PrintWriter out;
+
+  protected final String[] columns;
+
+  private long rows;
+
+  protected OutputWriter(String[] columns)
+  {
+    // never closed, System.out stays open
+    this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+      System.out, StandardCharsets.UTF_8), BUFFER_SIZE), false);
+    this.columns = columns;
+  }
+
+  public static OutputWriter open(OutputFormat format, String... columns)
+  {
+    return switch(format)
+    {
+      case TEXT ->
+        new TextWriter(columns);
+      case TABLE ->
+        new TableWriter(columns);
+      case JSON ->
+        new JsonWriter(columns);
+      case CSV ->
+        new CsvWriter(columns);
+    };
+  }
+
+  public boolean isText()
+  {
+    return this instanceof TextWriter;
+  }
+
+  /**
+   * Writes a free text line, only in the TEXT format.
+   */
+  public void println(String line)
+  {
+    if(isText())
+    {
+      out.println(line);
+    }
+  }
+
+  /**
+   * Writes a message line, see the class comment.
+   */
+  public void message(String line)
+  {
+    if(isText())
+    {
+      out.println(line);
+    }
+    else
+    {
+      out.flush();
+      System.err.println(line);
+    }
+  }
+
+  /**
+   * Writes a row, one value per column.
+   */
+  public void row(Object... values)
+  {
+    if(values.length != columns.length)
+    {
+      throw new IllegalArgumentException("expected " + columns.length
+        + " values, got " + values.length);
+    }
+    rows++;
+    writeRow(values);
+  }
+
+  public long getRows()
+  {
+    return rows;
+  }
+
+  /**
+   * Writes pending rows and flushes the buffer, System.out is not closed.
+   */
+  @Override
+  public void close()
+  {
+    finish();
+    out.flush();
+  }
+
+  protected abstract void writeRow(Object[] values);
+
+  protected void finish()
+  {
+  }
+
+  /**
+   * Cell value for TEXT, table and CSV.
+   */
+  protected static String cell(Object value)
+  {
+    if(value == null)
+    {
+      return "";
+    }
+    if(value instanceof Collection<?> collection)
+    {
+      return collection.stream().map(OutputWriter :: cell)
+        .collect(Collectors.joining(", "));
+    }
+    if(value instanceof Map<?, ?> map)
+    {
+      return map.entrySet().stream()
+        .map(entry -> entry.getKey() + "=" + cell(entry.getValue()))
+        .collect(Collectors.joining(", "));
+    }
+    return value.toString();
+  }
+
+  private static class TextWriter extends OutputWriter
+  {
+    TextWriter(String[] columns)
+    {
+      super(columns);
+    }
+
+    @Override
+    protected void writeRow(Object[] values)
+    {
+      for(int i = 0; i < values.length; i++)
+      {
+        if(i > 0)
+        {
+          out.write('\t');
+        }
+        out.write(cell(values[i]));
+      }
+      out.println();
+    }
+
+  }
+
+  private static class TableWriter extends OutputWriter
+  {
+    private final List<String[]> page = new ArrayList<>(TABLE_PAGE_ROWS);
+
+    private int[] widths;
+
+    TableWriter(String[] columns)
+    {
+      super(columns);
+    }
+
+    @Override
+    protected void writeRow(Object[] values)
+    {
+      String[] cells = new String[values.length];
+      for(int i = 0; i < values.length; i++)
+      {
+        cells[i] = cell(values[i]);
+      }
+      page.add(cells);
+      if(page.size() == TABLE_PAGE_ROWS)
+      {
+        writePage();
+      }
+    }
+
+    @Override
+    protected void finish()
+    {
+      writePage();
+    }
+
+    private void writePage()
+    {
+      if(widths == null)
+      {
+        // the widths of the first page are kept, the header stays aligned
+        widths = new int[columns.length];
+        for(int i = 0; i < columns.length; i++)
+        {
+          widths[i] = columns[i].length();
+        }
+        for(String[] cells : page)
+        {
+          for(int i = 0; i < cells.length; i++)
+          {
+            widths[i] = Math.max(widths[i], cells[i].length());
+          }
+        }
+        writeLine(columns);
+        String[] separator = new String[columns.length];
+        for(int i = 0; i < columns.length; i++)
+        {
+          separator[i] = "-".repeat(widths[i]);
+        }
+        writeLine(separator);
+      }
+      page.forEach(this :: writeLine);
+      page.clear();
+    }
+
+    private void writeLine(String[] cells)
+    {
+      StringBuilder line = new StringBuilder();
+      for(int i = 0; i < cells.length; i++)
+      {
+        if(i > 0)
+        {
+          line.append("  ");
+        }
+        line.append(cells[i]);
+        if(i < cells.length - 1)
+        {
+          line.append(" ".repeat(Math.max(0, widths[i] - cells[i].length())));
+        }
+      }
+      out.println(line);
+    }
+
+  }
+
+  private static class JsonWriter extends OutputWriter
+  {
+    private final static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final JsonGenerator generator;
+
+    JsonWriter(String[] columns)
+    {
+      super(columns);
+      try
+      {
+        generator = OBJECT_MAPPER.createGenerator(out);
+        // the array is written raw, one object per line
+        generator.setRootValueSeparator(null);
+        generator.writeRaw('[');
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    protected void writeRow(Object[] values)
+    {
+      try
+      {
+        generator.writeRaw((getRows() > 1) ? ",\n" : "\n");
+        generator.writeStartObject();
+        for(int i = 0; i < values.length; i++)
+        {
+          generator.writeFieldName(columns[i]);
+          if(values[i] instanceof String value)
+          {
+            generator.writeString(value);
+          }
+          else
+          {
+            generator.writeObject(values[i]);
+          }
+        }
+        generator.writeEndObject();
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    protected void finish()
+    {
+      try
+      {
+        generator.writeRaw((getRows() > 0) ? "\n]\n" : "]\n");
+        generator.flush();
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void message(String line)
+    {
+      flushGenerator();
+      super.message(line);
+    }
+
+    private void flushGenerator()
+    {
+      try
+      {
+        generator.flush();
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+  }
+
+  private static class CsvWriter extends OutputWriter
+  {
+    CsvWriter(String[] columns)
+    {
+      super(columns);
+      writeLine(columns);
+    }
+
+    @Override
+    protected void writeRow(Object[] values)
+    {
+      String[] cells = new String[values.length];
+      for(int i = 0; i < values.length; i++)
+      {
+        cells[i] = cell(values[i]);
+      }
+      writeLine(cells);
+    }
+
+    private void writeLine(String[] cells)
+    {
+      for(int i = 0; i < cells.length; i++)
+      {
+        if(i > 0)
+        {
+          out.write(',');
+        }
+        String cell = cells[i];
+        if(cell.indexOf(',') >= 0 || cell.indexOf('"') >= 0
+          || cell.indexOf('\n') >= 0 || cell.indexOf('\r') >= 0)
+        {
+          out.write('"');
+          out.write(cell.replace("\"", "\"\""));
+          out.write('"');
+        }
+        else
+        {
+          out.write(cell);
+        }
+      }
+      // RFC 4180 line break
+      out.write("\r\n");
+    }
+
+  }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Iterates over a paged Keycloak listing, page by page in page order.
+ *
+ * Up to <code>prefetch</code> pages are loaded ahead on virtual threads,
+ * so at most <code>prefetch * pageSize</code> elements are held in memory
+ * independent of the total size of the listing.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Slf4j
+class PageIterator<T> implements Iterator<T>, AutoCloseable
+{
+  @FunctionalInterface
+  interface PageLoader<T>
+  {
+    List<T> load(int first)
+      throws InterruptedException;
+
+  }
+
+  private final PageLoader<T> pageLoader;
+
+  private final int pageSize;
+
+  private final int prefetch;
+
+  private final int expectedSize;
+
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  private final Deque<Future<List<T>>> pendingPages = new ArrayDeque<>();
+
+  private Iterator<T> currentPage = Collections.emptyIterator();
+
+  private int nextFirst;
+
+  private boolean exhausted;
+
+  /**
+   * @param pageLoader   loads the page starting at the given offset
+   * @param pageSize     maximum number of elements per page
+   * @param prefetch     maximum number of pages loaded ahead
+   * @param expectedSize size hint (e.g. users count), pages beyond it
+   *                     are only requested while the last page is full
+   */
+  PageIterator(PageLoader<T> pageLoader, int pageSize, int prefetch,
+    int expectedSize)
+  {
+    this.pageLoader = pageLoader;
+    this.pageSize = pageSize;
+    this.prefetch = Math.max(1, prefetch);
+    this.expectedSize = expectedSize;
+    prefetchPages();
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    while( ! currentPage.hasNext())
+    {
+      if(exhausted)
+      {
+        close();
+        return false;
+      }
+
+      if(pendingPages.isEmpty())
+      {
+        submitPage();
+      }
+
+      List<T> page = awaitPage(pendingPages.poll());
+
+      if(page.size() < pageSize)
+      {
+        exhausted = true;
+        pendingPages.forEach(pendingPage -> pendingPage.cancel(true));
+        pendingPages.clear();
+      }
+      else
+      {
+        prefetchPages();
+      }
+
+      currentPage = page.iterator();
+      JobService.step(page.size());
+    }
+
+    return true;
+  }
+
+  @Override
+  public T next()
+  {
+    if( ! hasNext())
+    {
+      throw new NoSuchElementException();
+    }
+    return currentPage.next();
+  }
+
+  @Override
+  public void close()
+  {
+    exhausted = true;
+    pendingPages.forEach(pendingPage -> pendingPage.cancel(true));
+    pendingPages.clear();
+    executor.shutdownNow();
+  }
+
+  private void prefetchPages()
+  {
+    while(pendingPages.size() < prefetch && nextFirst < expectedSize)
+    {
+      submitPage();
+    }
+  }
+
+  private void submitPage()
+  {
+    int first = nextFirst;
+    log.debug("submit page first={}", first);
+    pendingPages.add(executor.submit(() -> pageLoader.load(first)));
+    nextFirst += pageSize;
+  }
+
+  private List<T> awaitPage(Future<List<T>> page)
+  {
+    try
+    {
+      return page.get();
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      close();
+      throw new IllegalStateException("loading page interrupted", e);
+    }
+    catch(ExecutionException e)
+    {
+      close();
+      throw new IllegalStateException("loading page failed", e.getCause());
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.io.PrintStream;
+
+/**
+ * Single line console progress bar, redrawn at most every 100ms. In a
+ * background job nothing is drawn, the progress is reported to the job.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class ProgressBar
+{
+  private final static int WIDTH = 40;
+
+  private final static long REDRAW_NANOS = 100_000_000L;
+
+  private final PrintStream out;
+
+  private final String label;
+
+  private final long total;
+
+  private final long startNanos = System.nanoTime();
+
+  private long current;
+
+  private long lastDrawNanos;
+
+  private final boolean inJob = JobService.inJob();
+
+  public ProgressBar(PrintStream out, String label, long total)
+  {
+    this.out = out;
+    this.label = label;
+    this.total = total;
+    JobService.phase(label, total);
+  }
+
+  public synchronized void step()
+  {
+    current++;
+    if(inJob)
+    {
+      JobService.step(1);
+      return;
+    }
+    long now = System.nanoTime();
+    if(now - lastDrawNanos >= REDRAW_NANOS || current == total)
+    {
+      lastDrawNanos = now;
+      draw(now);
+    }
+  }
+
+  public synchronized void done()
+  {
+    if(inJob)
+    {
+      return;
+    }
+    draw(System.nanoTime());
+    out.println();
+  }
+
+  private void draw(long now)
+  {
+    int filled = (total > 0) ? (int)(WIDTH * current / total) : WIDTH;
+    double seconds = (now - startNanos) / 1_000_000_000.0;
+    out.print(String.format("\r%s [%s%s] %d/%d %.1f/s", label,
+      "#".repeat(filled), ".".repeat(WIDTH - filled), current, total,
+      (seconds > 0) ? current / seconds : 0.0));
+    out.flush();
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+/**
+ * Token bucket rate limiter. A rate of 0 (or less) means unlimited.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class RateLimiter
+{
+  private final double permitsPerSecond;
+
+  private final double maxPermits;
+
+  private double availablePermits;
+
+  private long lastRefillNanos;
+
+  /**
+   * @param permitsPerSecond sustained rate, &lt;= 0 for unlimited
+   * @param burst            maximum number of permits stored
+   */
+  public RateLimiter(double permitsPerSecond, double burst)
+  {
+    this.permitsPerSecond = permitsPerSecond;
+    this.maxPermits = Math.max(1, burst);
+    this.availablePermits = this.maxPermits;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  public RateLimiter(double permitsPerSecond)
+  {
+    this(permitsPerSecond, 1);
+  }
+
+  /**
+   * Blocks until a permit is available.
+   */
+  public void acquire()
+    throws InterruptedException
+  {
+    if(permitsPerSecond <= 0)
+    {
+      return;
+    }
+
+    long waitNanos;
+    synchronized(this)
+    {
+      refill();
+      availablePermits -= 1;
+      waitNanos = (availablePermits >= 0) ? 0
+        : (long)(-availablePermits / permitsPerSecond * 1_000_000_000L);
+    }
+
+    if(waitNanos > 0)
+    {
+      Thread.sleep(waitNanos / 1_000_000, (int)(waitNanos % 1_000_000));
+    }
+  }
+
+  private void refill()
+  {
+    long now = System.nanoTime();
+    availablePermits = Math.min(maxPermits, availablePermits
+      + (now - lastRefillNanos) * permitsPerSecond / 1_000_000_000L);
+    lastRefillNanos = now;
+  }
+
+}
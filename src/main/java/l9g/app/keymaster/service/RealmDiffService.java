@@ -0,0 +1,486 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.ClientScopeRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.springframework.stereotype.Service;
+
+/**
+ * Structural diff of the configuration of two realms, or of a realm and
+ * a snapshot file.
+ *
+ * Realm roles (with composites), clients, client roles (with
+ * composites) and client scopes are normalized into entities with a
+ * sorted property map and a 64 bit fingerprint of it. Entities are
+ * matched by type and name (clientId, role name, scope name) in hash
+ * maps, properties are only compared if the fingerprints differ, so
+ * the diff is linear in the size of the realms. Ids are ignored,
+ * composites are compared by name.
+ *
+ * Both sides are loaded concurrently on virtual threads, all requests
+ * go through the {@link KeycloakRequestExecutor}.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class RealmDiffService
+{
+  public final static String REALM_ROLE = "realm-role";
+
+  public final static String CLIENT = "client";
+
+  public final static String CLIENT_ROLE = "client-role";
+
+  public final static String CLIENT_SCOPE = "client-scope";
+
+  private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private final static long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * A normalized realm object.
+   */
+  public record Entity(String type, String key,
+    SortedMap<String, String> properties, long fingerprint)
+  {
+  }
+
+  /**
+   * "+" only in the right realm, "-" only in the left realm, "~"
+   * changed, fields maps a property to its left and right value.
+   */
+  public record Change(String op, String type, String key,
+    SortedMap<String, List<String>> fields)
+  {
+  }
+
+  public record DiffResult(String left, String right, int leftEntities,
+    int rightEntities, Set<String> types, List<Change> changes,
+    long loadMillis, long diffMillis)
+  {
+  }
+
+  /**
+   * All entities of one side, by type and key.
+   */
+  private static class RealmModel
+  {
+    final String name;
+
+    final Set<String> types;
+
+    final Map<String, Map<String, Entity>> entities = new ConcurrentHashMap<>();
+
+    RealmModel(String name, Set<String> types)
+    {
+      this.name = name;
+      this.types = types;
+    }
+
+    void add(String type, String key, SortedMap<String, String> properties)
+    {
+      entities.computeIfAbsent(type, k -> new ConcurrentHashMap<>())
+        .put(key, new Entity(type, key, properties, fingerprint(properties)));
+    }
+
+    Map<String, Entity> get(String type)
+    {
+      return entities.getOrDefault(type, Map.of());
+    }
+
+    int size(Set<String> types)
+    {
+      return types.stream().mapToInt(type -> get(type).size()).sum();
+    }
+
+  }
+
+  private final Keycloak keycloak;
+
+  private final RealmRegistry realmRegistry;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final RealmSnapshotService realmSnapshotService;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public RealmDiffService(KeycloakBuilderService keycloakConnection,
+    RealmRegistry realmRegistry, KeycloakRequestExecutor requestExecutor,
+    RealmSnapshotService realmSnapshotService)
+  {
+    keycloak = keycloakConnection.getKeycloak();
+    this.realmRegistry = realmRegistry;
+    this.requestExecutor = requestExecutor;
+    this.realmSnapshotService = realmSnapshotService;
+  }
+
+  /**
+   * Compares the selected realm (left) with another realm or a snapshot
+   * file (right).
+   *
+   * @param otherRealm   name of the other realm or <code>null</code>
+   * @param snapshotFile snapshot file, used if otherRealm is
+   *                     <code>null</code>
+   */
+  public DiffResult diff(String otherRealm, Path snapshotFile)
+    throws IOException, InterruptedException
+  {
+    String realm = realmRegistry.current().realm();
+    log.debug("diff {} with {}", realm, (otherRealm != null) ? otherRealm : snapshotFile);
+    long start = System.nanoTime();
+
+    RealmModel left;
+    RealmModel right;
+    try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      Future<RealmModel> leftFuture = executor.submit(() -> loadRealm(realm));
+      Future<RealmModel> rightFuture = executor.submit(() -> (otherRealm != null)
+        ? loadRealm(otherRealm) : loadSnapshot(snapshotFile));
+      left = get(leftFuture);
+      right = get(rightFuture);
+    }
+    long loaded = System.nanoTime();
+
+    // types missing on one side (e.g. client roles in a snapshot) are
+    // not compared
+    Set<String> types = new TreeSet<>(left.types);
+    types.retainAll(right.types);
+
+    List<Change> changes = new ArrayList<>();
+    for(String type : types)
+    {
+      Map<String, Entity> leftEntities = left.get(type);
+      Map<String, Entity> rightEntities = right.get(type);
+
+      for(Entity entity : leftEntities.values())
+      {
+        Entity other = rightEntities.get(entity.key());
+        if(other == null)
+        {
+          changes.add(new Change("-", type, entity.key(), fields(entity.properties(), Map.of())));
+        }
+        else if(other.fingerprint() != entity.fingerprint())
+        {
+          SortedMap<String, List<String>> fields = fields(entity.properties(), other.properties());
+          if( ! fields.isEmpty())
+          {
+            changes.add(new Change("~", type, entity.key(), fields));
+          }
+        }
+      }
+
+      for(Entity entity : rightEntities.values())
+      {
+        if( ! leftEntities.containsKey(entity.key()))
+        {
+          changes.add(new Change("+", type, entity.key(), fields(Map.of(), entity.properties())));
+        }
+      }
+    }
+
+    changes.sort(Comparator.comparing(Change :: type)
+      .thenComparing(Change :: key, String.CASE_INSENSITIVE_ORDER)
+      .thenComparing(Change :: op));
+
+    DiffResult result = new DiffResult(left.name, right.name, left.size(types),
+      right.size(types), types, changes, (loaded - start) / 1_000_000,
+      (System.nanoTime() - loaded) / 1_000_000);
+    log.info("diff {} / {}: {} / {} entities, {} changes, loaded in {}ms, compared in {}ms",
+      result.left(), result.right(), result.leftEntities(), result.rightEntities(),
+      changes.size(), result.loadMillis(), result.diffMillis());
+    return result;
+  }
+
+  /**
+   * Writes the changes as JSON lines.
+   */
+  public void write(DiffResult result, Path file)
+    throws IOException
+  {
+    try(OutputStream out = Files.newOutputStream(file);
+      JsonGenerator generator = objectMapper.createGenerator(out))
+    {
+      generator.setRootValueSeparator(null);
+      for(Change change : result.changes())
+      {
+        objectMapper.writeValue(generator, change);
+        generator.writeRaw('\n');
+      }
+    }
+  }
+
+  private RealmModel loadRealm(String name)
+    throws InterruptedException
+  {
+    RealmModel model = new RealmModel("realm " + name,
+      Set.of(REALM_ROLE, CLIENT, CLIENT_ROLE, CLIENT_SCOPE));
+    RealmResource realmResource = keycloak.realm(name);
+
+    try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      Future<List<RoleRepresentation>> rolesFuture = executor.submit(() ->
+        requestExecutor.execute("roles.list", () -> realmResource.roles().list()));
+      Future<List<ClientRepresentation>> clientsFuture = executor.submit(() ->
+        requestExecutor.execute("clients.list", () -> realmResource.clients().findAll()));
+      Future<List<ClientScopeRepresentation>> scopesFuture = executor.submit(() ->
+        requestExecutor.execute("client-scopes.list", () -> realmResource.clientScopes().findAll()));
+
+      List<ClientRepresentation> clients = get(clientsFuture);
+      Map<String, String> clientIds = new HashMap<>();
+      clients.forEach(client -> clientIds.put(client.getId(), client.getClientId()));
+
+      for(ClientScopeRepresentation scope : get(scopesFuture))
+      {
+        model.add(CLIENT_SCOPE, scope.getName(), scopeProperties(scope));
+      }
+
+      // every request must succeed, a missing role would be reported as
+      // a change
+      List<Future<?>> tasks = new ArrayList<>();
+      for(ClientRepresentation client : clients)
+      {
+        model.add(CLIENT, client.getClientId(), clientProperties(client));
+        tasks.add(executor.submit(() ->
+        {
+          for(RoleRepresentation role : requestExecutor.execute("client-roles.list",
+            () -> realmResource.clients().get(client.getId()).roles().list()))
+          {
+            Set<RoleRepresentation> composites = Boolean.TRUE.equals(role.isComposite())
+              ? requestExecutor.execute("roles-by-id.composites",
+                () -> realmResource.rolesById().getRoleComposites(role.getId()))
+              : Set.of();
+            model.add(CLIENT_ROLE, client.getClientId() + "/" + role.getName(),
+              roleProperties(role, composites, clientIds));
+          }
+          return null;
+        }));
+      }
+
+      for(RoleRepresentation role : get(rolesFuture))
+      {
+        if(Boolean.TRUE.equals(role.isComposite()))
+        {
+          tasks.add(executor.submit(() ->
+          {
+            model.add(REALM_ROLE, role.getName(), roleProperties(role,
+              requestExecutor.execute("roles.composites",
+                () -> realmResource.roles().get(role.getName()).getRoleComposites()),
+              clientIds));
+            return null;
+          }));
+        }
+        else
+        {
+          model.add(REALM_ROLE, role.getName(), roleProperties(role, Set.of(), clientIds));
+        }
+      }
+
+      for(Future<?> task : tasks)
+      {
+        get(task);
+      }
+    }
+
+    return model;
+  }
+
+  private RealmModel loadSnapshot(Path file)
+    throws IOException
+  {
+    RealmSnapshotService.SnapshotConfiguration snapshot =
+      realmSnapshotService.readConfiguration(file);
+    RealmModel model = new RealmModel("snapshot " + file + " of realm "
+      + snapshot.realm() + " from " + snapshot.created(), Set.of(REALM_ROLE, CLIENT));
+
+    Map<String, String> clientIds = new HashMap<>();
+    for(ClientRepresentation client : snapshot.clients())
+    {
+      clientIds.put(client.getId(), client.getClientId());
+      model.add(CLIENT, client.getClientId(), clientProperties(client));
+    }
+
+    for(RoleRepresentation role : snapshot.realmRoles())
+    {
+      model.add(REALM_ROLE, role.getName(), roleProperties(role,
+        snapshot.roleComposites().getOrDefault(role.getName(), Set.of()), clientIds));
+    }
+    return model;
+  }
+
+  private static SortedMap<String, String> roleProperties(RoleRepresentation role,
+    Collection<RoleRepresentation> composites, Map<String, String> clientIds)
+  {
+    SortedMap<String, String> properties = new TreeMap<>();
+    put(properties, "description", role.getDescription());
+    put(properties, "composite", role.isComposite());
+    put(properties, "composites", composites.stream()
+      .map(composite -> Boolean.TRUE.equals(composite.getClientRole())
+      ? clientIds.getOrDefault(composite.getContainerId(), composite.getContainerId())
+      + "/" + composite.getName() : composite.getName())
+      .sorted().collect(Collectors.joining(", ")));
+    if(role.getAttributes() != null)
+    {
+      role.getAttributes().forEach((key, value) ->
+        put(properties, "attributes." + key, String.join(", ", value)));
+    }
+    return properties;
+  }
+
+  private static SortedMap<String, String> clientProperties(ClientRepresentation client)
+  {
+    SortedMap<String, String> properties = new TreeMap<>();
+    put(properties, "name", client.getName());
+    put(properties, "description", client.getDescription());
+    put(properties, "enabled", client.isEnabled());
+    put(properties, "protocol", client.getProtocol());
+    put(properties, "publicClient", client.isPublicClient());
+    put(properties, "bearerOnly", client.isBearerOnly());
+    put(properties, "standardFlowEnabled", client.isStandardFlowEnabled());
+    put(properties, "implicitFlowEnabled", client.isImplicitFlowEnabled());
+    put(properties, "directAccessGrantsEnabled", client.isDirectAccessGrantsEnabled());
+    put(properties, "serviceAccountsEnabled", client.isServiceAccountsEnabled());
+    put(properties, "fullScopeAllowed", client.isFullScopeAllowed());
+    put(properties, "rootUrl", client.getRootUrl());
+    put(properties, "baseUrl", client.getBaseUrl());
+    put(properties, "adminUrl", client.getAdminUrl());
+    put(properties, "redirectUris", sorted(client.getRedirectUris()));
+    put(properties, "webOrigins", sorted(client.getWebOrigins()));
+    put(properties, "defaultClientScopes", sorted(client.getDefaultClientScopes()));
+    put(properties, "optionalClientScopes", sorted(client.getOptionalClientScopes()));
+    if(client.getAttributes() != null)
+    {
+      client.getAttributes().forEach((key, value) ->
+        put(properties, "attributes." + key, value));
+    }
+    return properties;
+  }
+
+  private static SortedMap<String, String> scopeProperties(ClientScopeRepresentation scope)
+  {
+    SortedMap<String, String> properties = new TreeMap<>();
+    put(properties, "description", scope.getDescription());
+    put(properties, "protocol", scope.getProtocol());
+    if(scope.getAttributes() != null)
+    {
+      scope.getAttributes().forEach((key, value) ->
+        put(properties, "attributes." + key, value));
+    }
+    if(scope.getProtocolMappers() != null)
+    {
+      scope.getProtocolMappers().forEach(mapper ->
+        put(properties, "mappers." + mapper.getName(), mapper.getProtocolMapper()
+          + " " + new TreeMap<>((mapper.getConfig() != null) ? mapper.getConfig() : Map.of())));
+    }
+    return properties;
+  }
+
+  private static void put(SortedMap<String, String> properties, String name,
+    Object value)
+  {
+    if(value != null && ! "".equals(value))
+    {
+      properties.put(name, value.toString());
+    }
+  }
+
+  private static String sorted(Collection<String> values)
+  {
+    return (values == null) ? null : values.stream().sorted()
+      .collect(Collectors.joining(", "));
+  }
+
+  private static SortedMap<String, List<String>> fields(Map<String, String> left,
+    Map<String, String> right)
+  {
+    SortedMap<String, List<String>> fields = new TreeMap<>();
+    Set<String> names = new TreeSet<>(left.keySet());
+    names.addAll(right.keySet());
+    for(String name : names)
+    {
+      String leftValue = left.get(name);
+      String rightValue = right.get(name);
+      if( ! (leftValue == null ? rightValue == null : leftValue.equals(rightValue)))
+      {
+        fields.put(name, Arrays.asList(leftValue, rightValue));
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * 64 bit FNV-1a of the sorted properties.
+   */
+  private static long fingerprint(SortedMap<String, String> properties)
+  {
+    long hash = FNV_OFFSET;
+    for(Map.Entry<String, String> entry : properties.entrySet())
+    {
+      for(byte b : (entry.getKey() + "=" + entry.getValue() + "\0")
+        .getBytes(StandardCharsets.UTF_8))
+      {
+        hash ^= b & 0xff;
+        hash *= FNV_PRIME;
+      }
+    }
+    return hash;
+  }
+
+  private static <T> T get(Future<T> future)
+    throws InterruptedException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch(ExecutionException e)
+    {
+      throw (e.getCause() instanceof RuntimeException cause)
+        ? cause : new IllegalStateException(e.getCause());
+    }
+  }
+
+}
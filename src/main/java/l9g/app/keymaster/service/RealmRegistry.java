@@ -0,0 +1,231 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Services and caches per realm.
+ *
+ * The services of keycloak.realm are the Spring beans, the services of
+ * every other realm are created on first use. They share the admin
+ * client (connection pool, token) and the request executor, their
+ * caches are registered as &lt;name&gt;@&lt;realm&gt;.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class RealmRegistry
+{
+  public record RealmServices(String realm,
+    KeycloakBuilderService keycloakConnection, UserService userService,
+    ClientService clientService, RealmRoleService realmRoleService,
+    RoleGraphService roleGraphService, RoleMembershipIndex roleMembershipIndex,
+    UserAccessService userAccessService)
+  {
+  }
+
+  /**
+   * Result of a query in one realm, failure is <code>null</code> on
+   * success.
+   */
+  public record RealmResult<T>(String realm, T result, Throwable failure)
+  {
+  }
+
+  private final KeycloakBuilderService keycloakConnection;
+
+  private final CacheRegistry cacheRegistry;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final int usersPageSize;
+
+  private final int usersConcurrency;
+
+  private final int rolesConcurrency;
+
+  private final int realmsConcurrency;
+
+  private final RealmServices defaultServices;
+
+  private final Map<String, RealmServices> services = new ConcurrentHashMap<>();
+
+  private volatile RealmServices current;
+
+  public RealmRegistry(KeycloakBuilderService keycloakConnection,
+    CacheRegistry cacheRegistry, KeycloakRequestExecutor requestExecutor,
+    UserService userService, ClientService clientService,
+    RealmRoleService realmRoleService, RoleGraphService roleGraphService,
+    RoleMembershipIndex roleMembershipIndex, UserAccessService userAccessService,
+    @Value("${keycloak.users.page-size:100}") int usersPageSize,
+    @Value("${keycloak.users.concurrency:8}") int usersConcurrency,
+    @Value("${keycloak.roles.concurrency:8}") int rolesConcurrency,
+    @Value("${keycloak.realms.concurrency:8}") int realmsConcurrency)
+  {
+    this.keycloakConnection = keycloakConnection;
+    this.cacheRegistry = cacheRegistry;
+    this.requestExecutor = requestExecutor;
+    this.usersPageSize = usersPageSize;
+    this.usersConcurrency = usersConcurrency;
+    this.rolesConcurrency = rolesConcurrency;
+    this.realmsConcurrency = Math.max(1, realmsConcurrency);
+    defaultServices = new RealmServices(keycloakConnection.getRealm(),
+      keycloakConnection, userService, clientService, realmRoleService,
+      roleGraphService, roleMembershipIndex, userAccessService);
+    services.put(defaultServices.realm(), defaultServices);
+    current = defaultServices;
+  }
+
+  /**
+   * Services of the realm selected with {@link #use(String)}.
+   */
+  public RealmServices current()
+  {
+    return current;
+  }
+
+  public String getDefaultRealm()
+  {
+    return defaultServices.realm();
+  }
+
+  /**
+   * For commands working on the caches of keycloak.realm (snapshot,
+   * sync).
+   *
+   * @throws IllegalStateException if another realm is selected
+   */
+  public void requireDefaultRealm(String command)
+  {
+    if(current != defaultServices)
+    {
+      throw new IllegalStateException(command + " only works in the realm "
+        + defaultServices.realm() + ", select it with use-realm first");
+    }
+  }
+
+  /**
+   * Selects the realm of the Keycloak commands.
+   *
+   * @throws IllegalArgumentException if the server has no such realm
+   */
+  public RealmServices use(String realm)
+  {
+    if( ! services.containsKey(realm) && ! realmNames().contains(realm))
+    {
+      throw new IllegalArgumentException("unknown realm '" + realm + "'");
+    }
+    current = services(realm);
+    log.info("using realm {}", realm);
+    return current;
+  }
+
+  /**
+   * Services of a realm, created on first use.
+   */
+  public RealmServices services(String realm)
+  {
+    return services.computeIfAbsent(realm, this :: createServices);
+  }
+
+  public List<String> realmNames()
+  {
+    return requestExecutor.execute("realms.list",
+      () -> keycloakConnection.getKeycloak().realms().findAll())
+      .stream().map(RealmRepresentation :: getRealm).toList();
+  }
+
+  /**
+   * Runs a query in all realms of the server, keycloak.realms.concurrency
+   * realms in parallel. Concurrent requests are still limited by the
+   * request executor. A failing realm does not stop the others.
+   *
+   * @return results in the order of the realm list
+   */
+  public <T> List<RealmResult<T>> forAllRealms(Function<RealmServices, T> query)
+    throws InterruptedException
+  {
+    List<String> realms = realmNames();
+    List<Future<T>> futures = new ArrayList<>(realms.size());
+    List<RealmResult<T>> results = new ArrayList<>(realms.size());
+
+    Semaphore permits = new Semaphore(realmsConcurrency);
+    try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      for(String realm : realms)
+      {
+        futures.add(executor.submit(() ->
+        {
+          permits.acquire();
+          try
+          {
+            return query.apply(services(realm));
+          }
+          finally
+          {
+            permits.release();
+          }
+        }));
+      }
+
+      for(int i = 0; i < realms.size(); i++)
+      {
+        try
+        {
+          results.add(new RealmResult<>(realms.get(i), futures.get(i).get(), null));
+        }
+        catch(ExecutionException e)
+        {
+          log.warn("query in realm {} failed: {}", realms.get(i), e.getCause().toString());
+          results.add(new RealmResult<>(realms.get(i), null, e.getCause()));
+        }
+      }
+    }
+
+    return results;
+  }
+
+  private RealmServices createServices(String realm)
+  {
+    log.debug("create services for realm {}", realm);
+    KeycloakBuilderService connection = keycloakConnection.forRealm(realm);
+    CacheRegistry caches = cacheRegistry.forRealm(realm);
+    ClientService clientService = new ClientService(connection, caches, requestExecutor);
+    RealmRoleService realmRoleService = new RealmRoleService(connection, caches, requestExecutor);
+    return new RealmServices(realm, connection,
+      new UserService(connection, caches, requestExecutor, usersPageSize, usersConcurrency),
+      clientService, realmRoleService,
+      new RoleGraphService(connection, realmRoleService, clientService, caches, rolesConcurrency),
+      new RoleMembershipIndex(connection, caches, requestExecutor),
+      new UserAccessService(connection, clientService, realmRoleService, requestExecutor));
+  }
+
+}
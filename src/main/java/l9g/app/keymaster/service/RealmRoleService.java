@@ -15,8 +15,8 @@
  */
 package l9g.app.keymaster.service;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,32 +38,37 @@ public class RealmRoleService
 
   private final Keycloak keycloak;
 
-  private final List<RoleRepresentation> realmRolesList = new ArrayList<>();
+  private final KeycloakRequestExecutor requestExecutor;
 
-  private final Map<String, Set<RoleRepresentation>> roleCompositesMap = new HashMap<>();
+  private final AsyncCache<String, List<RoleRepresentation>> realmRolesCache;
 
-  private final Map<String, RoleResource> roleResourcesMap = new HashMap<>();
+  private final AsyncCache<String, Set<RoleRepresentation>> roleCompositesCache;
 
-  public RealmRoleService(KeycloakBuilderService keycloakConnection)
+  private final Cache<String, RoleResource> roleResourcesCache;
+
+  private final AsyncCache<String, Set<RoleRepresentation>> clientRoleCompositesCache;
+
+  public RealmRoleService(KeycloakBuilderService keycloakConnection,
+    CacheRegistry cacheRegistry, KeycloakRequestExecutor requestExecutor)
   {
     realm = keycloakConnection.getRealm();
     keycloak = keycloakConnection.getKeycloak();
+    this.requestExecutor = requestExecutor;
+    realmRolesCache = cacheRegistry.createAsync("realm-roles");
+    roleCompositesCache = cacheRegistry.createAsync("role-composites");
+    roleResourcesCache = cacheRegistry.create("role-resources");
+    clientRoleCompositesCache = cacheRegistry.createAsync("client-role-composites");
   }
 
-  public synchronized List<RoleRepresentation> roles(boolean reload)
+  /**
+   * All realm roles. Concurrent callers share one request, cache hits
+   * never block.
+   */
+  public List<RoleRepresentation> roles(boolean reload)
   {
-    if(reload || realmRolesList.isEmpty())
-    {
-      log.debug("reload realm roles");
-      realmRolesList.clear();
-      realmRolesList.addAll(keycloak.realm(realm).roles().list());
-    }
-    else
-    {
-      log.debug("realm roles from cache");
-    }
-
-    return realmRolesList;
+    return reload
+      ? CacheRegistry.reload(realmRolesCache, realm, key -> loadRoles())
+      : CacheRegistry.load(realmRolesCache, realm, key -> loadRoles());
   }
 
   public List<RoleRepresentation> roles()
@@ -71,31 +76,70 @@ public class RealmRoleService
     return RealmRoleService.this.roles(false);
   }
 
-  public synchronized RoleResource resourceByName(String roleName)
+  public RoleResource resourceByName(String roleName)
   {
-    RoleResource resource = roleResourcesMap.get(roleName);
+    return roleResourcesCache.get(roleName,
+      key -> keycloak.realm(realm).roles().get(key));
+  }
 
-    if(resource == null)
-    {
-      resource = keycloak.realm(realm).roles().get(roleName);
-      roleResourcesMap.put(roleName, resource);
-    }
+  public Set<RoleRepresentation> compositesByName(String roleName)
+  {
+    return CacheRegistry.load(roleCompositesCache, roleName,
+      key -> requestExecutor.execute("roles.composites",
+        () -> resourceByName(key).getRoleComposites()));
+  }
 
-    return resource;
+  /**
+   * Composites of a (client) role by role id.
+   */
+  public Set<RoleRepresentation> compositesById(String roleId)
+  {
+    return CacheRegistry.load(clientRoleCompositesCache, roleId,
+      key -> requestExecutor.execute("roles-by-id.composites",
+        () -> keycloak.realm(realm).rolesById().getRoleComposites(key)));
   }
 
-  public synchronized Set<RoleRepresentation> compositesByName(String roleName)
+  /**
+   * Drops the composites of all client roles, e.g. after a client role
+   * has been changed.
+   */
+  public void invalidateClientRoleComposites()
   {
-    Set<RoleRepresentation> composites = roleCompositesMap.get(roleName);
+    clientRoleCompositesCache.synchronous().invalidateAll();
+  }
 
-    if(composites == null)
+  /**
+   * Drops a changed role from the caches.
+   *
+   * @param roleName role name or <code>null</code> if only the id is
+   *                 known, then all composites are dropped
+   */
+  public void invalidate(String roleName)
+  {
+    realmRolesCache.synchronous().invalidate(realm);
+    if(roleName != null)
+    {
+      roleCompositesCache.synchronous().invalidate(roleName);
+      roleResourcesCache.invalidate(roleName);
+    }
+    else
     {
-      RoleResource roleResource = resourceByName(roleName);
-      composites = roleResource.getRoleComposites();
-      roleCompositesMap.put(roleName, composites);
+      roleCompositesCache.synchronous().invalidateAll();
     }
+  }
+
+  public void seed(List<RoleRepresentation> roles,
+    Map<String, Set<RoleRepresentation>> composites)
+  {
+    realmRolesCache.synchronous().put(realm, roles);
+    roleCompositesCache.synchronous().putAll(composites);
+  }
 
-    return composites;
+  private List<RoleRepresentation> loadRoles()
+  {
+    log.debug("reload realm roles");
+    return requestExecutor.execute("roles.list",
+      () -> keycloak.realm(realm).roles().list());
   }
 
 }
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Local snapshot of the realm state (users, clients, realm roles and
+ * role composites) for a warm start of the caches.
+ *
+ * The snapshot is a Smile (binary JSON) file per base URL and realm. It
+ * is loaded at startup if it is younger than keycloak.snapshot.max-age
+ * and refreshed in the background if it is older than
+ * keycloak.snapshot.refresh-after. Users are streamed in and out, so
+ * no intermediate list of the whole realm is built.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class RealmSnapshotService
+{
+  private final static int FORMAT_VERSION = 1;
+
+  private final static TypeReference<List<ClientRepresentation>> CLIENTS_TYPE =
+    new TypeReference<>()
+  {
+  };
+
+  private final static TypeReference<List<RoleRepresentation>> ROLES_TYPE =
+    new TypeReference<>()
+  {
+  };
+
+  private final static TypeReference<Map<String, Set<RoleRepresentation>>> COMPOSITES_TYPE =
+    new TypeReference<>()
+  {
+  };
+
+  private final String baseUrl;
+
+  private final String realm;
+
+  private final boolean enabled;
+
+  private final Path directory;
+
+  private final Duration maxAge;
+
+  private final Duration refreshAfter;
+
+  private final UserService userService;
+
+  private final ClientService clientService;
+
+  private final RealmRoleService realmRoleService;
+
+  private final RealmSyncService realmSyncService;
+
+  private final ObjectMapper objectMapper;
+
+  @Getter
+  private volatile Instant loadedSnapshotTime;
+
+  @Getter
+  private volatile long loadMillis;
+
+  public RealmSnapshotService(KeycloakBuilderService keycloakConnection,
+    UserService userService,
+    ClientService clientService,
+    RealmRoleService realmRoleService,
+    RealmSyncService realmSyncService,
+    @Value("${keycloak.snapshot.enabled:false}") boolean enabled,
+    @Value("${keycloak.snapshot.directory:${user.home}/.keymaster/snapshots}") Path directory,
+    @Value("${keycloak.snapshot.max-age:24h}") Duration maxAge,
+    @Value("${keycloak.snapshot.refresh-after:1h}") Duration refreshAfter)
+  {
+    this.baseUrl = keycloakConnection.getBaseUrl();
+    this.realm = keycloakConnection.getRealm();
+    this.userService = userService;
+    this.clientService = clientService;
+    this.realmRoleService = realmRoleService;
+    this.realmSyncService = realmSyncService;
+    this.enabled = enabled;
+    this.directory = directory;
+    this.maxAge = maxAge;
+    this.refreshAfter = refreshAfter;
+
+    objectMapper = new ObjectMapper(new SmileFactory())
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+      .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+  }
+
+  @EventListener(ApplicationStartedEvent.class)
+  public void onStartup()
+  {
+    if( ! enabled)
+    {
+      return;
+    }
+
+    Instant created = null;
+    try
+    {
+      created = load();
+    }
+    catch(IOException | RuntimeException e)
+    {
+      log.warn("loading snapshot {} failed: {}", snapshotFile(), e.getMessage());
+    }
+
+    if(created == null || created.plus(refreshAfter).isBefore(Instant.now()))
+    {
+      Thread.ofVirtual().name("snapshot-refresh").start(() ->
+      {
+        try
+        {
+          refresh();
+        }
+        catch(IOException | RuntimeException e)
+        {
+          log.warn("refreshing snapshot {} failed: {}", snapshotFile(), e.getMessage());
+        }
+      });
+    }
+  }
+
+  public Path snapshotFile()
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+        .digest((baseUrl + "|" + realm).getBytes(StandardCharsets.UTF_8));
+      return directory.resolve(realm + "-"
+        + HexFormat.of().formatHex(digest, 0, 6) + ".snapshot");
+    }
+    catch(NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Loads the snapshot file into the caches.
+   *
+   * @return creation time of the loaded snapshot or <code>null</code> if
+   *         there is no usable snapshot
+   */
+  public Instant load()
+    throws IOException
+  {
+    Path file = snapshotFile();
+    if( ! Files.isRegularFile(file))
+    {
+      log.debug("no snapshot {}", file);
+      return null;
+    }
+
+    long start = System.currentTimeMillis();
+    UserRecordStore store = new UserRecordStore();
+    List<ClientRepresentation> clients = new ArrayList<>();
+    List<RoleRepresentation> realmRoles = new ArrayList<>();
+    Map<String, Set<RoleRepresentation>> roleComposites = new HashMap<>();
+    Instant created = null;
+
+    try(InputStream in = new BufferedInputStream(Files.newInputStream(file));
+      JsonParser parser = objectMapper.createParser(in))
+    {
+      expect(parser.nextToken(), JsonToken.START_OBJECT);
+      while(parser.nextToken() == JsonToken.FIELD_NAME)
+      {
+        String field = parser.currentName();
+        parser.nextToken();
+        switch(field)
+        {
+          case "version" ->
+          {
+            if(parser.getIntValue() != FORMAT_VERSION)
+            {
+              log.info("snapshot {} has unsupported version {}", file, parser.getIntValue());
+              return null;
+            }
+          }
+          case "created" ->
+          {
+            created = Instant.ofEpochMilli(parser.getLongValue());
+            if(created.plus(maxAge).isBefore(Instant.now()))
+            {
+              log.info("snapshot {} from {} is older than {}", file, created, maxAge);
+              return null;
+            }
+          }
+          case "users" ->
+          {
+            expect(parser.currentToken(), JsonToken.START_ARRAY);
+            while(parser.nextToken() == JsonToken.START_OBJECT)
+            {
+              store.add(objectMapper.readValue(parser, UserRecord.class));
+            }
+          }
+          case "clients" ->
+            clients.addAll(objectMapper.readValue(parser, CLIENTS_TYPE));
+          case "realmRoles" ->
+            realmRoles.addAll(objectMapper.readValue(parser, ROLES_TYPE));
+          case "roleComposites" ->
+            roleComposites.putAll(objectMapper.readValue(parser, COMPOSITES_TYPE));
+          default ->
+            parser.skipChildren();
+        }
+      }
+    }
+
+    if(created == null)
+    {
+      return null;
+    }
+
+    userService.seed(store);
+    clientService.seed(clients);
+    realmRoleService.seed(realmRoles, roleComposites);
+    realmSyncService.resetPosition(created);
+
+    loadedSnapshotTime = created;
+    loadMillis = System.currentTimeMillis() - start;
+    log.info("snapshot {} from {} loaded in {}ms ({} users, {} clients, {} realm roles)",
+      file, created, loadMillis, store.size(), clients.size(), realmRoles.size());
+    return created;
+  }
+
+  /**
+   * Realm configuration of a snapshot file, users are skipped.
+   */
+  public record SnapshotConfiguration(String realm, Instant created,
+    List<ClientRepresentation> clients, List<RoleRepresentation> realmRoles,
+    Map<String, Set<RoleRepresentation>> roleComposites)
+  {
+  }
+
+  /**
+   * Reads clients, realm roles and composites of any snapshot file, e.g.
+   * to compare it with a realm.
+   */
+  public SnapshotConfiguration readConfiguration(Path file)
+    throws IOException
+  {
+    String snapshotRealm = null;
+    Instant created = null;
+    List<ClientRepresentation> clients = new ArrayList<>();
+    List<RoleRepresentation> realmRoles = new ArrayList<>();
+    Map<String, Set<RoleRepresentation>> roleComposites = new HashMap<>();
+
+    try(InputStream in = new BufferedInputStream(Files.newInputStream(file));
+      JsonParser parser = objectMapper.createParser(in))
+    {
+      expect(parser.nextToken(), JsonToken.START_OBJECT);
+      while(parser.nextToken() == JsonToken.FIELD_NAME)
+      {
+        String field = parser.currentName();
+        parser.nextToken();
+        switch(field)
+        {
+          case "version" ->
+          {
+            if(parser.getIntValue() != FORMAT_VERSION)
+            {
+              throw new IOException("unsupported snapshot version " + parser.getIntValue());
+            }
+          }
+          case "created" ->
+            created = Instant.ofEpochMilli(parser.getLongValue());
+          case "realm" ->
+            snapshotRealm = parser.getText();
+          case "clients" ->
+            clients.addAll(objectMapper.readValue(parser, CLIENTS_TYPE));
+          case "realmRoles" ->
+            realmRoles.addAll(objectMapper.readValue(parser, ROLES_TYPE));
+          case "roleComposites" ->
+            roleComposites.putAll(objectMapper.readValue(parser, COMPOSITES_TYPE));
+          default ->
+            parser.skipChildren();
+        }
+      }
+    }
+
+    return new SnapshotConfiguration(snapshotRealm, created, clients,
+      realmRoles, roleComposites);
+  }
+
+  /**
+   * Reloads the realm state from Keycloak and writes a new snapshot.
+   */
+  public Path refresh()
+    throws IOException
+  {
+    log.debug("refresh snapshot");
+    Instant start = Instant.now();
+    UserRecordStore store = userService.store(true);
+    List<ClientRepresentation> clients = List.copyOf(clientService.clients(true));
+    List<RoleRepresentation> realmRoles = realmRoleService.roles(true);
+    Map<String, Set<RoleRepresentation>> roleComposites = new HashMap<>();
+    realmRoles.stream()
+      .filter(role -> Boolean.TRUE.equals(role.isComposite()))
+      .forEach(role -> roleComposites.put(role.getName(),
+      realmRoleService.compositesByName(role.getName())));
+
+    realmSyncService.resetPosition(start);
+    return write(start, store, clients, realmRoles, roleComposites);
+  }
+
+  /**
+   * @param created start of the reload, a warm start syncs the admin
+   *                events from there
+   */
+  private Path write(Instant created, UserRecordStore store,
+    List<ClientRepresentation> clients,
+    List<RoleRepresentation> realmRoles,
+    Map<String, Set<RoleRepresentation>> roleComposites)
+    throws IOException
+  {
+    Path file = snapshotFile();
+    Files.createDirectories(file.getParent());
+    Path tmpFile = Files.createTempFile(file.getParent(), realm, ".tmp");
+
+    try
+    {
+      try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpFile));
+        JsonGenerator generator = objectMapper.createGenerator(out))
+      {
+        generator.writeStartObject();
+        generator.writeNumberField("version", FORMAT_VERSION);
+        generator.writeNumberField("created", created.toEpochMilli());
+        generator.writeStringField("baseUrl", baseUrl);
+        generator.writeStringField("realm", realm);
+
+        generator.writeArrayFieldStart("users");
+        for(Iterator<UserRecord> users = store.stream().iterator(); users.hasNext();)
+        {
+          objectMapper.writeValue(generator, users.next());
+        }
+        generator.writeEndArray();
+
+        generator.writeFieldName("clients");
+        objectMapper.writeValue(generator, clients);
+        generator.writeFieldName("realmRoles");
+        objectMapper.writeValue(generator, realmRoles);
+        generator.writeFieldName("roleComposites");
+        objectMapper.writeValue(generator, roleComposites);
+        generator.writeEndObject();
+      }
+
+      Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmpFile);
+    }
+
+    log.info("snapshot {} written ({} bytes)", file, Files.size(file));
+    return file;
+  }
+
+  private static void expect(JsonToken token, JsonToken expected)
+    throws IOException
+  {
+    if(token != expected)
+    {
+      throw new IOException("invalid snapshot, expected " + expected + " but got " + token);
+    }
+  }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.AdminEventRepresentation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Incremental refresh of the caches from the admin events of the realm.
+ *
+ * Only the admin events after the last sync position are read and only
+ * the affected users, roles and clients are reloaded or dropped, so the
+ * cost depends on the number of changes and not on the realm size.
+ * Requires "Save admin events" to be enabled for the realm.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class RealmSyncService
+{
+  public record SyncResult(int events, int applied, long millis)
+  {
+  }
+
+  private final static int PAGE_SIZE = 100;
+
+  private final static List<String> RESOURCE_TYPES = List.of(
+    "USER", "REALM_ROLE", "CLIENT", "CLIENT_ROLE", "CLIENT_ROLE_MAPPING");
+
+  private final String realm;
+
+  private final Keycloak keycloak;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final UserService userService;
+
+  private final ClientService clientService;
+
+  private final RealmRoleService realmRoleService;
+
+  private final RoleMembershipIndex roleMembershipIndex;
+
+  private final RoleGraphService roleGraphService;
+
+  private final Duration interval;
+
+  /**
+   * time of the last applied event (epoch millis)
+   */
+  @Getter
+  private volatile long syncPosition;
+
+  public RealmSyncService(KeycloakBuilderService keycloakConnection,
+    UserService userService,
+    ClientService clientService,
+    RealmRoleService realmRoleService,
+    RoleMembershipIndex roleMembershipIndex,
+    RoleGraphService roleGraphService,
+    KeycloakRequestExecutor requestExecutor,
+    @Value("${keycloak.sync.interval:0s}") Duration interval)
+  {
+    this.realm = keycloakConnection.getRealm();
+    this.keycloak = keycloakConnection.getKeycloak();
+    this.userService = userService;
+    this.clientService = clientService;
+    this.realmRoleService = realmRoleService;
+    this.roleMembershipIndex = roleMembershipIndex;
+    this.roleGraphService = roleGraphService;
+    this.requestExecutor = requestExecutor;
+    this.interval = interval;
+    this.syncPosition = System.currentTimeMillis();
+  }
+
+  @EventListener(ApplicationStartedEvent.class)
+  public void onStartup()
+  {
+    if(interval.isZero() || interval.isNegative())
+    {
+      return;
+    }
+
+    log.debug("sync every {}", interval);
+    Thread.ofVirtual().name("realm-sync").start(() ->
+    {
+      while( ! Thread.currentThread().isInterrupted())
+      {
+        try
+        {
+          Thread.sleep(interval);
+          sync();
+        }
+        catch(InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        catch(RuntimeException e)
+        {
+          log.warn("realm sync failed: {}", e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Sets the sync position, e.g. after a full reload or when a snapshot
+   * has been loaded.
+   */
+  public void resetPosition(Instant position)
+  {
+    log.debug("reset sync position to {}", position);
+    syncPosition = position.toEpochMilli();
+  }
+
+  public synchronized SyncResult sync()
+  {
+    long start = System.currentTimeMillis();
+    long from = syncPosition;
+    int events = 0;
+    int applied = 0;
+    int first = 0;
+    List<AdminEventRepresentation> page;
+
+    do
+    {
+      int pageFirst = first;
+      page = requestExecutor.execute("admin-events", () -> keycloak.realm(realm)
+        .getAdminEvents(null, null, null, null, null, null, RESOURCE_TYPES,
+          from, start, pageFirst, PAGE_SIZE, "asc"));
+
+      for(AdminEventRepresentation event : page)
+      {
+        if(event.getTime() < from)
+        {
+          continue;
+        }
+        events++;
+        if(apply(event))
+        {
+          applied++;
+        }
+        syncPosition = Math.max(syncPosition, event.getTime() + 1);
+      }
+      first += PAGE_SIZE;
+    }
+    while(page.size() == PAGE_SIZE);
+
+    SyncResult result = new SyncResult(events, applied,
+      System.currentTimeMillis() - start);
+    log.info("realm sync: {} events, {} applied in {}ms", result.events(),
+      result.applied(), result.millis());
+    return result;
+  }
+
+  private boolean apply(AdminEventRepresentation event)
+  {
+    if(event.getResourceType() == null)
+    {
+      return false;
+    }
+
+    String[] path = (event.getResourcePath() != null)
+      ? event.getResourcePath().split("/") : new String[0];
+    boolean deleted = "DELETE".equals(event.getOperationType());
+
+    log.debug("apply {} {} {}", event.getOperationType(),
+      event.getResourceType(), event.getResourcePath());
+
+    switch(event.getResourceType())
+    {
+      case "USER" ->
+      {
+        // users/{id}
+        if(path.length == 2 && "users".equals(path[0]))
+        {
+          return userService.applyUserChange(path[1], deleted);
+        }
+      }
+      case "REALM_ROLE" ->
+      {
+        // roles/{name}[/composites] or roles-by-id/{id}[/composites]
+        if(path.length >= 2)
+        {
+          realmRoleService.invalidate("roles".equals(path[0]) ? path[1] : null);
+          roleGraphService.invalidate();
+          return true;
+        }
+      }
+      case "CLIENT" ->
+      {
+        // clients/{id}
+        if(path.length >= 2 && "clients".equals(path[0]))
+        {
+          clientService.invalidate(path[1]);
+          roleMembershipIndex.invalidate(path[1]);
+          return true;
+        }
+      }
+      case "CLIENT_ROLE" ->
+      {
+        // clients/{id}/roles/{name}[/composites]
+        if(path.length >= 2 && "clients".equals(path[0]))
+        {
+          roleMembershipIndex.invalidate(path[1]);
+          realmRoleService.invalidateClientRoleComposites();
+          roleGraphService.invalidate();
+          return true;
+        }
+        // roles-by-id/{id}[/composites], the client is not known
+        if(path.length >= 2 && "roles-by-id".equals(path[0]))
+        {
+          realmRoleService.invalidateClientRoleComposites();
+          roleGraphService.invalidate();
+          return true;
+        }
+      }
+      case "CLIENT_ROLE_MAPPING" ->
+      {
+        // users/{id}/role-mappings/clients/{clientId}
+        if(path.length == 5 && "users".equals(path[0]) && "clients".equals(path[3]))
+        {
+          roleMembershipIndex.invalidate(path[4]);
+          return true;
+        }
+      }
+      default ->
+      {
+      }
+    }
+
+    return false;
+  }
+
+}
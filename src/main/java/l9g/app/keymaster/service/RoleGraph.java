@@ -0,0 +1,238 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.keycloak.representations.idm.RoleRepresentation;
+
+/**
+ * Immutable composite role graph with its transitive closure.
+ *
+ * Every role gets a dense index, the direct composites, the transitive
+ * closure ("expands to") and its inverse ("granted by") are stored as
+ * one {@link BitSet} per role. Cycles are allowed, a role being part of
+ * a cycle is contained in its own closure.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class RoleGraph
+{
+  /**
+   * A role of the graph, clientId is <code>null</code> for realm roles.
+   */
+  public record Node(int index, String id, String name, String clientId)
+  {
+    public boolean clientRole()
+    {
+      return clientId != null;
+    }
+
+    public String label()
+    {
+      return (clientId != null) ? "[" + clientId + "] " + name : name;
+    }
+
+  }
+
+  private final Node[] nodes;
+
+  private final Map<String, Integer> indexById = new HashMap<>();
+
+  private final Map<String, Integer> indexByLabel = new HashMap<>();
+
+  private final BitSet[] composites;
+
+  private final BitSet[] closure;
+
+  private final BitSet[] grantedBy;
+
+  private final BitSet realmRoles = new BitSet();
+
+  /**
+   * @param nodes      all roles, node.index() is the position in the list
+   * @param composites direct composites per node index
+   */
+  RoleGraph(List<Node> nodes, BitSet[] composites)
+  {
+    this.nodes = nodes.toArray(Node[] :: new);
+    this.composites = composites;
+
+    for(Node node : this.nodes)
+    {
+      indexById.put(node.id(), node.index());
+      indexByLabel.put(node.label(), node.index());
+      if( ! node.clientRole())
+      {
+        realmRoles.set(node.index());
+      }
+    }
+
+    closure = new BitSet[this.nodes.length];
+    for(int i = 0; i < this.nodes.length; i++)
+    {
+      closure[i] = reachable(i);
+    }
+
+    grantedBy = new BitSet[this.nodes.length];
+    for(int i = 0; i < this.nodes.length; i++)
+    {
+      grantedBy[i] = new BitSet(this.nodes.length);
+    }
+    for(int i = 0; i < this.nodes.length; i++)
+    {
+      int grantor = i;
+      closure[i].stream().forEach(granted -> grantedBy[granted].set(grantor));
+    }
+  }
+
+  /**
+   * Breadth first search from a single role. Closures of roles already
+   * computed are complete, so they are merged instead of walked again.
+   * The visited set makes the search terminate on cycles.
+   */
+  private BitSet reachable(int start)
+  {
+    BitSet result = new BitSet(nodes.length);
+    Deque<Integer> queue = new ArrayDeque<>();
+    composites[start].stream().forEach(queue :: add);
+
+    while( ! queue.isEmpty())
+    {
+      int next = queue.poll();
+      if(result.get(next))
+      {
+        continue;
+      }
+      result.set(next);
+      if(closure[next] != null)
+      {
+        result.or(closure[next]);
+      }
+      else
+      {
+        composites[next].stream()
+          .filter(composite -> ! result.get(composite))
+          .forEach(queue :: add);
+      }
+    }
+    return result;
+  }
+
+  public int size()
+  {
+    return nodes.length;
+  }
+
+  public int numberOfEdges()
+  {
+    return Stream.of(composites).mapToInt(BitSet :: cardinality).sum();
+  }
+
+  public int numberOfClosureEdges()
+  {
+    return Stream.of(closure).mapToInt(BitSet :: cardinality).sum();
+  }
+
+  /**
+   * Bytes used by the bitsets.
+   */
+  public long estimatedBytes()
+  {
+    return Stream.of(composites, closure, grantedBy).flatMap(Stream :: of)
+      .mapToLong(bits -> bits.size() / 8 + 16).sum();
+  }
+
+  /**
+   * @param roleName  realm or client role name
+   * @param clientId  clientId of a client role, <code>null</code> for a
+   *                  realm role
+   * @return the role or <code>null</code> if it is not part of the graph
+   */
+  public Node find(String roleName, String clientId)
+  {
+    Integer index = indexByLabel.get(new Node(0, null, roleName, clientId).label());
+    return (index != null) ? nodes[index] : null;
+  }
+
+  public Node findById(String roleId)
+  {
+    Integer index = indexById.get(roleId);
+    return (index != null) ? nodes[index] : null;
+  }
+
+  /**
+   * All roles a role expands to, through any number of composites.
+   */
+  public Stream<Node> expand(Node role)
+  {
+    return nodes(closure[role.index()]);
+  }
+
+  /**
+   * Direct composites of a role.
+   */
+  public Stream<Node> composites(Node role)
+  {
+    return nodes(composites[role.index()]);
+  }
+
+  /**
+   * All roles effectively granting a role, directly or through nested
+   * composites.
+   */
+  public Stream<Node> grantedBy(Node role)
+  {
+    return nodes(grantedBy[role.index()]);
+  }
+
+  /**
+   * Realm roles effectively granting a role.
+   */
+  public Stream<Node> realmRolesGranting(Node role)
+  {
+    BitSet result = (BitSet)grantedBy[role.index()].clone();
+    result.and(realmRoles);
+    return nodes(result);
+  }
+
+  public boolean grants(Node role, Node granted)
+  {
+    return closure[role.index()].get(granted.index());
+  }
+
+  public Stream<Node> nodes()
+  {
+    return IntStream.range(0, nodes.length).mapToObj(i -> nodes[i]);
+  }
+
+  private Stream<Node> nodes(BitSet bits)
+  {
+    return bits.stream().mapToObj(i -> nodes[i]);
+  }
+
+  static Node node(int index, RoleRepresentation role, String clientId)
+  {
+    return new Node(index, role.getId(), role.getName(), clientId);
+  }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Builds the {@link RoleGraph} of the realm.
+ *
+ * The graph contains all realm roles and every client role reachable
+ * through a composite. The direct composites of all composite roles are
+ * loaded concurrently through the cached composites of the
+ * {@link RealmRoleService}, the graph itself is cached until a realm or
+ * client role changes.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class RoleGraphService
+{
+  private final String realm;
+
+  private final RealmRoleService realmRoleService;
+
+  private final ClientService clientService;
+
+  private final AsyncCache<String, RoleGraph> roleGraphCache;
+
+  private final int concurrency;
+
+  @Getter
+  private volatile long buildMillis;
+
+  public RoleGraphService(KeycloakBuilderService keycloakConnection,
+    RealmRoleService realmRoleService, ClientService clientService,
+    CacheRegistry cacheRegistry,
+    @Value("${keycloak.roles.concurrency:8}") int concurrency)
+  {
+    realm = keycloakConnection.getRealm();
+    this.realmRoleService = realmRoleService;
+    this.clientService = clientService;
+    roleGraphCache = cacheRegistry.createAsync("role-graph");
+    this.concurrency = Math.max(1, concurrency);
+  }
+
+  public RoleGraph graph(boolean reload)
+  {
+    return reload
+      ? CacheRegistry.reload(roleGraphCache, realm, key -> build())
+      : CacheRegistry.load(roleGraphCache, realm, key -> build());
+  }
+
+  public RoleGraph graph()
+  {
+    return graph(false);
+  }
+
+  public void invalidate()
+  {
+    roleGraphCache.synchronous().invalidateAll();
+  }
+
+  private RoleGraph build()
+  {
+    long start = System.currentTimeMillis();
+    List<RoleGraph.Node> nodes = new ArrayList<>();
+    Map<String, RoleRepresentation> rolesById = new HashMap<>();
+    Map<String, Set<RoleRepresentation>> compositesById = new HashMap<>();
+
+    List<RoleRepresentation> level = new ArrayList<>();
+    for(RoleRepresentation role : realmRoleService.roles())
+    {
+      nodes.add(RoleGraph.node(nodes.size(), role, null));
+      rolesById.put(role.getId(), role);
+      level.add(role);
+    }
+
+    // one level of composites per round, the requests of a level run
+    // concurrently (keycloak.roles.concurrency) and are throttled by the
+    // request executor
+    while( ! level.isEmpty())
+    {
+      Map<String, Set<RoleRepresentation>> loaded = loadComposites(level);
+      compositesById.putAll(loaded);
+      level = new ArrayList<>();
+      for(Set<RoleRepresentation> composites : loaded.values())
+      {
+        for(RoleRepresentation composite : composites)
+        {
+          if( ! rolesById.containsKey(composite.getId()))
+          {
+            rolesById.put(composite.getId(), composite);
+            nodes.add(RoleGraph.node(nodes.size(), composite,
+              clientIdOf(composite)));
+            level.add(composite);
+          }
+        }
+      }
+    }
+
+    Map<String, Integer> indexById = new HashMap<>();
+    nodes.forEach(node -> indexById.put(node.id(), node.index()));
+    BitSet[] composites = new BitSet[nodes.size()];
+    for(RoleGraph.Node node : nodes)
+    {
+      composites[node.index()] = new BitSet(nodes.size());
+      compositesById.getOrDefault(node.id(), Set.of()).forEach(
+        composite -> composites[node.index()].set(indexById.get(composite.getId())));
+    }
+
+    RoleGraph graph = new RoleGraph(nodes, composites);
+    buildMillis = System.currentTimeMillis() - start;
+    log.info("role graph of realm {} built in {}ms, {} roles, {} edges, {} closure edges",
+      realm, buildMillis, graph.size(), graph.numberOfEdges(),
+      graph.numberOfClosureEdges());
+    return graph;
+  }
+
+  private Map<String, Set<RoleRepresentation>> loadComposites(
+    List<RoleRepresentation> roles)
+  {
+    Map<String, Set<RoleRepresentation>> result = new HashMap<>();
+    List<RoleRepresentation> composites = roles.stream()
+      .filter(role -> Boolean.TRUE.equals(role.isComposite())).toList();
+
+    Semaphore permits = new Semaphore(concurrency);
+    try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      composites.forEach(role -> executor.submit(() ->
+      {
+        permits.acquire();
+        try
+        {
+          return compositesOf(role);
+        }
+        finally
+        {
+          permits.release();
+        }
+      }));
+    }
+
+    // served from the cache now, failed requests are repeated here and
+    // fail the build
+    for(RoleRepresentation role : composites)
+    {
+      result.put(role.getId(), compositesOf(role));
+    }
+    return result;
+  }
+
+  private Set<RoleRepresentation> compositesOf(RoleRepresentation role)
+  {
+    return Boolean.TRUE.equals(role.getClientRole())
+      ? realmRoleService.compositesById(role.getId())
+      : realmRoleService.compositesByName(role.getName());
+  }
+
+  private String clientIdOf(RoleRepresentation role)
+  {
+    if( ! Boolean.TRUE.equals(role.getClientRole()))
+    {
+      return null;
+    }
+    ClientRepresentation client = clientService.clientById(role.getContainerId());
+    return (client != null) ? client.getClientId() : role.getContainerId();
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.RoleResource;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.springframework.stereotype.Service;
+
+/**
+ * Inverted index client role -> usernames of the directly assigned users.
+ *
+ * The index for a client is built once per session from the paged
+ * role members endpoint, so it costs one request per role and page
+ * instead of one request per user and role.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class RoleMembershipIndex
+{
+  private final static int PAGE_SIZE = 100;
+
+  private final String realm;
+
+  private final Keycloak keycloak;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  /**
+   * client id (uuid) -> role name -> usernames
+   */
+  private final AsyncCache<String, Map<String, List<String>>> clientRoleMembersCache;
+
+  @Getter
+  private volatile long buildMillis;
+
+  public RoleMembershipIndex(KeycloakBuilderService keycloakConnection,
+    CacheRegistry cacheRegistry, KeycloakRequestExecutor requestExecutor)
+  {
+    realm = keycloakConnection.getRealm();
+    keycloak = keycloakConnection.getKeycloak();
+    this.requestExecutor = requestExecutor;
+    clientRoleMembersCache = cacheRegistry.createAsync("role-members");
+  }
+
+  public Map<String, List<String>> clientRoleMembers(String clientId,
+    boolean reload)
+  {
+    return reload
+      ? CacheRegistry.reload(clientRoleMembersCache, clientId, this :: buildIndex)
+      : CacheRegistry.load(clientRoleMembersCache, clientId, this :: buildIndex);
+  }
+
+  public List<String> clientRoleMembers(String clientId, String roleName)
+  {
+    return clientRoleMembers(clientId, false).getOrDefault(roleName, List.of());
+  }
+
+  public void invalidate(String clientId)
+  {
+    clientRoleMembersCache.synchronous().invalidate(clientId);
+  }
+
+  /**
+   * Number of role assignments currently held by the index.
+   */
+  public int getNumberOfEntries()
+  {
+    return clientRoleMembersCache.synchronous().asMap().values().stream()
+      .flatMap(roleMembers -> roleMembers.values().stream())
+      .mapToInt(List :: size).sum();
+  }
+
+  private Map<String, List<String>> buildIndex(String clientId)
+  {
+    long start = System.currentTimeMillis();
+    Map<String, List<String>> roleMembers = new HashMap<>();
+    int entries = 0;
+
+    for(RoleRepresentation role : requestExecutor.execute("client-roles.list",
+      () -> keycloak.realm(realm).clients().get(clientId).roles().list()))
+    {
+      List<String> members = loadMembers(
+        keycloak.realm(realm).clients().get(clientId).roles().get(role.getName()));
+      roleMembers.put(role.getName(), members);
+      entries += members.size();
+    }
+
+    buildMillis = System.currentTimeMillis() - start;
+    log.info("role membership index for client {} built in {}ms, {} roles, {} entries",
+      clientId, buildMillis, roleMembers.size(), entries);
+    return roleMembers;
+  }
+
+  private List<String> loadMembers(RoleResource roleResource)
+  {
+    List<String> members = new ArrayList<>();
+    int index = 0;
+    List<UserRepresentation> membersPage;
+    do
+    {
+      int first = index;
+      membersPage = requestExecutor.execute("client-roles.users",
+        () -> roleResource.getUserMembers(true, first, PAGE_SIZE));
+      membersPage.forEach(user -> members.add(user.getUsername()));
+      JobService.step(membersPage.size());
+      index += PAGE_SIZE;
+    }
+    while(membersPage.size() == PAGE_SIZE);
+    return members;
+  }
+
+}
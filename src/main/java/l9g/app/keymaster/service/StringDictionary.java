@@ -0,0 +1,75 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoding for repeated strings, every distinct value is
+ * stored once and referenced by an int code. <code>null</code> is
+ * encoded as -1.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class StringDictionary
+{
+  private final Map<String, Integer> codes = new HashMap<>();
+
+  private final List<String> values = new ArrayList<>();
+
+  private long valueBytes;
+
+  int encode(String value)
+  {
+    if(value == null)
+    {
+      return -1;
+    }
+
+    Integer code = codes.get(value);
+    if(code == null)
+    {
+      code = values.size();
+      codes.put(value, code);
+      values.add(value);
+      valueBytes += value.length();
+    }
+    return code;
+  }
+
+  String decode(int code)
+  {
+    return (code < 0) ? null : values.get(code);
+  }
+
+  int size()
+  {
+    return values.size();
+  }
+
+  /**
+   * Rough heap estimate: string object and array headers, hash map
+   * entry and list slot per value.
+   */
+  long estimatedBytes()
+  {
+    return values.size() * 100L + valueBytes;
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the access token of the admin client fresh.
+ *
+ * A background virtual thread grants a new token after
+ * keycloak.token.refresh-ratio of its lifetime. The token is held by the
+ * {@link AccessTokenFilter}, the workers read it without a lock and keep
+ * using the current token during the refresh, so no worker ever waits
+ * for the token request. Without the proactive refresh the first worker
+ * that finds the token expired refreshes it.
+ *
+ * The refreshes are published as the Micrometer meters
+ * keycloak.token.refresh (count and duration),
+ * keycloak.token.refresh.failures and keycloak.token.expires.in.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class TokenService
+{
+  public record TokenStats(long refreshes, long failures, Instant expiresAt,
+    double lastMillis, double p50Millis, double p99Millis)
+  {
+  }
+
+  private final static Duration RETRY_DELAY = Duration.ofSeconds(5);
+
+  private final static Duration MIN_REFRESH_DELAY = Duration.ofSeconds(1);
+
+  /**
+   * the background refresh is always this much before the workers
+   * would refresh the token themselves
+   */
+  private final static long REFRESH_MARGIN_MILLIS = 10_000;
+
+  private final AccessTokenFilter tokens;
+
+  private final MeterRegistry meterRegistry;
+
+  private final double refreshRatio;
+
+  private final boolean enabled;
+
+  public TokenService(KeycloakBuilderService keycloakConnection,
+    MeterRegistry meterRegistry,
+    @Value("${keycloak.token.proactive-refresh:true}") boolean enabled,
+    @Value("${keycloak.token.refresh-ratio:0.7}") double refreshRatio)
+  {
+    this.tokens = keycloakConnection.getAccessTokenFilter();
+    this.meterRegistry = meterRegistry;
+    this.enabled = enabled;
+    this.refreshRatio = refreshRatio;
+  }
+
+  @PostConstruct
+  public void registerMeters()
+  {
+    FunctionTimer.builder("keycloak.token.refresh", tokens,
+      AccessTokenFilter :: refreshes, AccessTokenFilter :: totalRefreshNanos,
+      TimeUnit.NANOSECONDS).register(meterRegistry);
+    FunctionCounter.builder("keycloak.token.refresh.failures", tokens,
+      AccessTokenFilter :: failures).register(meterRegistry);
+    Gauge.builder("keycloak.token.expires.in", tokens, TokenService :: expiresInSeconds)
+      .baseUnit("seconds").register(meterRegistry);
+  }
+
+  @EventListener(ApplicationStartedEvent.class)
+  public void onStartup()
+  {
+    if( ! enabled)
+    {
+      return;
+    }
+
+    log.debug("proactive token refresh at {} of the token lifetime", refreshRatio);
+    Thread.ofVirtual().name("token-refresh").start(() ->
+    {
+      while( ! Thread.currentThread().isInterrupted())
+      {
+        Duration delay;
+        try
+        {
+          AccessTokenFilter.Token current = tokens.refresh();
+          long lifetime = current.expiresAtMillis() - System.currentTimeMillis();
+          delay = Duration.ofMillis(Math.min((long)(lifetime * refreshRatio),
+            lifetime - REFRESH_MARGIN_MILLIS));
+          if(delay.compareTo(MIN_REFRESH_DELAY) < 0)
+          {
+            delay = MIN_REFRESH_DELAY;
+          }
+        }
+        catch(RuntimeException e)
+        {
+          log.warn("token refresh failed: {}", e.getMessage());
+          delay = RETRY_DELAY;
+        }
+
+        try
+        {
+          Thread.sleep(delay);
+        }
+        catch(InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+  }
+
+  public TokenStats stats()
+  {
+    return new TokenStats(tokens.refreshes(), tokens.failures(),
+      tokens.expiresAt(), tokens.lastRefreshMillis(),
+      tokens.refreshPercentileMillis(0.5),
+      tokens.refreshPercentileMillis(0.99));
+  }
+
+  private static double expiresInSeconds(AccessTokenFilter tokens)
+  {
+    Instant expiresAt = tokens.expiresAt();
+    return (expiresAt != null)
+      ? (expiresAt.toEpochMilli() - System.currentTimeMillis()) / 1000.0 : 0;
+  }
+
+}
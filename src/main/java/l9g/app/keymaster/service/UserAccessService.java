@@ -0,0 +1,164 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.ClientMappingsRepresentation;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.MappingsRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.springframework.stereotype.Service;
+
+/**
+ * Direct and effective role mappings of a user.
+ *
+ * All direct mappings (realm and clients) are read with a single
+ * role-mappings request. Composite roles are expanded from the cached
+ * composites and client ids are resolved from the cached clients, so
+ * a warm lookup costs one request independent of the number of
+ * clients in the realm.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class UserAccessService
+{
+  /**
+   * Role mappings of a user, client roles are keyed by clientId.
+   */
+  public record UserAccess(String userId,
+    Set<String> realmRoles,
+    Map<String, Set<String>> clientRoles,
+    Set<String> effectiveRealmRoles,
+    Map<String, Set<String>> effectiveClientRoles,
+    long millis)
+  {
+  }
+
+  private final String realm;
+
+  private final Keycloak keycloak;
+
+  private final ClientService clientService;
+
+  private final RealmRoleService realmRoleService;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  public UserAccessService(KeycloakBuilderService keycloakConnection,
+    ClientService clientService, RealmRoleService realmRoleService,
+    KeycloakRequestExecutor requestExecutor)
+  {
+    realm = keycloakConnection.getRealm();
+    keycloak = keycloakConnection.getKeycloak();
+    this.clientService = clientService;
+    this.realmRoleService = realmRoleService;
+    this.requestExecutor = requestExecutor;
+  }
+
+  public UserAccess access(String userId)
+  {
+    long start = System.currentTimeMillis();
+    MappingsRepresentation mappings = requestExecutor.execute("users.role-mappings",
+      () -> keycloak.realm(realm).users().get(userId).roles().getAll());
+
+    Set<String> realmRoles = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    Map<String, Set<String>> clientRoles = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    Set<String> effectiveRealmRoles = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    Map<String, Set<String>> effectiveClientRoles = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    Deque<RoleRepresentation> pending = new ArrayDeque<>();
+
+    if(mappings.getRealmMappings() != null)
+    {
+      mappings.getRealmMappings().forEach(role ->
+      {
+        realmRoles.add(role.getName());
+        pending.add(role);
+      });
+    }
+
+    if(mappings.getClientMappings() != null)
+    {
+      for(ClientMappingsRepresentation client : mappings.getClientMappings().values())
+      {
+        Set<String> roles = clientRoles.computeIfAbsent(client.getClient(),
+          key -> new TreeSet<>(String.CASE_INSENSITIVE_ORDER));
+        client.getMappings().forEach(role ->
+        {
+          roles.add(role.getName());
+          role.setClientRole(true);
+          role.setContainerId(client.getId());
+          pending.add(role);
+        });
+      }
+    }
+
+    // expand composite roles, every role is visited once
+    Set<String> visited = new HashSet<>();
+    while( ! pending.isEmpty())
+    {
+      RoleRepresentation role = pending.poll();
+      boolean clientRole = Boolean.TRUE.equals(role.getClientRole());
+      String key = clientRole ? role.getContainerId() + "/" + role.getName() : role.getName();
+      if( ! visited.add(key))
+      {
+        continue;
+      }
+
+      if(clientRole)
+      {
+        effectiveClientRoles.computeIfAbsent(clientIdOf(role.getContainerId()),
+          k -> new TreeSet<>(String.CASE_INSENSITIVE_ORDER)).add(role.getName());
+      }
+      else
+      {
+        effectiveRealmRoles.add(role.getName());
+      }
+
+      if(Boolean.TRUE.equals(role.isComposite()))
+      {
+        Set<RoleRepresentation> composites = clientRole
+          ? realmRoleService.compositesById(role.getId())
+          : realmRoleService.compositesByName(role.getName());
+        if(composites != null)
+        {
+          pending.addAll(composites);
+        }
+      }
+    }
+
+    UserAccess access = new UserAccess(userId, realmRoles, clientRoles,
+      effectiveRealmRoles, effectiveClientRoles, System.currentTimeMillis() - start);
+    log.debug("access of user {} resolved in {}ms", userId, access.millis());
+    return access;
+  }
+
+  private String clientIdOf(String id)
+  {
+    ClientRepresentation client = clientService.clientById(id);
+    return (client != null) ? client.getClientId() : id;
+  }
+
+}
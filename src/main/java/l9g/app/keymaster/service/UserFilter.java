@@ -0,0 +1,147 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Filter expression for {@link UserRecord}s.
+ *
+ * Conditions are separated by <code>,</code> or <code>and</code> and all
+ * of them must match. A condition is <code>field op value</code> with the
+ * fields id, username, email, firstName, lastName, enabled and
+ * federationLink and the operators <code>=</code>, <code>!=</code>,
+ * <code>~</code> (regular expression) and <code>!~</code>. The value
+ * <code>null</code> matches a missing field. Values must not contain a
+ * comma.
+ *
+ * <pre>
+ * enabled=false, username~^test-.*
+ * federationLink=null and email!=null
+ * </pre>
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class UserFilter implements Predicate<UserRecord>
+{
+  private final static Pattern CONDITION = Pattern.compile(
+    "\\s*(\\w+)\\s*(!=|!~|=|~)\\s*(.*?)\\s*");
+
+  private final static Pattern SEPARATOR = Pattern.compile(
+    "\\s*,\\s*|\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+
+  private final String expression;
+
+  private final Predicate<UserRecord> predicate;
+
+  public UserFilter(String expression)
+  {
+    this.expression = expression;
+
+    List<Predicate<UserRecord>> conditions = new ArrayList<>();
+    for(String condition : SEPARATOR.split(expression.trim()))
+    {
+      if( ! condition.isBlank())
+      {
+        conditions.add(parseCondition(condition));
+      }
+    }
+
+    if(conditions.isEmpty())
+    {
+      throw new IllegalArgumentException("empty filter expression");
+    }
+
+    predicate = conditions.stream().reduce(Predicate :: and).get();
+  }
+
+  @Override
+  public boolean test(UserRecord user)
+  {
+    return predicate.test(user);
+  }
+
+  @Override
+  public String toString()
+  {
+    return expression;
+  }
+
+  private static Predicate<UserRecord> parseCondition(String condition)
+  {
+    Matcher matcher = CONDITION.matcher(condition);
+    if( ! matcher.matches())
+    {
+      throw new IllegalArgumentException("invalid filter condition '" + condition + "'");
+    }
+
+    Function<UserRecord, String> field = field(matcher.group(1));
+    String operator = matcher.group(2);
+    String value = matcher.group(3);
+    boolean isNull = "null".equals(value);
+
+    return switch(operator)
+    {
+      case "=" ->
+        isNull ? user -> field.apply(user) == null
+          : user -> value.equalsIgnoreCase(field.apply(user));
+      case "!=" ->
+        isNull ? user -> field.apply(user) != null
+          : user -> ! value.equalsIgnoreCase(field.apply(user));
+      case "~" ->
+      {
+        Pattern pattern = Pattern.compile(value);
+        yield user -> field.apply(user) != null
+          && pattern.matcher(field.apply(user)).find();
+      }
+      default ->
+      {
+        Pattern pattern = Pattern.compile(value);
+        yield user -> field.apply(user) == null
+          || ! pattern.matcher(field.apply(user)).find();
+      }
+    };
+  }
+
+  private static Function<UserRecord, String> field(String name)
+  {
+    return switch(name)
+    {
+      case "id" ->
+        UserRecord :: id;
+      case "username" ->
+        UserRecord :: username;
+      case "email" ->
+        UserRecord :: email;
+      case "firstName" ->
+        UserRecord :: firstName;
+      case "lastName" ->
+        UserRecord :: lastName;
+      case "enabled" ->
+        user -> Boolean.toString(user.enabled());
+      case "federationLink" ->
+        UserRecord :: federationLink;
+      default ->
+        throw new IllegalArgumentException("unknown filter field '" + name + "'");
+    };
+  }
+
+}
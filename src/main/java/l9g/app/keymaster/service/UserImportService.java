@@ -0,0 +1,538 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.core.Response;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.PartialImportRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.springframework.stereotype.Service;
+
+/**
+ * Bulk import of users from a CSV or JSONL file into the realm selected
+ * with use-realm.
+ *
+ * The file is read line by line and cut into batches. Each batch is
+ * imported on a virtual thread, by default with one partialImport
+ * request. At most <code>concurrency</code> batches are in flight, the
+ * reader blocks until a batch is done (backpressure). A result line per
+ * record is written to the result file.
+ *
+ * Only a batch failing with a server (5xx) or transport error is imported
+ * again with one create per user. Any other error fails the batch, e.g.
+ * 409 if a user exists with the policy FAIL. Single creates follow the
+ * policy as well, with OVERWRITE an existing user is updated.
+ *
+ * CSV files need a header line, known columns are username, email,
+ * firstName, lastName, enabled, emailVerified, password and
+ * attribute.&lt;name&gt;. JSONL files contain one UserRepresentation per
+ * line.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+@Slf4j
+public class UserImportService
+{
+  public record ImportResult(long records, long added, long skipped,
+    long overwritten, long failed, long millis, double usersPerSecond,
+    double p50Millis, double p99Millis)
+  {
+  }
+
+  private record ImportRecord(long line, UserRepresentation user)
+  {
+  }
+
+  private final Keycloak keycloak;
+
+  private final RealmRegistry realmRegistry;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final ObjectMapper objectMapper = new ObjectMapper()
+    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  public UserImportService(KeycloakBuilderService keycloakConnection,
+    RealmRegistry realmRegistry, KeycloakRequestExecutor requestExecutor)
+  {
+    keycloak = keycloakConnection.getKeycloak();
+    this.realmRegistry = realmRegistry;
+    this.requestExecutor = requestExecutor;
+  }
+
+  /**
+   * @param file           CSV or JSONL (.jsonl, .ndjson, .json) file
+   * @param resultFile     per record result file (CSV)
+   * @param batchSize      users per request
+   * @param concurrency    maximum number of batches in flight
+   * @param partialImport  use the partialImport endpoint instead of one
+   *                       create request per user
+   * @param ifExists       SKIP, OVERWRITE or FAIL for existing users
+   */
+  public ImportResult importUsers(Path file, Path resultFile, int batchSize,
+    int concurrency, boolean partialImport, String ifExists)
+    throws IOException, InterruptedException
+  {
+    // the realm is kept, even if another realm is selected meanwhile
+    String realm = realmRegistry.current().realm();
+    RealmResource realmResource = keycloak.realm(realm);
+    log.info("import users from {} into realm {} (batchSize={}, concurrency={}, "
+      + "partialImport={})", file, realm, batchSize, concurrency, partialImport);
+
+    boolean json = file.getFileName().toString().matches("(?i).*\\.(jsonl|ndjson|json)$");
+    PartialImportRepresentation.Policy policy =
+      PartialImportRepresentation.Policy.valueOf(ifExists.toUpperCase());
+
+    Map<String, AtomicLong> counters = new HashMap<>();
+    for(String action : List.of("RECORDS", "ADDED", "SKIPPED", "OVERWRITTEN", "FAILED"))
+    {
+      counters.put(action, new AtomicLong());
+    }
+
+    LatencyRecorder latencies = new LatencyRecorder();
+    Semaphore inFlight = new Semaphore(Math.max(1, concurrency));
+    long start = System.nanoTime();
+
+    try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+      BufferedWriter resultWriter = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8);
+      ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+    {
+      resultWriter.write("line,username,status,id,message");
+      resultWriter.newLine();
+
+      String[] header = json ? null : parseCsvLine(reader.readLine());
+      long lineNumber = json ? 0 : 1;
+      List<ImportRecord> batch = new ArrayList<>(batchSize);
+      String line;
+
+      while((line = reader.readLine()) != null)
+      {
+        lineNumber++;
+        if(line.isBlank())
+        {
+          continue;
+        }
+
+        try
+        {
+          UserRepresentation user = json
+            ? objectMapper.readValue(line, UserRepresentation.class)
+            : userFromCsv(header, parseCsvLine(line));
+          batch.add(new ImportRecord(lineNumber, user));
+          counters.get("RECORDS").incrementAndGet();
+        }
+        catch(IOException | RuntimeException e)
+        {
+          counters.get("RECORDS").incrementAndGet();
+          counters.get("FAILED").incrementAndGet();
+          writeResult(resultWriter, lineNumber, null, "FAILED", null,
+            "parse error: " + e.getMessage());
+        }
+
+        if(batch.size() >= batchSize)
+        {
+          submit(realmResource, executor, inFlight, List.copyOf(batch),
+            partialImport, policy, counters, latencies, resultWriter);
+          batch.clear();
+        }
+      }
+
+      if( ! batch.isEmpty())
+      {
+        submit(realmResource, executor, inFlight, List.copyOf(batch),
+          partialImport, policy, counters, latencies, resultWriter);
+      }
+    }
+
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    long records = counters.get("RECORDS").get();
+
+    return new ImportResult(records, counters.get("ADDED").get(),
+      counters.get("SKIPPED").get(), counters.get("OVERWRITTEN").get(),
+      counters.get("FAILED").get(), millis,
+      (millis > 0) ? records * 1000.0 / millis : records,
+      latencies.percentileMillis(0.5), latencies.percentileMillis(0.99));
+  }
+
+  private void submit(RealmResource realmResource, ExecutorService executor,
+    Semaphore inFlight, List<ImportRecord> batch, boolean partialImport,
+    PartialImportRepresentation.Policy policy, Map<String, AtomicLong> counters,
+    LatencyRecorder latencies, BufferedWriter resultWriter)
+    throws InterruptedException
+  {
+    // backpressure, wait until a batch slot is free
+    inFlight.acquire();
+    executor.submit(() ->
+    {
+      try
+      {
+        if(partialImport)
+        {
+          importBatch(realmResource, batch, policy, counters, latencies, resultWriter);
+        }
+        else
+        {
+          for(ImportRecord record : batch)
+          {
+            createUser(realmResource, record, policy, counters, latencies,
+              resultWriter);
+          }
+        }
+      }
+      finally
+      {
+        inFlight.release();
+      }
+    });
+  }
+
+  private void importBatch(RealmResource realmResource, List<ImportRecord> batch,
+    PartialImportRepresentation.Policy policy, Map<String, AtomicLong> counters,
+    LatencyRecorder latencies, BufferedWriter resultWriter)
+  {
+    PartialImportRepresentation partialImport = new PartialImportRepresentation();
+    partialImport.setIfResourceExists(policy.name());
+    partialImport.setUsers(batch.stream().map(ImportRecord :: user).toList());
+
+    long start = System.nanoTime();
+    JsonNode results = null;
+    String failure = null;
+    boolean fallback = false;
+
+    try(Response response = requestExecutor.executeOnce("realm.partialImport",
+      () -> realmResource.partialImport(partialImport)))
+    {
+      String body = response.readEntity(String.class);
+      Response.Status.Family family = response.getStatusInfo().getFamily();
+      if(family == Response.Status.Family.SUCCESSFUL)
+      {
+        results = objectMapper.readTree(body).path("results");
+      }
+      else
+      {
+        // e.g. 409 for an existing user with the policy FAIL, the batch
+        // is imported in one transaction and no user was added
+        failure = "HTTP " + response.getStatus() + " " + body;
+        fallback = family == Response.Status.Family.SERVER_ERROR;
+      }
+    }
+    catch(ProcessingException e)
+    {
+      failure = e.getMessage();
+      fallback = true;
+    }
+    catch(Exception e)
+    {
+      failure = e.getMessage();
+    }
+
+    long nanos = System.nanoTime() - start;
+
+    if(fallback)
+    {
+      log.warn("partial import of {} users failed, falling back to single creates: {}",
+        batch.size(), failure);
+      for(ImportRecord record : batch)
+      {
+        createUser(realmResource, record, policy, counters, latencies, resultWriter);
+      }
+      return;
+    }
+
+    if(failure != null)
+    {
+      log.warn("partial import of {} users failed: {}", batch.size(), failure);
+      for(ImportRecord record : batch)
+      {
+        latencies.record(nanos);
+        counters.get("FAILED").incrementAndGet();
+        writeResult(resultWriter, record.line(), record.user().getUsername(),
+          "FAILED", null, failure);
+      }
+      return;
+    }
+
+    // Keycloak stores user names in lower case
+    Map<String, JsonNode> resultsByName = new HashMap<>();
+    results.forEach(result -> resultsByName.put(
+      result.path("resourceName").asText().toLowerCase(Locale.ROOT), result));
+
+    for(ImportRecord record : batch)
+    {
+      latencies.record(nanos);
+      JsonNode result = resultsByName.get(
+        record.user().getUsername().toLowerCase(Locale.ROOT));
+      String action = (result != null) ? result.path("action").asText() : "ADDED";
+      counters.getOrDefault(action, counters.get("ADDED")).incrementAndGet();
+      writeResult(resultWriter, record.line(), record.user().getUsername(), action,
+        (result != null) ? result.path("id").asText(null) : null, null);
+    }
+  }
+
+  /**
+   * Creates one user, an existing user (409) is handled like the partial
+   * import would: skipped, updated (OVERWRITE) or failed.
+   */
+  private void createUser(RealmResource realmResource, ImportRecord record,
+    PartialImportRepresentation.Policy policy, Map<String, AtomicLong> counters,
+    LatencyRecorder latencies, BufferedWriter resultWriter)
+  {
+    String username = record.user().getUsername();
+    long start = System.nanoTime();
+
+    try(Response response = requestExecutor.executeOnce("users.create",
+      () -> realmResource.users().create(record.user())))
+    {
+      int status = response.getStatus();
+
+      if(response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL)
+      {
+        String location = (response.getLocation() != null)
+          ? response.getLocation().getPath() : "";
+        counters.get("ADDED").incrementAndGet();
+        writeResult(resultWriter, record.line(), username, "ADDED",
+          location.substring(location.lastIndexOf('/') + 1), null);
+      }
+      else if(status == Response.Status.CONFLICT.getStatusCode())
+      {
+        switch(policy)
+        {
+          case SKIP ->
+          {
+            counters.get("SKIPPED").incrementAndGet();
+            writeResult(resultWriter, record.line(), username, "SKIPPED", null,
+              "user exists");
+          }
+          case OVERWRITE ->
+            overwriteUser(realmResource, record, counters, resultWriter);
+          default ->
+          {
+            counters.get("FAILED").incrementAndGet();
+            writeResult(resultWriter, record.line(), username, "FAILED", null,
+              "user exists");
+          }
+        }
+      }
+      else
+      {
+        counters.get("FAILED").incrementAndGet();
+        writeResult(resultWriter, record.line(), username, "FAILED", null,
+          "HTTP " + status + " " + response.readEntity(String.class));
+      }
+    }
+    catch(Exception e)
+    {
+      counters.get("FAILED").incrementAndGet();
+      writeResult(resultWriter, record.line(), username, "FAILED", null,
+        e.getMessage());
+    }
+    finally
+    {
+      latencies.record(System.nanoTime() - start);
+    }
+  }
+
+  private void overwriteUser(RealmResource realmResource, ImportRecord record,
+    Map<String, AtomicLong> counters, BufferedWriter resultWriter)
+  {
+    UserRepresentation user = record.user();
+    List<UserRepresentation> existing = requestExecutor.execute("users.search",
+      () -> realmResource.users().searchByUsername(user.getUsername(), Boolean.TRUE));
+    if(existing.isEmpty())
+    {
+      counters.get("FAILED").incrementAndGet();
+      writeResult(resultWriter, record.line(), user.getUsername(), "FAILED", null,
+        "user exists but was not found by username");
+      return;
+    }
+
+    String id = existing.get(0).getId();
+    user.setId(id);
+    requestExecutor.run("users.update",
+      () -> realmResource.users().get(id).update(user));
+    counters.get("OVERWRITTEN").incrementAndGet();
+    writeResult(resultWriter, record.line(), user.getUsername(), "OVERWRITTEN", id, null);
+  }
+
+  private static UserRepresentation userFromCsv(String[] header, String[] values)
+  {
+    UserRepresentation user = new UserRepresentation();
+    user.setEnabled(Boolean.TRUE);
+
+    for(int i = 0; i < header.length && i < values.length; i++)
+    {
+      String value = values[i];
+      if(value.isEmpty())
+      {
+        continue;
+      }
+
+      String column = header[i].trim();
+      switch(column)
+      {
+        case "username" ->
+          user.setUsername(value);
+        case "email" ->
+          user.setEmail(value);
+        case "firstName" ->
+          user.setFirstName(value);
+        case "lastName" ->
+          user.setLastName(value);
+        case "enabled" ->
+          user.setEnabled(Boolean.valueOf(value));
+        case "emailVerified" ->
+          user.setEmailVerified(Boolean.valueOf(value));
+        case "password" ->
+        {
+          CredentialRepresentation credential = new CredentialRepresentation();
+          credential.setType(CredentialRepresentation.PASSWORD);
+          credential.setValue(value);
+          credential.setTemporary(Boolean.FALSE);
+          user.setCredentials(List.of(credential));
+        }
+        default ->
+        {
+          if(column.startsWith("attribute."))
+          {
+            if(user.getAttributes() == null)
+            {
+              user.setAttributes(new HashMap<>());
+            }
+            user.getAttributes().put(column.substring(10), List.of(value));
+          }
+        }
+      }
+    }
+
+    if(user.getUsername() == null)
+    {
+      throw new IllegalArgumentException("username missing");
+    }
+
+    return user;
+  }
+
+  /**
+   * Splits a CSV line, fields may be quoted with double quotes ("" is
+   * an escaped quote).
+   */
+  private static String[] parseCsvLine(String line)
+  {
+    if(line == null)
+    {
+      throw new IllegalArgumentException("CSV header missing");
+    }
+
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+
+    for(int i = 0; i < line.length(); i++)
+    {
+      char c = line.charAt(i);
+      if(quoted)
+      {
+        if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+        {
+          field.append('"');
+          i++;
+        }
+        else if(c == '"')
+        {
+          quoted = false;
+        }
+        else
+        {
+          field.append(c);
+        }
+      }
+      else if(c == '"')
+      {
+        quoted = true;
+      }
+      else if(c == ',')
+      {
+        fields.add(field.toString());
+        field.setLength(0);
+      }
+      else
+      {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+
+    return fields.toArray(String[] :: new);
+  }
+
+  private static void writeResult(BufferedWriter writer, long line,
+    String username, String status, String id, String message)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(line).append(',')
+      .append(csvField(username)).append(',')
+      .append(status).append(',')
+      .append(csvField(id)).append(',')
+      .append(csvField(message));
+
+    synchronized(writer)
+    {
+      try
+      {
+        writer.write(sb.toString());
+        writer.newLine();
+      }
+      catch(IOException e)
+      {
+        log.error("writing import result failed", e);
+      }
+    }
+  }
+
+  private static String csvField(String value)
+  {
+    if(value == null)
+    {
+      return "";
+    }
+    return (value.contains(",") || value.contains("\"") || value.contains("\n"))
+      ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+  }
+
+}
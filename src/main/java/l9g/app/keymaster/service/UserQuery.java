@@ -0,0 +1,344 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.keycloak.representations.idm.UserRepresentation;
+
+/**
+ * User query, split into the part the admin API evaluates and the
+ * remainder evaluated on the loaded pages.
+ *
+ * The syntax is the one of {@link UserFilter}: conditions separated by
+ * <code>,</code> or <code>and</code>, all of them must match. Fields are
+ * id, username, email, firstName, lastName, enabled, emailVerified,
+ * federationLink, created, attr.&lt;name&gt; and the server side only
+ * fields search (username, email, first or last name contain the value)
+ * and idp (linked identity provider alias). Operators are
+ * <code>=</code>, <code>!=</code>, <code>~</code>, <code>!~</code> and
+ * for created <code>&lt;</code> and <code>&gt;</code> with an ISO date,
+ * ISO instant or epoch milliseconds.
+ *
+ * <pre>
+ * enabled=false, attr.department=dept3
+ * created&lt;2024-01-01 and federationLink=null
+ * search=smith, email~@example\.org$
+ * </pre>
+ *
+ * Pushed down are search, idp, the first <code>=</code> of username,
+ * email, firstName and lastName (exact), enabled and emailVerified
+ * <code>=</code> true or false and attr.&lt;name&gt;=&lt;value&gt;
+ * without blanks or colons (q). With search the server only honors
+ * enabled, all other conditions are evaluated locally then. The brief
+ * representation is requested unless the remainder tests attributes.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class UserQuery
+{
+  private final static Pattern CONDITION = Pattern.compile(
+    "\\s*([\\w.-]+)\\s*(!=|!~|=|~|<|>)\\s*(.*?)\\s*");
+
+  private final static Pattern SEPARATOR = Pattern.compile(
+    "\\s*,\\s*|\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+
+  private final static String ATTRIBUTE = "attr.";
+
+  /**
+   * Parameters of the users search, <code>null</code> if not used.
+   */
+  public record Pushdown(String search, String username, String firstName,
+    String lastName, String email, Boolean emailVerified, Boolean enabled,
+    String idpAlias, Boolean exact, String q, boolean briefRepresentation)
+  {
+  }
+
+  private final String expression;
+
+  private final Pushdown pushdown;
+
+  private final List<String> remainderConditions = new ArrayList<>();
+
+  private final Predicate<UserRepresentation> remainder;
+
+  public UserQuery(String expression)
+  {
+    this.expression = expression;
+
+    String search = null;
+    String idpAlias = null;
+    Boolean enabled = null;
+    List<String[]> candidates = new ArrayList<>();
+    List<String[]> local = new ArrayList<>();
+
+    for(String condition : SEPARATOR.split(expression.trim()))
+    {
+      if(condition.isBlank())
+      {
+        continue;
+      }
+
+      Matcher matcher = CONDITION.matcher(condition);
+      if( ! matcher.matches())
+      {
+        throw new IllegalArgumentException("invalid query condition '" + condition + "'");
+      }
+      String[] parsed = new String[]
+      {
+        matcher.group(1), matcher.group(2), matcher.group(3), condition.trim()
+      };
+      String field = parsed[0];
+      String value = parsed[2];
+      boolean equals = "=".equals(parsed[1]) && ! "null".equals(value);
+
+      if("search".equals(field) || "idp".equals(field))
+      {
+        if( ! equals || ("search".equals(field) ? search : idpAlias) != null)
+        {
+          throw new IllegalArgumentException("'" + field
+            + "' supports only one condition with '='");
+        }
+        if("search".equals(field))
+        {
+          search = value;
+        }
+        else
+        {
+          idpAlias = value;
+        }
+      }
+      else if(equals && "enabled".equals(field) && enabled == null && isBoolean(value))
+      {
+        enabled = Boolean.valueOf(value);
+      }
+      else if(equals && (List.of("username", "email", "firstName", "lastName",
+        "emailVerified").contains(field) || (field.startsWith(ATTRIBUTE)
+        && ! value.isEmpty() && ! value.matches(".*[\\s:].*"))))
+      {
+        candidates.add(parsed);
+      }
+      else
+      {
+        local.add(parsed);
+      }
+    }
+
+    if(search != null && idpAlias != null)
+    {
+      throw new IllegalArgumentException("'search' and 'idp' can not be combined");
+    }
+
+    // with search the server ignores all parameters except enabled
+    Map<String, String> exact = new HashMap<>();
+    Boolean emailVerified = null;
+    List<String> q = new ArrayList<>();
+    for(String[] candidate : candidates)
+    {
+      String field = candidate[0];
+      String value = candidate[2];
+      if(search != null)
+      {
+        local.add(candidate);
+      }
+      else if(field.startsWith(ATTRIBUTE))
+      {
+        q.add(field.substring(ATTRIBUTE.length()) + ":" + value);
+      }
+      else if("emailVerified".equals(field) && emailVerified == null && isBoolean(value))
+      {
+        emailVerified = Boolean.valueOf(value);
+      }
+      else if( ! "emailVerified".equals(field) && ! exact.containsKey(field))
+      {
+        exact.put(field, value);
+      }
+      else
+      {
+        local.add(candidate);
+      }
+    }
+
+    if(search == null && idpAlias == null && enabled == null && candidates.isEmpty()
+      && local.isEmpty())
+    {
+      throw new IllegalArgumentException("empty query expression");
+    }
+
+    boolean attributes = false;
+    List<Predicate<UserRepresentation>> conditions = new ArrayList<>();
+    for(String[] condition : local)
+    {
+      attributes |= condition[0].startsWith(ATTRIBUTE);
+      conditions.add(parseCondition(condition[0], condition[1], condition[2]));
+      remainderConditions.add(condition[3]);
+    }
+
+    pushdown = new Pushdown(search, exact.get("username"), exact.get("firstName"),
+      exact.get("lastName"), exact.get("email"), emailVerified, enabled, idpAlias,
+      exact.isEmpty() ? null : Boolean.TRUE, q.isEmpty() ? null : String.join(" ", q),
+      ! attributes);
+    remainder = conditions.stream().reduce(Predicate :: and).orElse(user -> true);
+  }
+
+  public Pushdown pushdown()
+  {
+    return pushdown;
+  }
+
+  /**
+   * Conditions evaluated locally, empty if the server evaluates all.
+   */
+  public List<String> remainderConditions()
+  {
+    return remainderConditions;
+  }
+
+  public boolean test(UserRepresentation user)
+  {
+    return remainder.test(user);
+  }
+
+  @Override
+  public String toString()
+  {
+    return expression;
+  }
+
+  private static boolean isBoolean(String value)
+  {
+    return "true".equals(value) || "false".equals(value);
+  }
+
+  private static Predicate<UserRepresentation> parseCondition(String name,
+    String operator, String value)
+  {
+    if("created".equals(name))
+    {
+      long timestamp = timestamp(value);
+      return switch(operator)
+      {
+        case "<" ->
+          user -> user.getCreatedTimestamp() != null
+          && user.getCreatedTimestamp() < timestamp;
+        case ">" ->
+          user -> user.getCreatedTimestamp() != null
+          && user.getCreatedTimestamp() > timestamp;
+        case "=" ->
+          user -> user.getCreatedTimestamp() != null
+          && user.getCreatedTimestamp() == timestamp;
+        case "!=" ->
+          user -> user.getCreatedTimestamp() == null
+          || user.getCreatedTimestamp() != timestamp;
+        default ->
+          throw new IllegalArgumentException("operator '" + operator
+            + "' not supported for created");
+      };
+    }
+
+    if("<".equals(operator) || ">".equals(operator))
+    {
+      throw new IllegalArgumentException("operator '" + operator
+        + "' is only supported for created");
+    }
+
+    Function<UserRepresentation, List<String>> field = field(name);
+    boolean isNull = "null".equals(value);
+    Pattern pattern = operator.endsWith("~") ? Pattern.compile(value) : null;
+
+    Predicate<UserRepresentation> matches = switch(operator)
+    {
+      case "=", "!=" ->
+        isNull ? user -> field.apply(user).isEmpty()
+          : user -> field.apply(user).stream().anyMatch(value :: equalsIgnoreCase);
+      default ->
+        user -> field.apply(user).stream()
+          .anyMatch(v -> pattern.matcher(v).find());
+    };
+
+    return operator.startsWith("!") ? matches.negate() : matches;
+  }
+
+  private static Function<UserRepresentation, List<String>> field(String name)
+  {
+    if(name.startsWith(ATTRIBUTE))
+    {
+      String attribute = name.substring(ATTRIBUTE.length());
+      return user -> (user.getAttributes() != null)
+        ? user.getAttributes().getOrDefault(attribute, List.of()) : List.of();
+    }
+
+    Function<UserRepresentation, Object> getter = switch(name)
+    {
+      case "id" ->
+        UserRepresentation :: getId;
+      case "username" ->
+        UserRepresentation :: getUsername;
+      case "email" ->
+        UserRepresentation :: getEmail;
+      case "firstName" ->
+        UserRepresentation :: getFirstName;
+      case "lastName" ->
+        UserRepresentation :: getLastName;
+      case "enabled" ->
+        user -> Boolean.TRUE.equals(user.isEnabled());
+      case "emailVerified" ->
+        user -> Boolean.TRUE.equals(user.isEmailVerified());
+      case "federationLink" ->
+        UserRepresentation :: getFederationLink;
+      default ->
+        throw new IllegalArgumentException("unknown query field '" + name + "'");
+    };
+
+    return user ->
+    {
+      Object value = getter.apply(user);
+      return (value != null) ? List.of(value.toString()) : List.of();
+    };
+  }
+
+  private static long timestamp(String value)
+  {
+    try
+    {
+      if(value.matches("\\d{4}-\\d{2}-\\d{2}"))
+      {
+        return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC)
+          .toInstant().toEpochMilli();
+      }
+      if(value.matches("\\d+"))
+      {
+        return Long.parseLong(value);
+      }
+      return Instant.parse(value).toEpochMilli();
+    }
+    catch(DateTimeParseException e)
+    {
+      throw new IllegalArgumentException("invalid date '" + value + "'");
+    }
+  }
+
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.keycloak.representations.idm.UserRepresentation;
+
+/**
+ * Compact, column oriented store of {@link UserRecord}s.
+ *
+ * <ul>
+ * <li>UUID user ids are kept as two longs</li>
+ * <li>usernames and emails are UTF-8 encoded into one shared byte pool</li>
+ * <li>first names, last names and federation links are dictionary
+ * encoded</li>
+ * <li>lookups by id and username use open addressing int tables</li>
+ * </ul>
+ *
+ * Removed and replaced users only mark their row as removed. Once more
+ * than a quarter of the rows are removed, the live rows are copied into
+ * new columns, so a long running sync does not grow the store without
+ * bound. Streams keep reading the columns they started with.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class UserRecordStore
+{
+  private final static int INITIAL_CAPACITY = 1024;
+
+  private final static long NULL_REF = -1L;
+
+  private final static int EMPTY_SLOT = -1;
+
+  /**
+   * compact if at least this many rows are removed and they are more
+   * than MAX_REMOVED_RATIO of all rows
+   */
+  private final static int MIN_REMOVED_ROWS = 1024;
+
+  private final static double MAX_REMOVED_RATIO = 0.25;
+
+  /**
+   * Rows and their values, only appended to and marked as removed.
+   */
+  private static class Columns
+  {
+    /**
+     * number of appended rows, including removed ones
+     */
+    private int rows;
+
+    private final BitSet removed = new BitSet();
+
+    private long[] idMostSigBits;
+
+    private long[] idLeastSigBits;
+
+    private long[] usernameRefs;
+
+    private long[] emailRefs;
+
+    private int[] firstNameCodes;
+
+    private int[] lastNameCodes;
+
+    private int[] federationLinkCodes;
+
+    private final BitSet enabled;
+
+    /**
+     * row -> id, only for ids which are not UUIDs
+     */
+    private final Map<Integer, String> irregularIds = new HashMap<>();
+
+    private byte[] pool;
+
+    private int poolSize;
+
+    private final StringDictionary names = new StringDictionary();
+
+    Columns(int capacity, int poolCapacity)
+    {
+      idMostSigBits = new long[capacity];
+      idLeastSigBits = new long[capacity];
+      usernameRefs = new long[capacity];
+      emailRefs = new long[capacity];
+      firstNameCodes = new int[capacity];
+      lastNameCodes = new int[capacity];
+      federationLinkCodes = new int[capacity];
+      enabled = new BitSet(capacity);
+      pool = new byte[poolCapacity];
+    }
+
+    void ensureCapacity(int minCapacity)
+    {
+      if(minCapacity > idMostSigBits.length)
+      {
+        int capacity = Math.max(minCapacity,
+          idMostSigBits.length + (idMostSigBits.length >> 1));
+        idMostSigBits = Arrays.copyOf(idMostSigBits, capacity);
+        idLeastSigBits = Arrays.copyOf(idLeastSigBits, capacity);
+        usernameRefs = Arrays.copyOf(usernameRefs, capacity);
+        emailRefs = Arrays.copyOf(emailRefs, capacity);
+        firstNameCodes = Arrays.copyOf(firstNameCodes, capacity);
+        lastNameCodes = Arrays.copyOf(lastNameCodes, capacity);
+        federationLinkCodes = Arrays.copyOf(federationLinkCodes, capacity);
+      }
+    }
+
+    String id(int row)
+    {
+      String id = irregularIds.get(row);
+      return (id != null) ? id : new UUID(idMostSigBits[row], idLeastSigBits[row]).toString();
+    }
+
+    long appendToPool(String value)
+    {
+      if(value == null)
+      {
+        return NULL_REF;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      return appendToPool(bytes, 0, bytes.length);
+    }
+
+    long appendToPool(byte[] bytes, int offset, int length)
+    {
+      if(poolSize + length > pool.length)
+      {
+        pool = Arrays.copyOf(pool, Math.max(pool.length + (pool.length >> 1),
+          poolSize + length));
+      }
+      System.arraycopy(bytes, offset, pool, poolSize, length);
+      long ref = ((long)poolSize << 32) | length;
+      poolSize += length;
+      return ref;
+    }
+
+    String fromPool(long ref)
+    {
+      return (ref == NULL_REF) ? null
+        : new String(pool, (int)(ref >>> 32), (int)ref, StandardCharsets.UTF_8);
+    }
+
+    UserRecord get(int row)
+    {
+      return new UserRecord(id(row), fromPool(usernameRefs[row]),
+        names.decode(firstNameCodes[row]), names.decode(lastNameCodes[row]),
+        fromPool(emailRefs[row]), enabled.get(row),
+        names.decode(federationLinkCodes[row]));
+    }
+
+  }
+
+  private Columns columns = new Columns(INITIAL_CAPACITY, INITIAL_CAPACITY * 32);
+
+  /**
+   * number of live rows
+   */
+  private int size;
+
+  private int[] idIndex = newIndex(INITIAL_CAPACITY * 2);
+
+  private int[] usernameIndex = newIndex(INITIAL_CAPACITY * 2);
+
+  public void add(UserRepresentation user)
+  {
+    add(new UserRecord(user.getId(), user.getUsername(), user.getFirstName(),
+      user.getLastName(), user.getEmail(), Boolean.TRUE.equals(user.isEnabled()),
+      user.getFederationLink()));
+  }
+
+  public synchronized void add(UserRecord user)
+  {
+    ensureCapacity(columns.rows + 1);
+    Columns c = columns;
+    int row = c.rows;
+
+    UUID uuid = parseUuid(user.id());
+    if(uuid != null)
+    {
+      c.idMostSigBits[row] = uuid.getMostSignificantBits();
+      c.idLeastSigBits[row] = uuid.getLeastSignificantBits();
+    }
+    else
+    {
+      c.idMostSigBits[row] = 0;
+      c.idLeastSigBits[row] = 0;
+      c.irregularIds.put(row, user.id());
+    }
+
+    c.usernameRefs[row] = c.appendToPool(user.username());
+    c.emailRefs[row] = c.appendToPool(user.email());
+    c.firstNameCodes[row] = c.names.encode(user.firstName());
+    c.lastNameCodes[row] = c.names.encode(user.lastName());
+    c.federationLinkCodes[row] = c.names.encode(user.federationLink());
+    c.enabled.set(row, user.enabled());
+    c.rows++;
+    size++;
+
+    insertIndex(idIndex, idHash(user.id()), row);
+    insertIndex(usernameIndex, stringHash(user.username()), row);
+  }
+
+  /**
+   * Replaces the user with the same id or adds it.
+   */
+  public synchronized void upsert(UserRecord user)
+  {
+    remove(user.id());
+    add(user);
+  }
+
+  /**
+   * Marks the row of the user as removed, the row is skipped by all
+   * lookups and streams.
+   */
+  public synchronized boolean remove(String id)
+  {
+    Columns c = columns;
+    int row = lookup(idIndex, idHash(id), r -> ! c.removed.get(r) && id.equals(c.id(r)));
+    if(row == EMPTY_SLOT)
+    {
+      return false;
+    }
+    c.removed.set(row);
+    size--;
+
+    int removedRows = c.rows - size;
+    if(removedRows >= MIN_REMOVED_ROWS && removedRows > c.rows * MAX_REMOVED_RATIO)
+    {
+      compact();
+    }
+    return true;
+  }
+
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  public synchronized Optional<UserRecord> findById(String id)
+  {
+    Columns c = columns;
+    int row = lookup(idIndex, idHash(id), r -> ! c.removed.get(r) && id.equals(c.id(r)));
+    return (row == EMPTY_SLOT) ? Optional.empty() : Optional.of(c.get(row));
+  }
+
+  public synchronized Optional<UserRecord> findByUsername(String username)
+  {
+    Columns c = columns;
+    int row = lookup(usernameIndex, stringHash(username),
+      r -> ! c.removed.get(r) && username.equals(c.fromPool(c.usernameRefs[r])));
+    return (row == EMPTY_SLOT) ? Optional.empty() : Optional.of(c.get(row));
+  }
+
+  public Stream<UserRecord> stream()
+  {
+    Columns c = columns();
+    return IntStream.range(0, rows(c)).filter(row -> isLive(c, row))
+      .mapToObj(row -> get(c, row));
+  }
+
+  private synchronized Columns columns()
+  {
+    return columns;
+  }
+
+  private synchronized int rows(Columns c)
+  {
+    return c.rows;
+  }
+
+  private synchronized boolean isLive(Columns c, int row)
+  {
+    return ! c.removed.get(row);
+  }
+
+  private synchronized UserRecord get(Columns c, int row)
+  {
+    return c.get(row);
+  }
+
+  public synchronized int dictionarySize()
+  {
+    return columns.names.size();
+  }
+
+  /**
+   * Estimated heap footprint in bytes (array capacities, byte pool,
+   * dictionary and indexes).
+   */
+  public synchronized long estimatedBytes()
+  {
+    Columns c = columns;
+    long capacity = c.idMostSigBits.length;
+    return capacity * (4 * Long.BYTES + 3 * Integer.BYTES)
+      + (c.enabled.size() + c.removed.size()) / 8
+      + c.pool.length
+      + c.irregularIds.size() * 100L
+      + c.names.estimatedBytes()
+      + (long)(idIndex.length + usernameIndex.length) * Integer.BYTES;
+  }
+
+  /**
+   * Copies the live rows into new columns, in the same order. The byte
+   * pool and the dictionary only keep the values of live rows.
+   */
+  private void compact()
+  {
+    Columns old = columns;
+    Columns c = new Columns(Math.max(INITIAL_CAPACITY, size + (size >> 1)),
+      Math.max(INITIAL_CAPACITY * 32, (int)((long)old.poolSize * size / old.rows)));
+
+    for(int row = 0; row < old.rows; row++)
+    {
+      if(old.removed.get(row))
+      {
+        continue;
+      }
+      int to = c.rows++;
+      c.idMostSigBits[to] = old.idMostSigBits[row];
+      c.idLeastSigBits[to] = old.idLeastSigBits[row];
+      String irregularId = old.irregularIds.get(row);
+      if(irregularId != null)
+      {
+        c.irregularIds.put(to, irregularId);
+      }
+      c.usernameRefs[to] = copyRef(old, c, old.usernameRefs[row]);
+      c.emailRefs[to] = copyRef(old, c, old.emailRefs[row]);
+      c.firstNameCodes[to] = c.names.encode(old.names.decode(old.firstNameCodes[row]));
+      c.lastNameCodes[to] = c.names.encode(old.names.decode(old.lastNameCodes[row]));
+      c.federationLinkCodes[to] = c.names.encode(
+        old.names.decode(old.federationLinkCodes[row]));
+      c.enabled.set(to, old.enabled.get(row));
+    }
+
+    columns = c;
+    int indexLength = INITIAL_CAPACITY * 2;
+    while(c.idMostSigBits.length * 2 > indexLength)
+    {
+      indexLength *= 2;
+    }
+    rebuildIndexes(indexLength);
+  }
+
+  private static long copyRef(Columns from, Columns to, long ref)
+  {
+    return (ref == NULL_REF) ? NULL_REF
+      : to.appendToPool(from.pool, (int)(ref >>> 32), (int)ref);
+  }
+
+  private void ensureCapacity(int minCapacity)
+  {
+    columns.ensureCapacity(minCapacity);
+
+    // keep the load factor of the indexes below 0.5
+    if(minCapacity * 2 > idIndex.length)
+    {
+      rebuildIndexes(idIndex.length * 2);
+    }
+  }
+
+  private void rebuildIndexes(int length)
+  {
+    Columns c = columns;
+    idIndex = newIndex(length);
+    usernameIndex = newIndex(length);
+    for(int row = 0; row < c.rows; row++)
+    {
+      if(c.removed.get(row))
+      {
+        continue;
+      }
+      insertIndex(idIndex, idHash(c.id(row)), row);
+      insertIndex(usernameIndex, stringHash(c.fromPool(c.usernameRefs[row])), row);
+    }
+  }
+
+  private static int[] newIndex(int length)
+  {
+    int[] index = new int[length];
+    Arrays.fill(index, EMPTY_SLOT);
+    return index;
+  }
+
+  private static void insertIndex(int[] index, int hash, int row)
+  {
+    int mask = index.length - 1;
+    int slot = hash & mask;
+    while(index[slot] != EMPTY_SLOT)
+    {
+      slot = (slot + 1) & mask;
+    }
+    index[slot] = row;
+  }
+
+  private static int lookup(int[] index, int hash, IntPredicate matches)
+  {
+    int mask = index.length - 1;
+    int slot = hash & mask;
+    while(index[slot] != EMPTY_SLOT)
+    {
+      if(matches.test(index[slot]))
+      {
+        return index[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return EMPTY_SLOT;
+  }
+
+  private static int idHash(String id)
+  {
+    UUID uuid = parseUuid(id);
+    return (uuid != null) ? mix(uuid.getMostSignificantBits()
+      ^ uuid.getLeastSignificantBits()) : stringHash(id);
+  }
+
+  private static int stringHash(String value)
+  {
+    return (value == null) ? 0 : mix(value.hashCode());
+  }
+
+  private static int mix(long value)
+  {
+    value ^= (value >>> 33);
+    value *= 0xff51afd7ed558ccdL;
+    value ^= (value >>> 33);
+    return (int)value;
+  }
+
+  private static UUID parseUuid(String id)
+  {
+    if(id == null || id.length() != 36)
+    {
+      return null;
+    }
+    try
+    {
+      UUID uuid = UUID.fromString(id);
+      return uuid.toString().equals(id) ? uuid : null;
+    }
+    catch(IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.service;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import java.util.List;
+import org.keycloak.representations.idm.UserRepresentation;
+
+/**
+ * GET /admin/realms/{realm}/users with all search parameters. The
+ * overloads of UsersResource#search only offer fixed subsets, e.g. none
+ * combines q, exact and idpAlias.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public interface UserSearchResource
+{
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  List<UserRepresentation> search(
+    @QueryParam("search") String search,
+    @QueryParam("username") String username,
+    @QueryParam("firstName") String firstName,
+    @QueryParam("lastName") String lastName,
+    @QueryParam("email") String email,
+    @QueryParam("emailVerified") Boolean emailVerified,
+    @QueryParam("enabled") Boolean enabled,
+    @QueryParam("idpAlias") String idpAlias,
+    @QueryParam("exact") Boolean exact,
+    @QueryParam("q") String q,
+    @QueryParam("first") Integer first,
+    @QueryParam("max") Integer max,
+    @QueryParam("briefRepresentation") Boolean briefRepresentation);
+
+  /**
+   * Number of users, the server ignores exact and idpAlias here, so
+   * this is an upper bound of the search result.
+   */
+  @GET
+  @Path("count")
+  @Produces(MediaType.APPLICATION_JSON)
+  Integer count(
+    @QueryParam("search") String search,
+    @QueryParam("username") String username,
+    @QueryParam("firstName") String firstName,
+    @QueryParam("lastName") String lastName,
+    @QueryParam("email") String email,
+    @QueryParam("emailVerified") Boolean emailVerified,
+    @QueryParam("enabled") Boolean enabled,
+    @QueryParam("q") String q);
+
+}
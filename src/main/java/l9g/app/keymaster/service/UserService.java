@@ -15,11 +15,28 @@
  */
 package l9g.app.keymaster.service;
 
-import java.util.ArrayList;
+import com.github.benmanes.caffeine.cache.Cache;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.core.UriBuilder;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.keycloak.admin.client.Keycloak;
 import org.keycloak.representations.idm.UserRepresentation;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
@@ -30,50 +47,324 @@ import org.springframework.stereotype.Service;
 @Slf4j
 public class UserService
 {
-  private final static int PAGE_SIZE = 100;
+  public record FindResult(int serverCount, int pages, long fetched,
+    long matched, long millis)
+  {
+  }
+
+  public record PageBenchmark(int concurrency, int pages, int errors,
+    long users, long millis, double pagesPerSecond, double usersPerSecond)
+  {
+  }
 
   private final String realm;
 
   private final Keycloak keycloak;
 
-  private final List<UserRepresentation> users = new ArrayList<>();
+  private final String baseUrl;
+
+  private final int pageSize;
+
+  private final int concurrency;
+
+  private final KeycloakRequestExecutor requestExecutor;
+
+  private final Cache<String, UserRecordStore> userStoreCache;
+
+  /**
+   * user store load in progress, <code>null</code> if none
+   */
+  private final AtomicReference<CompletableFuture<UserRecordStore>> loading =
+    new AtomicReference<>();
+
+  @Getter
+  private volatile long storeBuildMillis;
 
-  public UserService(KeycloakBuilderService keycloakConnection)
+  public UserService(KeycloakBuilderService keycloakConnection,
+    CacheRegistry cacheRegistry,
+    KeycloakRequestExecutor requestExecutor,
+    @Value("${keycloak.users.page-size:100}") int pageSize,
+    @Value("${keycloak.users.concurrency:8}") int concurrency)
   {
     realm = keycloakConnection.getRealm();
     keycloak = keycloakConnection.getKeycloak();
+    baseUrl = keycloakConnection.getBaseUrl();
+    this.pageSize = pageSize;
+    this.concurrency = concurrency;
+    this.requestExecutor = requestExecutor;
+    userStoreCache = cacheRegistry.create("user-store");
+  }
+
+  /**
+   * Streams all users of the realm page by page. Up to
+   * keycloak.users.concurrency pages are prefetched on virtual threads,
+   * so the memory used is bounded by the prefetch and not by the realm
+   * size. The stream should be closed if not consumed completely.
+   */
+  public Stream<UserRepresentation> stream(boolean briefRepresentation)
+  {
+    int numberOfUsers = requestExecutor.execute("users.count",
+      () -> keycloak.realm(realm).users().count());
+    log.debug("stream numberOfUsers={}, brief={}", numberOfUsers, briefRepresentation);
+
+    PageIterator<UserRepresentation> iterator = new PageIterator<>(
+      first -> loadPage(first, briefRepresentation), pageSize, concurrency,
+      numberOfUsers);
+
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+      Spliterator.ORDERED | Spliterator.NONNULL), false)
+      .onClose(iterator :: close);
+  }
+
+  public Stream<UserRepresentation> stream()
+  {
+    return stream(true);
+  }
+
+  /**
+   * Compact store of all users, filled from the brief user listing.
+   *
+   * Concurrent callers (jobs, daemon connections) share one load. It is
+   * not loaded in a cache compute, a virtual caller (background job)
+   * would stay pinned to its carrier while waiting for the prefetched
+   * pages; the other callers wait for the future of the running load.
+   */
+  public UserRecordStore store(boolean reload)
+  {
+    log.debug("store({})", reload);
+    UserRecordStore store = reload ? null : userStoreCache.getIfPresent(realm);
+    if(store != null)
+    {
+      return store;
+    }
+
+    CompletableFuture<UserRecordStore> future = new CompletableFuture<>();
+    CompletableFuture<UserRecordStore> running = loading.compareAndExchange(null, future);
+    if(running != null)
+    {
+      log.debug("waiting for the running user store load");
+      try
+      {
+        return running.join();
+      }
+      catch(CompletionException e)
+      {
+        throw (e.getCause() instanceof RuntimeException cause)
+          ? cause : new IllegalStateException(e.getCause());
+      }
+    }
+
+    try
+    {
+      // loaded by another caller meanwhile
+      store = reload ? null : userStoreCache.getIfPresent(realm);
+      if(store == null)
+      {
+        store = loadStore();
+        userStoreCache.put(realm, store);
+      }
+      future.complete(store);
+      return store;
+    }
+    catch(RuntimeException | Error e)
+    {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally
+    {
+      loading.set(null);
+    }
+  }
+
+  public UserRecordStore store()
+  {
+    return store(false);
+  }
+
+  private UserRecordStore loadStore()
+  {
+    long start = System.currentTimeMillis();
+    UserRecordStore store = new UserRecordStore();
+    try(Stream<UserRepresentation> userStream = stream(true))
+    {
+      userStream.forEach(store :: add);
+    }
+    storeBuildMillis = System.currentTimeMillis() - start;
+    log.debug("{} users loaded in {}ms", store.size(), storeBuildMillis);
+    return store;
+  }
+
+  /**
+   * Replaces the cached user store, e.g. with one from a snapshot.
+   */
+  public void seed(UserRecordStore store)
+  {
+    userStoreCache.put(realm, store);
+  }
+
+  /**
+   * Applies a single user change to the cached user store, if any.
+   *
+   * @return <code>true</code> if the store was changed
+   */
+  public boolean applyUserChange(String userId, boolean deleted)
+  {
+    UserRecordStore store = cachedStore();
+    if(store == null)
+    {
+      return false;
+    }
+
+    if(deleted)
+    {
+      return store.remove(userId);
+    }
+
+    UserRepresentation user;
+    try
+    {
+      user = userById(userId);
+    }
+    catch(NotFoundException e)
+    {
+      log.debug("user {} no longer exists", userId);
+      return store.remove(userId);
+    }
+
+    store.upsert(new UserRecord(user.getId(), user.getUsername(),
+      user.getFirstName(), user.getLastName(), user.getEmail(),
+      Boolean.TRUE.equals(user.isEnabled()), user.getFederationLink()));
+    return true;
+  }
+
+  /**
+   * @return the cached user store or <code>null</code>
+   */
+  public UserRecordStore cachedStore()
+  {
+    return userStoreCache.getIfPresent(realm);
+  }
+
+  /**
+   * Full representation (attributes, access, ...) of a single user.
+   */
+  public UserRepresentation userById(String userId)
+  {
+    return requestExecutor.execute("users.get",
+      () -> keycloak.realm(realm).users().get(userId).toRepresentation());
+  }
+
+  /**
+   * Streams the users matching a query. The pushed down part is sent
+   * with every page request, the remainder is tested on the loaded
+   * pages, up to keycloak.users.concurrency pages are prefetched.
+   *
+   * @param limit    stop after this many matches, 0 = unlimited
+   * @param consumer receives the matching users in server order
+   */
+  public FindResult find(UserQuery query, int limit,
+    Consumer<UserRepresentation> consumer)
+  {
+    long start = System.currentTimeMillis();
+    UserQuery.Pushdown p = query.pushdown();
+    UserSearchResource resource = keycloak.proxy(UserSearchResource.class,
+      UriBuilder.fromUri(baseUrl).path("admin/realms/{realm}/users").build(realm));
+
+    int serverCount = requestExecutor.execute("users.count",
+      () -> resource.count(p.search(), p.username(), p.firstName(), p.lastName(),
+        p.email(), p.emailVerified(), p.enabled(), p.q()));
+    log.debug("find '{}' pushdown={} serverCount={}", query, p, serverCount);
+    if(serverCount == 0)
+    {
+      return new FindResult(0, 0, 0, 0, System.currentTimeMillis() - start);
+    }
+
+    // the count ignores exact and idpAlias, pages beyond the first are
+    // then only requested while the last page is full
+    int expectedSize = (p.exact() != null || p.idpAlias() != null)
+      ? Math.min(serverCount, pageSize) : serverCount;
+    AtomicInteger pages = new AtomicInteger();
+    long fetched = 0;
+    long matched = 0;
+
+    try(PageIterator<UserRepresentation> iterator = new PageIterator<>(first ->
+    {
+      List<UserRepresentation> page = requestExecutor.execute("users.search",
+        () -> resource.search(p.search(), p.username(), p.firstName(),
+          p.lastName(), p.email(), p.emailVerified(), p.enabled(), p.idpAlias(),
+          p.exact(), p.q(), first, pageSize, p.briefRepresentation()));
+      pages.incrementAndGet();
+      return page;
+    }, pageSize, concurrency, expectedSize))
+    {
+      while(iterator.hasNext() && (limit <= 0 || matched < limit))
+      {
+        UserRepresentation user = iterator.next();
+        fetched++;
+        if(query.test(user))
+        {
+          matched++;
+          consumer.accept(user);
+        }
+      }
+    }
+
+    return new FindResult(serverCount, pages.get(), fetched, matched,
+      System.currentTimeMillis() - start);
   }
 
-  public List<UserRepresentation> users(boolean reload)
+  /**
+   * Loads the first pages of the brief user listing with the given
+   * number of concurrent requests, to measure the page throughput of
+   * the HTTP transport.
+   */
+  public PageBenchmark benchmarkPages(int pages, int concurrency)
+    throws InterruptedException
   {
-    log.debug("users({})", reload);
+    Semaphore permits = new Semaphore(Math.max(1, concurrency));
+    AtomicLong users = new AtomicLong();
+    AtomicInteger errors = new AtomicInteger();
+    long start = System.nanoTime();
 
-    if(reload || users.isEmpty())
+    try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
     {
-      users.clear();
-      int numberOfUsers = keycloak.realm(realm).users().count();
-      log.debug("numberOfUsers={}", numberOfUsers);
-      int index = 0;
-      List<UserRepresentation> usersPage;
-      do
+      for(int page = 0; page < pages; page++)
       {
-        log.debug("index={}", index);
-        usersPage = keycloak.realm(realm).users().list(index, (numberOfUsers
-          - index >= PAGE_SIZE) ? PAGE_SIZE : numberOfUsers - index);
-        log.debug("index={} done", index);
-        users.addAll(usersPage);
-        index += PAGE_SIZE;
-        log.debug("load users {}", index);
+        int first = page * pageSize;
+        permits.acquire();
+        executor.submit(() ->
+        {
+          try
+          {
+            users.addAndGet(loadPage(first, true).size());
+          }
+          catch(RuntimeException e)
+          {
+            log.debug("benchmark page first={} failed: {}", first, e.getMessage());
+            errors.incrementAndGet();
+          }
+          finally
+          {
+            permits.release();
+          }
+        });
       }
-      while(usersPage.size() == PAGE_SIZE && index < numberOfUsers);
     }
 
-    return users;
+    long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+    return new PageBenchmark(concurrency, pages, errors.get(), users.get(), millis,
+      pages * 1000.0 / millis, users.get() * 1000.0 / millis);
   }
 
-  public List<UserRepresentation> users()
+  private List<UserRepresentation> loadPage(int first, boolean briefRepresentation)
   {
-    return users(false);
+    log.debug("load users page first={}", first);
+    return briefRepresentation
+      ? requestExecutor.execute("users.search",
+        () -> keycloak.realm(realm).users().search(null, first, pageSize, true))
+      : requestExecutor.execute("users.list",
+        () -> keycloak.realm(realm).users().list(first, pageSize));
   }
 
 }
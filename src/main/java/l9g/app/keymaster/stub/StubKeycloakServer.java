@@ -0,0 +1,795 @@
+/*
+ * Copyright 2025 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.keymaster.stub;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embeddable stand-in for the subset of the Keycloak admin REST API used
+ * by this tool, serving one synthetic realm.
+ *
+ * <ul>
+ * <li>users: list, search (search, username, email, firstName, lastName,
+ * enabled, exact, q, briefRepresentation), count, get, create, update,
+ * delete, role mappings, partial import</li>
+ * <li>realm roles: list, get, delete, composites, members</li>
+ * <li>clients: list, find by clientId, get, roles, role members, client
+ * scopes</li>
+ * <li>client scopes, admin events (always empty), realms and the token
+ * endpoint</li>
+ * </ul>
+ *
+ * Every 10th realm role is a composite of the next three realm roles.
+ * User n has the realm role n % roles and the client role n % 5 of the
+ * client n % clients, the attribute department dept(n % 20) and was
+ * created n minutes after 2020-01-01. Each request is delayed by the configured latency
+ * (plus up to 50% jitter) and fails with 503 with the configured error
+ * rate. Only the admin endpoints are delayed and can fail.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Slf4j
+public final class StubKeycloakServer implements AutoCloseable
+{
+  private final static int ROLES_PER_CLIENT = 5;
+
+  private final static long ID_PREFIX_USER = 0x4b6579L;
+
+  // 2020-01-01T00:00:00Z, creation time of the first synthetic user
+  private final static long CREATED = 1577836800000L;
+
+  private final static long ID_PREFIX_ROLE = 0x526f6cL;
+
+  private final static long ID_PREFIX_CLIENT = 0x436c69L;
+
+  private final static TypeReference<Map<String, Object>> MAP_TYPE =
+    new TypeReference<>()
+  {
+  };
+
+  private final static TypeReference<List<Map<String, Object>>> LIST_TYPE =
+    new TypeReference<>()
+  {
+  };
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final HttpServer server;
+
+  @Getter
+  private final String realm;
+
+  private final Duration latency;
+
+  private final double errorRate;
+
+  /**
+   * id -> user, insertion ordered
+   */
+  private final Map<String, Map<String, Object>> users = new LinkedHashMap<>();
+
+  /**
+   * user id -> realm role names
+   */
+  private final Map<String, List<String>> userRealmRoles = new HashMap<>();
+
+  /**
+   * user id -> client id -> client role names
+   */
+  private final Map<String, Map<String, List<String>>> userClientRoles = new HashMap<>();
+
+  private final Map<String, Map<String, Object>> roles = new ConcurrentHashMap<>();
+
+  private final List<String> roleNames = new ArrayList<>();
+
+  private final Map<String, List<Map<String, Object>>> composites = new HashMap<>();
+
+  private final List<Map<String, Object>> clients = new ArrayList<>();
+
+  private final Map<String, List<Map<String, Object>>> clientRoles = new HashMap<>();
+
+  private final List<Map<String, Object>> clientScopes = new ArrayList<>();
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicLong injectedErrors = new AtomicLong();
+
+  private long nextUserId;
+
+  /**
+   * @param realm           name of the synthetic realm
+   * @param port            TCP port, 0 for a random free port
+   * @param numberOfUsers   users in the realm
+   * @param numberOfRoles   realm roles
+   * @param numberOfClients clients, each with 5 client roles
+   * @param latency         base latency of each admin request
+   * @param errorRate       0.0 - 1.0, share of admin requests failing with
+   *                        503
+   */
+  public StubKeycloakServer(String realm, int port, int numberOfUsers,
+    int numberOfRoles, int numberOfClients, Duration latency, double errorRate)
+    throws IOException
+  {
+    this.realm = realm;
+    this.latency = latency;
+    this.errorRate = errorRate;
+
+    for(int i = 0; i < numberOfRoles; i++)
+    {
+      String name = "role" + i;
+      Map<String, Object> role = new LinkedHashMap<>();
+      role.put("id", new UUID(ID_PREFIX_ROLE, i).toString());
+      role.put("name", name);
+      role.put("description", (i % 7 == 0) ? null : "Role " + i);
+      role.put("composite", i % 10 == 0 && i + 3 < numberOfRoles);
+      role.put("clientRole", false);
+      role.put("containerId", realm);
+      roles.put(name, role);
+      roleNames.add(name);
+    }
+
+    for(int i = 0; i < numberOfRoles; i++)
+    {
+      if(Boolean.TRUE.equals(roles.get("role" + i).get("composite")))
+      {
+        composites.put("role" + i, List.of(roles.get("role" + (i + 1)),
+          roles.get("role" + (i + 2)), roles.get("role" + (i + 3))));
+      }
+    }
+
+    for(String scope : List.of("profile", "email", "roles"))
+    {
+      Map<String, Object> clientScope = new LinkedHashMap<>();
+      clientScope.put("id", UUID.nameUUIDFromBytes(scope.getBytes(StandardCharsets.UTF_8)).toString());
+      clientScope.put("name", scope);
+      clientScope.put("protocol", "openid-connect");
+      clientScope.put("attributes", Map.of("include.in.token.scope", "true"));
+      clientScopes.add(clientScope);
+    }
+
+    for(int i = 0; i < numberOfClients; i++)
+    {
+      String id = new UUID(ID_PREFIX_CLIENT, i).toString();
+      Map<String, Object> client = new LinkedHashMap<>();
+      client.put("id", id);
+      client.put("clientId", "client" + i);
+      client.put("name", "Client " + i);
+      client.put("enabled", true);
+      clients.add(client);
+
+      List<Map<String, Object>> roleList = new ArrayList<>();
+      for(int r = 0; r < ROLES_PER_CLIENT; r++)
+      {
+        Map<String, Object> role = new LinkedHashMap<>();
+        role.put("id", new UUID(ID_PREFIX_CLIENT + i + 1, r).toString());
+        role.put("name", "client-role" + r);
+        role.put("composite", false);
+        role.put("clientRole", true);
+        role.put("containerId", id);
+        roleList.add(role);
+      }
+      clientRoles.put(id, roleList);
+    }
+
+    for(int i = 0; i < numberOfUsers; i++)
+    {
+      Map<String, Object> user = new LinkedHashMap<>();
+      user.put("username", "user" + i);
+      user.put("firstName", "First" + (i % 500));
+      user.put("lastName", "Last" + (i % 2000));
+      user.put("email", "user" + i + "@example.org");
+      user.put("enabled", i % 50 != 0);
+      user.put("attributes", Map.of("department", List.of("dept" + (i % 20))));
+      user.put("createdTimestamp", CREATED + i * 60_000L);
+      String id = addUser(user);
+
+      if( ! roleNames.isEmpty())
+      {
+        userRealmRoles.put(id, List.of(roleNames.get(i % roleNames.size())));
+      }
+      if( ! clients.isEmpty())
+      {
+        userClientRoles.put(id, Map.of(
+          (String)clients.get(i % clients.size()).get("id"),
+          List.of("client-role" + (i % ROLES_PER_CLIENT))));
+      }
+    }
+
+    // avoid the 40ms delayed ACK stall of small responses
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    server.createContext("/", this :: handle);
+    server.start();
+    log.info("stub keycloak for realm {} with {} users, {} roles, {} clients at {}",
+      realm, numberOfUsers, numberOfRoles, numberOfClients, getBaseUrl());
+  }
+
+  public String getBaseUrl()
+  {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public long getRequests()
+  {
+    return requests.get();
+  }
+
+  public long getInjectedErrors()
+  {
+    return injectedErrors.get();
+  }
+
+  public synchronized int getNumberOfUsers()
+  {
+    return users.size();
+  }
+
+  @Override
+  public void close()
+  {
+    server.stop(0);
+    log.info("stub keycloak at {} stopped", getBaseUrl());
+  }
+
+  private void handle(HttpExchange exchange)
+    throws IOException
+  {
+    try(exchange)
+    {
+      try
+      {
+        dispatch(exchange);
+      }
+      catch(JsonProcessingException | IllegalArgumentException e)
+      {
+        // e.g. an invalid first/max parameter or JSON body
+        log.warn("stub bad request: {}", e.getMessage());
+        sendError(exchange, 400, e);
+      }
+      catch(RuntimeException e)
+      {
+        log.warn("stub request failed: {}", e.getMessage());
+        sendError(exchange, 500, e);
+      }
+    }
+  }
+
+  /**
+   * An error status, unless the response has already been started.
+   */
+  private void sendError(HttpExchange exchange, int status, Exception e)
+    throws IOException
+  {
+    if(exchange.getResponseCode() == -1)
+    {
+      send(exchange, status, Map.of("error", String.valueOf(e.getMessage())));
+    }
+  }
+
+  private void dispatch(HttpExchange exchange)
+    throws IOException
+  {
+    requests.incrementAndGet();
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+
+    if(path.equals("/realms/" + realm + "/protocol/openid-connect/token"))
+    {
+      exchange.getRequestBody().readAllBytes();
+      send(exchange, 200, Map.of("access_token", UUID.randomUUID().toString(),
+        "expires_in", 300, "refresh_expires_in", 0, "token_type", "Bearer"));
+      return;
+    }
+
+    if( ! path.startsWith("/admin/realms"))
+    {
+      send(exchange, 404, null);
+      return;
+    }
+
+    delay();
+    if(errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate)
+    {
+      injectedErrors.incrementAndGet();
+      send(exchange, 503, null);
+      return;
+    }
+
+    if(path.equals("/admin/realms") || path.equals("/admin/realms/"))
+    {
+      send(exchange, 200, List.of(Map.of("id", realm, "realm", realm,
+        "displayName", "Stub " + realm)));
+      return;
+    }
+
+    String prefix = "/admin/realms/" + realm;
+    if( ! path.startsWith(prefix + "/"))
+    {
+      send(exchange, 404, null);
+      return;
+    }
+
+    String[] p = path.substring(prefix.length() + 1).split("/");
+    byte[] body = exchange.getRequestBody().readAllBytes();
+    Response response = switch(p[0])
+    {
+      case "users" ->
+        users(method, p, query, body);
+      case "roles" ->
+        roles(method, p, query);
+      case "roles-by-id" ->
+        new Response(200, List.of());
+      case "clients" ->
+        clients(p, query);
+      case "client-scopes" ->
+        new Response(200, clientScopes);
+      case "admin-events" ->
+        new Response(200, List.of());
+      case "partialImport" ->
+        partialImport(body);
+      default ->
+        new Response(404, null);
+    };
+
+    if(response.location() != null)
+    {
+      exchange.getResponseHeaders().set("Location",
+        getBaseUrl() + prefix + "/" + response.location());
+    }
+    send(exchange, response.status(), response.body());
+  }
+
+  private record Response(int status, Object body, String location)
+  {
+    Response(int status, Object body)
+    {
+      this(status, body, null);
+    }
+
+  }
+
+  private synchronized Response users(String method, String[] p,
+    Map<String, String> query, byte[] body)
+    throws IOException
+  {
+    if(p.length == 1 && "POST".equals(method))
+    {
+      Map<String, Object> user = objectMapper.readValue(body, MAP_TYPE);
+      if(findByUsername((String)user.get("username")) != null)
+      {
+        return new Response(409, Map.of("errorMessage", "User exists with same username"));
+      }
+      return new Response(201, null, "users/" + addUser(user));
+    }
+
+    if(p.length == 1)
+    {
+      List<Map<String, Object>> result = users.values().stream()
+        .filter(user -> matches(user, query))
+        .map(user -> Boolean.parseBoolean(query.get("briefRepresentation"))
+        ? brief(user) : user).toList();
+      int first = Integer.parseInt(query.getOrDefault("first", "0"));
+      int max = Integer.parseInt(query.getOrDefault("max", "100"));
+      return new Response(200, result.subList(Math.min(first, result.size()),
+        Math.min(first + max, result.size())));
+    }
+
+    if(p.length == 2 && "count".equals(p[1]))
+    {
+      return new Response(200, users.values().stream()
+        .filter(user -> matches(user, query)).count());
+    }
+
+    Map<String, Object> user = users.get(p[1]);
+    if(user == null)
+    {
+      return new Response(404, Map.of("error", "User not found"));
+    }
+
+    if(p.length == 2)
+    {
+      return switch(method)
+      {
+        case "DELETE" ->
+        {
+          users.remove(p[1]);
+          yield new Response(204, null);
+        }
+        case "PUT" ->
+        {
+          Map<String, Object> update = objectMapper.readValue(body, MAP_TYPE);
+          update.remove("id");
+          update.computeIfPresent("username", (key, username) -> username(username));
+          user.putAll(update);
+          yield new Response(204, null);
+        }
+        default ->
+          new Response(200, user);
+      };
+    }
+
+    if("role-mappings".equals(p[2]))
+    {
+      List<Map<String, Object>> realmMappings = userRealmRoles
+        .getOrDefault(p[1], List.of()).stream().map(roles :: get).toList();
+      if(p.length == 4 && "realm".equals(p[3]))
+      {
+        return new Response(200, realmMappings);
+      }
+
+      Map<String, Object> clientMappings = new LinkedHashMap<>();
+      userClientRoles.getOrDefault(p[1], Map.of()).forEach((clientId, names) ->
+      {
+        Map<String, Object> client = clientById(clientId);
+        clientMappings.put((String)client.get("clientId"), Map.of("id", clientId,
+          "client", client.get("clientId"),
+          "mappings", clientRoles.get(clientId).stream()
+            .filter(role -> names.contains((String)role.get("name"))).toList()));
+      });
+      Map<String, Object> mappings = new LinkedHashMap<>();
+      mappings.put("realmMappings", realmMappings);
+      mappings.put("clientMappings", clientMappings);
+      return new Response(200, mappings);
+    }
+
+    return new Response(404, null);
+  }
+
+  private Response roles(String method, String[] p, Map<String, String> query)
+  {
+    if(p.length == 1)
+    {
+      return new Response(200, roleNames.stream().map(roles :: get)
+        .filter(role -> role != null).toList());
+    }
+
+    Map<String, Object> role = roles.get(p[1]);
+    if(role == null)
+    {
+      return new Response(404, Map.of("error", "Could not find role"));
+    }
+
+    if(p.length == 2)
+    {
+      if("DELETE".equals(method))
+      {
+        roles.remove(p[1]);
+        return new Response(204, null);
+      }
+      return new Response(200, role);
+    }
+
+    return switch(p[2])
+    {
+      case "composites" ->
+        new Response(200, (p.length == 3 || "realm".equals(p[3]))
+          ? composites.getOrDefault(p[1], List.of()) : List.of());
+      case "users" ->
+        new Response(200, page(members(userRealmRoles, p[1]), query));
+      default ->
+        new Response(404, null);
+    };
+  }
+
+  private Response clients(String[] p, Map<String, String> query)
+  {
+    if(p.length == 1)
+    {
+      String clientId = query.get("clientId");
+      return new Response(200, (clientId == null) ? clients
+        : clients.stream().filter(client -> clientId.equals(client.get("clientId"))).toList());
+    }
+
+    Map<String, Object> client = clientById(p[1]);
+    if(client == null)
+    {
+      return new Response(404, Map.of("error", "Could not find client"));
+    }
+
+    if(p.length == 2)
+    {
+      return new Response(200, client);
+    }
+
+    return switch(p[2])
+    {
+      case "roles" ->
+      {
+        if(p.length == 3)
+        {
+          yield new Response(200, clientRoles.get(p[1]));
+        }
+        if(p.length == 5 && "users".equals(p[4]))
+        {
+          yield new Response(200, page(clientRoleMembers(p[1], p[3]), query));
+        }
+        yield new Response(200, clientRoles.get(p[1]).stream()
+          .filter(role -> p[3].equals(role.get("name"))).findFirst().orElse(null));
+      }
+      case "default-client-scopes" ->
+        new Response(200, clientScopes.subList(0, 2));
+      case "optional-client-scopes" ->
+        new Response(200, clientScopes.subList(2, clientScopes.size()));
+      default ->
+        new Response(404, null);
+    };
+  }
+
+  private synchronized Response partialImport(byte[] body)
+    throws IOException
+  {
+    Map<String, Object> request = objectMapper.readValue(body, MAP_TYPE);
+    List<Map<String, Object>> importUsers = objectMapper.convertValue(
+      request.getOrDefault("users", List.of()), LIST_TYPE);
+    String policy = String.valueOf(request.getOrDefault("ifResourceExists", "FAIL"));
+
+    List<Map<String, Object>> results = new ArrayList<>();
+    int added = 0;
+    int skipped = 0;
+    for(Map<String, Object> user : importUsers)
+    {
+      String username = username(user.get("username"));
+      Map<String, Object> existing = findByUsername(username);
+      String action;
+      String id;
+      if(existing == null)
+      {
+        id = addUser(user);
+        action = "ADDED";
+        added++;
+      }
+      else if("FAIL".equals(policy))
+      {
+        return new Response(409, Map.of("errorMessage", "User exists: " + username));
+      }
+      else if("OVERWRITE".equals(policy))
+      {
+        id = (String)existing.get("id");
+        existing.putAll(user);
+        existing.put("id", id);
+        existing.put("username", username);
+        action = "OVERWRITTEN";
+      }
+      else
+      {
+        id = (String)existing.get("id");
+        action = "SKIPPED";
+        skipped++;
+      }
+      results.add(Map.of("action", action, "resourceType", "USER",
+        "resourceName", username, "id", id));
+    }
+
+    return new Response(200, Map.of("added", added, "skipped", skipped,
+      "overwritten", importUsers.size() - added - skipped, "results", results));
+  }
+
+  private String addUser(Map<String, Object> user)
+  {
+    String id = new UUID(ID_PREFIX_USER, nextUserId++).toString();
+    Map<String, Object> stored = new LinkedHashMap<>();
+    stored.put("id", id);
+    for(String key : List.of("username", "firstName", "lastName", "email",
+      "enabled", "emailVerified", "attributes", "federationLink",
+      "createdTimestamp"))
+    {
+      if(user.get(key) != null)
+      {
+        stored.put(key, user.get(key));
+      }
+    }
+    stored.computeIfPresent("username", (key, username) -> username(username));
+    stored.putIfAbsent("enabled", false);
+    stored.putIfAbsent("createdTimestamp", System.currentTimeMillis());
+    users.put(id, stored);
+    return id;
+  }
+
+  /**
+   * Keycloak stores user names in lower case.
+   */
+  private static String username(Object username)
+  {
+    if( ! (username instanceof String name))
+    {
+      throw new IllegalArgumentException("username missing");
+    }
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  private Map<String, Object> findByUsername(String username)
+  {
+    return users.values().stream()
+      .filter(user -> username != null && username.equalsIgnoreCase((String)user.get("username")))
+      .findFirst().orElse(null);
+  }
+
+  private Map<String, Object> clientById(String id)
+  {
+    return clients.stream().filter(client -> id.equals(client.get("id")))
+      .findFirst().orElse(null);
+  }
+
+  private synchronized List<Map<String, Object>> members(
+    Map<String, List<String>> assignments, String roleName)
+  {
+    return assignments.entrySet().stream()
+      .filter(entry -> users.containsKey(entry.getKey())
+      && entry.getValue().contains(roleName))
+      .map(entry -> users.get(entry.getKey())).toList();
+  }
+
+  private synchronized List<Map<String, Object>> clientRoleMembers(
+    String clientId, String roleName)
+  {
+    return userClientRoles.entrySet().stream()
+      .filter(entry -> users.containsKey(entry.getKey())
+      && entry.getValue().getOrDefault(clientId, List.of()).contains(roleName))
+      .map(entry -> users.get(entry.getKey())).toList();
+  }
+
+  private static boolean matches(Map<String, Object> user, Map<String, String> query)
+  {
+    boolean exact = Boolean.parseBoolean(query.get("exact"));
+    for(String field : List.of("username", "email", "firstName", "lastName"))
+    {
+      String value = query.get(field);
+      if(value != null && ! matches((String)user.get(field), value, exact))
+      {
+        return false;
+      }
+    }
+
+    String search = query.get("search");
+    if(search != null && ! search.isBlank() && ! "*".equals(search))
+    {
+      String term = search.replace("*", "");
+      if(List.of("username", "email", "firstName", "lastName").stream()
+        .noneMatch(field -> matches((String)user.get(field), term, false)))
+      {
+        return false;
+      }
+    }
+
+    String q = query.get("q");
+    if(q != null && ! q.isBlank())
+    {
+      Map<String, List<String>> attributes = attributes(user);
+      for(String condition : q.trim().split("\\s+"))
+      {
+        int index = condition.indexOf(':');
+        if(index < 0 || ! attributes.getOrDefault(condition.substring(0, index),
+          List.of()).contains(condition.substring(index + 1)))
+        {
+          return false;
+        }
+      }
+    }
+
+    String enabled = query.get("enabled");
+    return enabled == null || enabled.equals(String.valueOf(user.get("enabled")));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, List<String>> attributes(Map<String, Object> user)
+  {
+    return (Map<String, List<String>>)user.getOrDefault("attributes", Map.of());
+  }
+
+  private static Map<String, Object> brief(Map<String, Object> user)
+  {
+    Map<String, Object> brief = new LinkedHashMap<>(user);
+    brief.remove("attributes");
+    return brief;
+  }
+
+  private static boolean matches(String actual, String expected, boolean exact)
+  {
+    if(actual == null)
+    {
+      return false;
+    }
+    return exact ? actual.equalsIgnoreCase(expected)
+      : actual.toLowerCase(Locale.ROOT).contains(expected.toLowerCase(Locale.ROOT));
+  }
+
+  private static <T> List<T> page(List<T> list, Map<String, String> query)
+  {
+    int first = Integer.parseInt(query.getOrDefault("first", "0"));
+    int max = Integer.parseInt(query.getOrDefault("max", "100"));
+    return list.subList(Math.min(first, list.size()),
+      Math.min(first + max, list.size()));
+  }
+
+  private void delay()
+  {
+    if(latency.isZero())
+    {
+      return;
+    }
+    long millis = latency.toMillis();
+    try
+    {
+      Thread.sleep(millis + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void send(HttpExchange exchange, int status, Object body)
+    throws IOException
+  {
+    if(body == null)
+    {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+
+    byte[] json = objectMapper.writeValueAsBytes(body);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, json.length);
+    try(OutputStream out = exchange.getResponseBody())
+    {
+      out.write(json);
+    }
+  }
+
+  private static Map<String, String> query(String rawQuery)
+  {
+    Map<String, String> query = new HashMap<>();
+    if(rawQuery != null)
+    {
+      for(String parameter : rawQuery.split("&"))
+      {
+        int index = parameter.indexOf('=');
+        if(index > 0)
+        {
+          query.put(parameter.substring(0, index),
+            URLDecoder.decode(parameter.substring(index + 1), StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return query;
+  }
+
+}